@@ -0,0 +1,271 @@
+package ae.sdg.printerdemo;
+
+import com.ganesh.iarabic.arabic864;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers what arabic864 produced for the phrases receipts and labels
+ * repeat on every print: the shop name, headings, item names and footers.
+ * A repeated phrase costs one map lookup instead of shaping, reversing and
+ * lam-alef merging it again. The cache is bounded by an estimate of the
+ * memory its entries take and drops the least recently used ones first.
+ * Cached bytes are shared, so they are only handed out as read-only
+ * buffers or written to a stream.
+ */
+public class ArabicPhraseCache {
+
+    // Size of the shared instance
+    private static final int DEFAULT_MAX_BYTES = 256 * 1024;
+    // Rough cost of an entry beyond its text and bytes
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static ArabicPhraseCache sInstance;
+
+    /**
+     * Cache counters. getStats() hands out copies.
+     */
+    public static class Stats {
+        public long hits;
+        public long misses;
+        public long evictions;
+        public int entries;
+        public int sizeBytes;
+        public int maxBytes;
+
+        public float getHitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (float) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " evictions=" + evictions
+                    + " entries=" + entries + " size=" + sizeBytes + "/" + maxBytes;
+        }
+    }
+
+    /**
+     * A phrase as map key. Stored keys own their chars; the probe points into
+     * the caller's buffer, so a hit on a range of chars needs no String.
+     */
+    private static class Key {
+        char[] mmChars;
+        int mmOffset;
+        int mmLength;
+        int mmHash;
+
+        Key set(char[] chars, int offset, int length) {
+            mmChars = chars;
+            mmOffset = offset;
+            mmLength = length;
+            int hash = 0;
+            for (int i = 0; i < length; i++) hash = 31 * hash + chars[offset + i];
+            mmHash = hash;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return mmHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            if (other.mmHash != mmHash || other.mmLength != mmLength) return false;
+            for (int i = 0; i < mmLength; i++) {
+                if (other.mmChars[other.mmOffset + i] != mmChars[mmOffset + i]) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The encodings of one phrase, with Arabic-Indic and with Latin digits.
+     */
+    private static class Entry {
+        byte[] mmArabicDigits;
+        byte[] mmLatinDigits;
+        int mmSize;
+    }
+
+    // Member fields
+    private final int mMaxBytes;
+    private final int mMaxEntryBytes;
+    private final arabic864 mEncoder = new arabic864();
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+    private final Stats mStats = new Stats();
+    // Lookup key and the chars of String lookups, only used under the lock
+    private final Key mProbe = new Key();
+    private char[] mProbeChars = new char[64];
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes Memory the entries may take, estimated
+     */
+    public ArabicPhraseCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+        // One long text must not push out everything else
+        mMaxEntryBytes = maxBytes / 8;
+        mStats.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the cache shared by the print engine.
+     */
+    public static synchronized ArabicPhraseCache getInstance() {
+        if (sInstance == null) sInstance = new ArabicPhraseCache(DEFAULT_MAX_BYTES);
+        return sInstance;
+    }
+
+    /**
+     * Return the encoding of a phrase as a read-only buffer.
+     *
+     * @param arabicDigits Write digits as Arabic-Indic glyphs
+     */
+    public ByteBuffer get(String text, boolean arabicDigits) {
+        return ByteBuffer.wrap(lookup(text, arabicDigits)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the encoding of a phrase.
+     */
+    public void write(String text, boolean arabicDigits, ByteArrayOutputStream out) {
+        byte[] encoded = lookup(text, arabicDigits);
+        out.write(encoded, 0, encoded.length);
+    }
+
+    public void write(String text, boolean arabicDigits, OutputStream out) throws IOException {
+        out.write(lookup(text, arabicDigits));
+    }
+
+    /**
+     * Write the encoding of the phrase in text[offset, offset + length).
+     * A cached phrase is found without copying the chars.
+     */
+    public void write(char[] text, int offset, int length, boolean arabicDigits, ByteArrayOutputStream out) {
+        byte[] encoded;
+        synchronized (this) {
+            encoded = find(text, offset, length, arabicDigits);
+        }
+        if (encoded == null) encoded = encode(new String(text, offset, length), arabicDigits);
+        out.write(encoded, 0, encoded.length);
+    }
+
+    /**
+     * Encode phrases ahead of the first print that needs them.
+     */
+    public void warmUp(String... phrases) {
+        for (String phrase : phrases) lookup(phrase, true);
+    }
+
+    public void warmUp(Iterable<String> phrases) {
+        for (String phrase : phrases) lookup(phrase, true);
+    }
+
+    public synchronized Stats getStats() {
+        Stats c = new Stats();
+        c.hits = mStats.hits;
+        c.misses = mStats.misses;
+        c.evictions = mStats.evictions;
+        c.entries = mEntries.size();
+        c.sizeBytes = mStats.sizeBytes;
+        c.maxBytes = mMaxBytes;
+        return c;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mStats.sizeBytes = 0;
+    }
+
+    private byte[] lookup(String text, boolean arabicDigits) {
+        byte[] encoded;
+        synchronized (this) {
+            int length = text.length();
+            // Too long to be cached, so not worth copying
+            if (2 * length + ENTRY_OVERHEAD > mMaxEntryBytes) {
+                mStats.misses++;
+                encoded = null;
+            } else {
+                if (mProbeChars.length < length) mProbeChars = new char[length];
+                text.getChars(0, length, mProbeChars, 0);
+                encoded = find(mProbeChars, 0, length, arabicDigits);
+            }
+        }
+        return encoded != null ? encoded : encode(text, arabicDigits);
+    }
+
+    /**
+     * Return the cached encoding of a phrase and count the hit or miss, or
+     * null. Must hold the lock.
+     */
+    private byte[] find(char[] text, int offset, int length, boolean arabicDigits) {
+        Entry entry = mEntries.get(mProbe.set(text, offset, length));
+        mProbe.mmChars = null;
+        byte[] encoded = entry == null ? null : arabicDigits ? entry.mmArabicDigits : entry.mmLatinDigits;
+        if (encoded != null) {
+            mStats.hits++;
+        } else {
+            mStats.misses++;
+        }
+        return encoded;
+    }
+
+    /**
+     * Encode a phrase that was not cached and cache it if it fits.
+     */
+    private byte[] encode(String text, boolean arabicDigits) {
+        byte[] encoded;
+        synchronized (mEncoder) {
+            encoded = mEncoder.Convert(text, arabicDigits);
+        }
+
+        int size = 2 * text.length() + encoded.length;
+        if (size + ENTRY_OVERHEAD > mMaxEntryBytes) return encoded;
+        synchronized (this) {
+            Key key = new Key().set(text.toCharArray(), 0, text.length());
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entry.mmSize = ENTRY_OVERHEAD + 2 * text.length();
+                mEntries.put(key, entry);
+                mStats.sizeBytes += entry.mmSize;
+            }
+            // Another thread may have encoded the same phrase meanwhile
+            if (arabicDigits && entry.mmArabicDigits == null) {
+                entry.mmArabicDigits = encoded;
+            } else if (!arabicDigits && entry.mmLatinDigits == null) {
+                entry.mmLatinDigits = encoded;
+            } else {
+                return encoded;
+            }
+            entry.mmSize += encoded.length;
+            mStats.sizeBytes += encoded.length;
+            trim();
+        }
+        return encoded;
+    }
+
+    /**
+     * Drop the least recently used entries until the cache fits. Must hold the lock.
+     */
+    private void trim() {
+        Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+        while (mStats.sizeBytes > mMaxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            mStats.sizeBytes -= entry.mmSize;
+            mStats.evictions++;
+        }
+    }
+}
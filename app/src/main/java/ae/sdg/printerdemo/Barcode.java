@@ -0,0 +1,323 @@
+package ae.sdg.printerdemo;
+
+/**
+ * A validated barcode. Creating one checks the data for the symbology and,
+ * for Code 128, plans the shortest sequence of code sets A, B and C so that
+ * both the native command and the raster fallback are as small as possible.
+ * BarcodeEmitter turns a Barcode into printer commands.
+ */
+public class Barcode {
+
+    // Symbologies
+    public static final int CODE128 = 0;
+    public static final int EAN13 = 1;
+    public static final int QR = 2;
+
+    // Code 128 special codewords
+    static final int SHIFT = 98;
+    static final int CODE_C = 99;
+    static final int CODE_B = 100;
+    static final int CODE_A = 101;
+    static final int FNC1 = 102;
+    static final int START_A = 103;
+    static final int START_B = 104;
+    static final int START_C = 105;
+    static final int STOP = 106;
+
+    private static final int SET_A = 0;
+    private static final int SET_B = 1;
+    private static final int SET_C = 2;
+
+    // Bar and space widths of every Code 128 codeword, the stop symbol has seven
+    private static final String[] CODE128_PATTERNS = {
+            "212222", "222122", "222221", "121223", "121322", "131222", "122213", "122312",
+            "132212", "221213", "221312", "231212", "112232", "122132", "122231", "113222",
+            "123122", "123221", "223211", "221132", "221231", "213212", "223112", "312131",
+            "311222", "321122", "321221", "312212", "322112", "322211", "212123", "212321",
+            "232121", "111323", "131123", "131321", "112313", "132113", "132311", "211313",
+            "231113", "231311", "112133", "112331", "132131", "113123", "113321", "133121",
+            "313121", "211331", "231131", "213113", "213311", "213131", "311123", "311321",
+            "331121", "312113", "312311", "332111", "314111", "221411", "431111", "111224",
+            "111422", "121124", "121421", "141122", "141221", "112214", "112412", "122114",
+            "122411", "142112", "142211", "241211", "221114", "413111", "241112", "134111",
+            "111242", "121142", "121241", "114212", "124112", "124211", "411212", "421112",
+            "421211", "212141", "214121", "412121", "111143", "111341", "131141", "114113",
+            "114311", "411113", "411311", "113141", "114131", "311141", "411131", "211412",
+            "211214", "211232", "2331112"
+    };
+
+    // EAN-13 digit encodings, left half odd (L) and even (G) parity, and the right half
+    private static final String[] EAN_L = {
+            "0001101", "0011001", "0010011", "0111101", "0100011",
+            "0110001", "0101111", "0111011", "0110111", "0001011"
+    };
+    private static final String[] EAN_G = {
+            "0100111", "0110011", "0011011", "0100001", "0011101",
+            "0111001", "0000101", "0010001", "0001001", "0010111"
+    };
+    private static final String[] EAN_R = {
+            "1110010", "1100110", "1101100", "1000010", "1011100",
+            "1001110", "1010000", "1000100", "1001000", "1110100"
+    };
+    // Parity of the left half selected by the first digit, 1 means G
+    private static final String[] EAN_PARITY = {
+            "000000", "001011", "001101", "001110", "010011",
+            "011001", "011100", "010101", "010110", "011010"
+    };
+
+    // QR byte mode capacity of a version 40 symbol per error correction level
+    private static final String QR_LEVELS = "LMQH";
+    private static final int[] QR_MAX_BYTES = {2953, 2331, 1663, 1273};
+
+    private final int mSymbology;
+    private final String mData;
+    private final int[] mCodewords;
+    private final char mErrorCorrection;
+
+    private Barcode(int symbology, String data, int[] codewords, char errorCorrection) {
+        mSymbology = symbology;
+        mData = data;
+        mCodewords = codewords;
+        mErrorCorrection = errorCorrection;
+    }
+
+    /**
+     * Create a Code 128 barcode. Any ASCII character is allowed.
+     *
+     * @throws IllegalArgumentException if the data is empty or not ASCII
+     */
+    public static Barcode code128(String data) {
+        if (data == null || data.length() == 0) {
+            throw new IllegalArgumentException("Code 128 data is empty");
+        }
+        for (int i = 0; i < data.length(); i++) {
+            if (data.charAt(i) > 127) {
+                throw new IllegalArgumentException("Code 128 cannot encode '" + data.charAt(i) + "'");
+            }
+        }
+        return new Barcode(CODE128, data, planCode128(data), (char) 0);
+    }
+
+    /**
+     * Create an EAN-13 barcode from 12 digits, or 13 digits with a valid check digit.
+     *
+     * @throws IllegalArgumentException on bad length, non-digits or a wrong check digit
+     */
+    public static Barcode ean13(String digits) {
+        if (digits == null || (digits.length() != 12 && digits.length() != 13)) {
+            throw new IllegalArgumentException("EAN-13 needs 12 or 13 digits");
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') throw new IllegalArgumentException("EAN-13 digit expected: " + c);
+        }
+        char check = (char) ('0' + eanCheckDigit(digits));
+        if (digits.length() == 13 && digits.charAt(12) != check) {
+            throw new IllegalArgumentException("EAN-13 check digit should be " + check);
+        }
+        return new Barcode(EAN13, digits.substring(0, 12) + check, null, (char) 0);
+    }
+
+    /**
+     * Create a QR code.
+     *
+     * @param errorCorrection One of 'L', 'M', 'Q' or 'H'
+     * @throws IllegalArgumentException if the data does not fit in the largest symbol
+     */
+    public static Barcode qr(String data, char errorCorrection) {
+        int level = QR_LEVELS.indexOf(errorCorrection);
+        if (level < 0) throw new IllegalArgumentException("Unknown QR level " + errorCorrection);
+        if (data == null || data.length() == 0) throw new IllegalArgumentException("QR data is empty");
+        int bytes = utf8Length(data);
+        if (bytes > QR_MAX_BYTES[level]) {
+            throw new IllegalArgumentException("QR data is " + bytes + " bytes, level "
+                    + errorCorrection + " holds " + QR_MAX_BYTES[level]);
+        }
+        return new Barcode(QR, data, null, errorCorrection);
+    }
+
+    public int getSymbology() {
+        return mSymbology;
+    }
+
+    /**
+     * Return the data. For EAN-13 this always includes the check digit.
+     */
+    public String getData() {
+        return mData;
+    }
+
+    public char getErrorCorrection() {
+        return mErrorCorrection;
+    }
+
+    /**
+     * Return the Code 128 codewords from the start symbol through the check
+     * symbol, without the stop symbol. Null for other symbologies.
+     */
+    int[] getCodewords() {
+        return mCodewords;
+    }
+
+    /**
+     * Return the bars of a linear barcode, one entry per module, true for
+     * black. Quiet zones are not included.
+     *
+     * @throws UnsupportedOperationException for QR codes
+     */
+    public boolean[] getModules() {
+        StringBuilder bits = new StringBuilder();
+        if (mSymbology == CODE128) {
+            for (int codeword : mCodewords) appendWidths(bits, CODE128_PATTERNS[codeword]);
+            appendWidths(bits, CODE128_PATTERNS[STOP]);
+        } else if (mSymbology == EAN13) {
+            String parity = EAN_PARITY[mData.charAt(0) - '0'];
+            bits.append("101");
+            for (int i = 1; i <= 6; i++) {
+                int digit = mData.charAt(i) - '0';
+                bits.append(parity.charAt(i - 1) == '1' ? EAN_G[digit] : EAN_L[digit]);
+            }
+            bits.append("01010");
+            for (int i = 7; i <= 12; i++) bits.append(EAN_R[mData.charAt(i) - '0']);
+            bits.append("101");
+        } else {
+            throw new UnsupportedOperationException("QR codes are not rendered locally");
+        }
+        boolean[] modules = new boolean[bits.length()];
+        for (int i = 0; i < modules.length; i++) modules[i] = bits.charAt(i) == '1';
+        return modules;
+    }
+
+    private static void appendWidths(StringBuilder bits, String widths) {
+        for (int i = 0; i < widths.length(); i++) {
+            char module = (i & 1) == 0 ? '1' : '0';
+            for (int n = widths.charAt(i) - '0'; n > 0; n--) bits.append(module);
+        }
+    }
+
+    static int eanCheckDigit(String digits) {
+        int sum = 0;
+        for (int i = 0; i < 12; i++) {
+            int digit = digits.charAt(i) - '0';
+            sum += (i & 1) == 0 ? digit : digit * 3;
+        }
+        return (10 - sum % 10) % 10;
+    }
+
+    /**
+     * Pick code sets with dynamic programming from the end of the data:
+     * cost[i][set] is the fewest codewords needed for data[i..] when the
+     * symbol is in that set at position i. Switching sets costs one codeword,
+     * a single character from the other of A and B can use SHIFT instead.
+     */
+    private static int[] planCode128(String data) {
+        int n = data.length();
+        int[][] cost = new int[n + 1][3];
+        for (int i = n - 1; i >= 0; i--) {
+            int[] stay = new int[3];
+            for (int set = 0; set < 3; set++) stay[set] = stayCost(data, i, set, cost);
+            for (int set = 0; set < 3; set++) {
+                int best = stay[set];
+                for (int other = 0; other < 3; other++) {
+                    if (other != set && stay[other] + 1 < best) best = stay[other] + 1;
+                }
+                cost[i][set] = best;
+            }
+        }
+
+        // Walk the table forwards to emit the codewords
+        int[] out = new int[2 * n + 2];
+        int count = 0;
+        int set = SET_A;
+        for (int s = 0; s < 3; s++) {
+            if (stayCost(data, 0, s, cost) < stayCost(data, 0, set, cost)) set = s;
+        }
+        out[count++] = START_A + set;
+        int i = 0;
+        while (i < n) {
+            int stay = stayCost(data, i, set, cost);
+            if (stay > cost[i][set]) {
+                // Cheaper to switch; find the set that gives the minimum
+                for (int other = 0; other < 3; other++) {
+                    if (other != set && stayCost(data, i, other, cost) + 1 == cost[i][set]) {
+                        out[count++] = other == SET_A ? CODE_A : other == SET_B ? CODE_B : CODE_C;
+                        set = other;
+                        break;
+                    }
+                }
+            }
+            char c = data.charAt(i);
+            if (set == SET_C) {
+                out[count++] = (c - '0') * 10 + (data.charAt(i + 1) - '0');
+                i += 2;
+            } else if (inSet(c, set) && (!inSet(c, 1 - set)
+                    || 1 + cost[i + 1][set] <= shiftCost(data, i, set, cost))) {
+                out[count++] = valueIn(c, set);
+                i++;
+            } else {
+                out[count++] = SHIFT;
+                out[count++] = valueIn(c, 1 - set);
+                i++;
+            }
+        }
+
+        int checksum = out[0];
+        for (int k = 1; k < count; k++) checksum += k * out[k];
+        out[count++] = checksum % 103;
+
+        int[] codewords = new int[count];
+        System.arraycopy(out, 0, codewords, 0, count);
+        return codewords;
+    }
+
+    /**
+     * Cost of encoding data[i..] starting with a character of the given set, without switching first.
+     */
+    private static int stayCost(String data, int i, int set, int[][] cost) {
+        int n = data.length();
+        if (set == SET_C) {
+            if (i + 1 < n && isDigit(data.charAt(i)) && isDigit(data.charAt(i + 1))) {
+                return 1 + cost[i + 2][SET_C];
+            }
+            return Integer.MAX_VALUE / 2;
+        }
+        char c = data.charAt(i);
+        int best = inSet(c, set) ? 1 + cost[i + 1][set] : Integer.MAX_VALUE / 2;
+        return Math.min(best, shiftCost(data, i, set, cost));
+    }
+
+    private static int shiftCost(String data, int i, int set, int[][] cost) {
+        return inSet(data.charAt(i), 1 - set) ? 2 + cost[i + 1][set] : Integer.MAX_VALUE / 2;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean inSet(char c, int set) {
+        return set == SET_A ? c < 96 : c >= 32;
+    }
+
+    private static int valueIn(char c, int set) {
+        if (set == SET_A && c < 32) return c + 64;
+        return c - 32;
+    }
+
+    private static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
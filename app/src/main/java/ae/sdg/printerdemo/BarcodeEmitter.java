@@ -0,0 +1,284 @@
+package ae.sdg.printerdemo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Turns a Barcode into printer commands. The printer's own barcode commands
+ * are used whenever it has them, so a QR code costs its data plus a few
+ * bytes of framing. Only when native support is switched off are linear
+ * codes drawn locally and sent as a bitmap.
+ */
+public class BarcodeEmitter {
+
+    // Command languages
+    public static final int DIALECT_CPCL = 0;
+    public static final int DIALECT_ESCPOS = 1;
+
+    private static final byte GS = 0x1D;
+    // GS k carries the data length in one byte
+    private static final int ESCPOS_MAX_DATA = 255;
+    private static final String CRLF = "\r\n";
+
+    // Member fields
+    private final int mDialect;
+    private boolean mNativeSupported = true;
+    private int mModuleWidth = 2;
+    private int mHeight = 80;
+
+    /**
+     * Constructor.
+     *
+     * @param dialect DIALECT_CPCL or DIALECT_ESCPOS
+     */
+    public BarcodeEmitter(int dialect) {
+        mDialect = dialect;
+    }
+
+    /**
+     * Choose between the printer's barcode commands and local rendering.
+     */
+    public BarcodeEmitter setNativeSupported(boolean nativeSupported) {
+        mNativeSupported = nativeSupported;
+        return this;
+    }
+
+    /**
+     * Set the width of the narrowest bar, and the size of a QR module, in dots.
+     */
+    public BarcodeEmitter setModuleWidth(int moduleWidth) {
+        mModuleWidth = moduleWidth;
+        return this;
+    }
+
+    /**
+     * Set the bar height of linear codes, in dots.
+     */
+    public BarcodeEmitter setHeight(int height) {
+        mHeight = height;
+        return this;
+    }
+
+    /**
+     * Return the commands that print the barcode. X and Y are only used by
+     * CPCL; ESC/POS prints at the current position.
+     *
+     * @throws UnsupportedOperationException for a QR code when native support is off
+     * @throws IllegalArgumentException         for Code 128 data too long for ESC/POS
+     */
+    public byte[] emit(Barcode barcode, int x, int y) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        // CPCL command lines cannot carry control characters
+        boolean useNative = mNativeSupported && (mDialect == DIALECT_ESCPOS
+                || barcode.getSymbology() != Barcode.CODE128 || isPrintable(barcode.getData()));
+        if (useNative) {
+            if (mDialect == DIALECT_CPCL) {
+                emitCpcl(out, barcode, x, y);
+            } else {
+                emitEscPos(out, barcode);
+            }
+        } else if (barcode.getSymbology() == Barcode.QR) {
+            throw new UnsupportedOperationException("QR codes need native printer support");
+        } else if (mDialect == DIALECT_CPCL) {
+            emitCpclRaster(out, barcode.getModules(), x, y);
+        } else {
+            emitEscPosRaster(out, barcode.getModules());
+        }
+        return out.toByteArray();
+    }
+
+    private void emitCpcl(ByteArrayOutputStream out, Barcode barcode, int x, int y) {
+        switch (barcode.getSymbology()) {
+            case Barcode.CODE128:
+                write(out, "BARCODE 128 " + mModuleWidth + " 1 " + mHeight + " " + x + " " + y + " "
+                        + barcode.getData() + CRLF);
+                break;
+            case Barcode.EAN13:
+                // The printer appends the check digit itself
+                write(out, "BARCODE EAN13 " + mModuleWidth + " 1 " + mHeight + " " + x + " " + y + " "
+                        + barcode.getData().substring(0, 12) + CRLF);
+                break;
+            case Barcode.QR:
+                write(out, "BARCODE QR " + x + " " + y + " M 2 U " + mModuleWidth + CRLF);
+                write(out, barcode.getErrorCorrection() + "A,");
+                writeUtf8(out, barcode.getData());
+                write(out, CRLF + "ENDQR" + CRLF);
+                break;
+        }
+    }
+
+    private void emitEscPos(ByteArrayOutputStream out, Barcode barcode) {
+        // GS h: bar height, GS w: module width
+        out.write(GS);
+        out.write('h');
+        out.write(Math.min(255, mHeight));
+        out.write(GS);
+        out.write('w');
+        out.write(mModuleWidth);
+
+        switch (barcode.getSymbology()) {
+            case Barcode.CODE128: {
+                byte[] data = escPosCode128(barcode.getCodewords());
+                if (data.length > ESCPOS_MAX_DATA) {
+                    throw new IllegalArgumentException("Code 128 data is " + data.length
+                            + " bytes, GS k takes " + ESCPOS_MAX_DATA);
+                }
+                out.write(GS);
+                out.write('k');
+                out.write(73);
+                out.write(data.length);
+                out.write(data, 0, data.length);
+                break;
+            }
+            case Barcode.EAN13: {
+                out.write(GS);
+                out.write('k');
+                out.write(67);
+                out.write(12);
+                write(out, barcode.getData().substring(0, 12));
+                break;
+            }
+            case Barcode.QR: {
+                byte[] data;
+                try {
+                    data = barcode.getData().getBytes("UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+                // Model 2, module size, error correction, store the data, print it
+                writeQrFunction(out, new byte[]{0x31, 0x41, 0x32, 0x00});
+                writeQrFunction(out, new byte[]{0x31, 0x43, (byte) mModuleWidth});
+                writeQrFunction(out, new byte[]{0x31, 0x45, (byte) (0x30 + "LMQH".indexOf(barcode.getErrorCorrection()))});
+                int length = data.length + 3;
+                out.write(GS);
+                out.write('(');
+                out.write('k');
+                out.write(length & 0xff);
+                out.write(length >> 8);
+                out.write(0x31);
+                out.write(0x50);
+                out.write(0x30);
+                out.write(data, 0, data.length);
+                writeQrFunction(out, new byte[]{0x31, 0x51, 0x30});
+                break;
+            }
+        }
+    }
+
+    /**
+     * Translate planned codewords into the GS k 73 data format, where "{A",
+     * "{B", "{C" select a code set, "{S" shifts and "{1" is FNC1. The printer
+     * adds the check symbol, so it is left out.
+     */
+    static byte[] escPosCode128(int[] codewords) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(codewords.length * 2);
+        int set = codewords[0] - Barcode.START_A;
+        data.write('{');
+        data.write('A' + set);
+        boolean shifted = false;
+        for (int i = 1; i < codewords.length - 1; i++) {
+            int value = codewords[i];
+            int current = shifted ? 1 - set : set;
+            shifted = false;
+            if (value == Barcode.SHIFT && set != 2) {
+                data.write('{');
+                data.write('S');
+                shifted = true;
+            } else if (value == Barcode.FNC1) {
+                data.write('{');
+                data.write('1');
+            } else if (value == Barcode.CODE_C && current != 2) {
+                data.write('{');
+                data.write('C');
+                set = 2;
+            } else if (value == Barcode.CODE_B && current != 1) {
+                data.write('{');
+                data.write('B');
+                set = 1;
+            } else if (value == Barcode.CODE_A && current != 0) {
+                data.write('{');
+                data.write('A');
+                set = 0;
+            } else if (current == 2) {
+                data.write(value);
+            } else {
+                int c = current == 0 && value >= 64 ? value - 64 : value + 32;
+                if (c == '{') data.write('{');
+                data.write(c);
+            }
+        }
+        return data.toByteArray();
+    }
+
+    private void writeQrFunction(ByteArrayOutputStream out, byte[] function) {
+        out.write(GS);
+        out.write('(');
+        out.write('k');
+        out.write(function.length);
+        out.write(0);
+        out.write(function, 0, function.length);
+    }
+
+    /**
+     * Fallback: CPCL EG expanded graphics, one hex encoded bitmap.
+     */
+    private void emitCpclRaster(ByteArrayOutputStream out, boolean[] modules, int x, int y) {
+        byte[] row = rasterRow(modules);
+        write(out, "EG " + row.length + " " + mHeight + " " + x + " " + y + " ");
+        StringBuilder hex = new StringBuilder(row.length * 2);
+        for (byte b : row) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        String line = hex.toString().toUpperCase();
+        for (int i = 0; i < mHeight; i++) write(out, line);
+        write(out, CRLF);
+    }
+
+    /**
+     * Fallback: ESC/POS GS v 0 raster image.
+     */
+    private void emitEscPosRaster(ByteArrayOutputStream out, boolean[] modules) {
+        byte[] row = rasterRow(modules);
+        out.write(GS);
+        out.write('v');
+        out.write('0');
+        out.write(0);
+        out.write(row.length & 0xff);
+        out.write(row.length >> 8);
+        out.write(mHeight & 0xff);
+        out.write(mHeight >> 8);
+        for (int i = 0; i < mHeight; i++) out.write(row, 0, row.length);
+    }
+
+    /**
+     * Scale the modules to dots and pack them eight to a byte, MSB first.
+     */
+    private byte[] rasterRow(boolean[] modules) {
+        int dots = modules.length * mModuleWidth;
+        byte[] row = new byte[(dots + 7) / 8];
+        for (int dot = 0; dot < dots; dot++) {
+            if (modules[dot / mModuleWidth]) row[dot >> 3] |= 0x80 >> (dot & 7);
+        }
+        return row;
+    }
+
+    private static boolean isPrintable(String data) {
+        for (int i = 0; i < data.length(); i++) {
+            if (data.charAt(i) < 32) return false;
+        }
+        return true;
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+        for (int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+    }
+
+    private static void writeUtf8(ByteArrayOutputStream out, String s) {
+        try {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.write(bytes, 0, bytes.length);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
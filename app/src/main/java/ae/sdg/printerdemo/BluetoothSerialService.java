@@ -23,14 +23,15 @@ import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.ganesh.iarabic.arabic864;
-
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
@@ -38,7 +39,7 @@ import java.util.UUID;
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
  */
-public class BluetoothSerialService {
+public class BluetoothSerialService implements PrintTransport {
     // Debugging
     private static final String TAG = "BluetoothReadService";
     private static final boolean D = true;
@@ -55,14 +56,26 @@ public class BluetoothSerialService {
     public static final String TOAST = "toast";
 
 
+    /**
+     * Receives the bytes read from the printer. Called on the ConnectedThread,
+     * so implementations must return quickly and not keep the buffer.
+     */
+    public interface OnReadListener {
+        void onRead(byte[] buffer, int length);
+    }
+
     private static final UUID SerialPortServiceClass_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
+    private final DeviceRegistry mRegistry;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
     private int mState;
+    private String mConnectedAddress;
+    private volatile WireTrace mWireTrace;
+    private final CopyOnWriteArrayList<OnReadListener> mReadListeners = new CopyOnWriteArrayList<OnReadListener>();
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -70,10 +83,6 @@ public class BluetoothSerialService {
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
-    //declaration for in main class
-    public arabic864 araconvert=null;
-
-
     /**
      * Constructor. Prepares a new BluetoothChat session.
      *
@@ -84,8 +93,7 @@ public class BluetoothSerialService {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = STATE_NONE;
         mHandler = handler;
-        //instance for Arabic under onCreate
-        araconvert = new arabic864();
+        mRegistry = DeviceRegistry.getInstance(context);
     }
 
     /**
@@ -96,11 +104,41 @@ public class BluetoothSerialService {
     private synchronized void setState(int state) {
         if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
         mState = state;
+        if (state != STATE_CONNECTED) mConnectedAddress = null;
 
         // Give the new state to the Handler so the UI Activity can update
         mHandler.obtainMessage(MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
     }
 
+    /**
+     * Register a listener for incoming bytes.
+     */
+    public void addOnReadListener(OnReadListener listener) {
+        mReadListeners.addIfAbsent(listener);
+    }
+
+    public void removeOnReadListener(OnReadListener listener) {
+        mReadListeners.remove(listener);
+    }
+
+    /**
+     * Record the traffic of the link into the given trace, or null to stop.
+     */
+    public void setWireTrace(WireTrace trace) {
+        mWireTrace = trace;
+    }
+
+    public WireTrace getWireTrace() {
+        return mWireTrace;
+    }
+
+    /**
+     * Return the address of the connected printer, or null.
+     */
+    public synchronized String getConnectedAddress() {
+        return mConnectedAddress;
+    }
+
     /**
      * Return the current connection state.
      */
@@ -182,6 +220,7 @@ public class BluetoothSerialService {
         // Start the thread to manage the connection and perform transmissions
         mConnectedThread = new ConnectedThread(socket);
         mConnectedThread.start();
+        mConnectedAddress = device.getAddress();
 
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(MESSAGE_DEVICE_NAME);
@@ -214,21 +253,31 @@ public class BluetoothSerialService {
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Return true while a ConnectedThread owns the link.
+     */
+    public synchronized boolean isConnected() {
+        return mState == STATE_CONNECTED;
+    }
+
+    /**
+     * Write raw bytes to the ConnectedThread in an unsynchronized manner.
      *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @param buffer The bytes to write
+     * @param offset Start offset in the buffer
+     * @param length Number of bytes to write
+     * @return false if not connected or the write failed
+     * @see ConnectedThread#send(byte[], int, int)
      */
-    public void write(byte[] out) {
+    public boolean send(byte[] buffer, int offset, int length) {
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
+            if (mState != STATE_CONNECTED) return false;
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        return r.send(buffer, offset, length);
     }
 
     /**
@@ -262,24 +311,16 @@ public class BluetoothSerialService {
     /**
      * This thread runs while attempting to make an outgoing connection
      * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * succeeds or fails. The socket strategy that worked last time for
+     * this device is tried first, then the others.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
+        private volatile BluetoothSocket mmSocket;
+        private volatile boolean mmCancelled;
         private final BluetoothDevice mmDevice;
 
         public ConnectThread(BluetoothDevice device) {
             mmDevice = device;
-            BluetoothSocket tmp = null;
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                tmp = device.createRfcommSocketToServiceRecord(SerialPortServiceClass_UUID);
-            } catch (IOException e) {
-                Log.e(TAG, "create() failed", e);
-            }
-            mmSocket = tmp;
         }
 
         public void run() {
@@ -289,37 +330,87 @@ public class BluetoothSerialService {
             // Always cancel discovery because it will slow down a connection
             mAdapter.cancelDiscovery();
 
+            String[] strategies = mRegistry.getStrategies(mmDevice.getAddress());
+            long start = SystemClock.elapsedRealtime();
+            String strategy = null;
+            for (String candidate : strategies) {
+                if (mmCancelled) return;
+                if (tryConnect(candidate)) {
+                    strategy = candidate;
+                    break;
+                }
+            }
+            if (strategy == null) {
+                if (!mmCancelled) connectionFailed();
+                // Start the service over to restart listening mode
+                //BluetoothSerialService.this.start();
+                return;
+            }
+            long latency = SystemClock.elapsedRealtime() - start;
+            if (D) Log.d(TAG, "connected in " + latency + "ms using " + strategy);
+            mRegistry.recordConnect(mmDevice.getAddress(), mmDevice.getName(), latency, strategy);
+
+            // Reset the ConnectThread because we're done. cancel() runs under
+            // the same lock, so a stop() or a newer connect() that got in while
+            // the socket was connecting wins and the socket is dropped.
+            synchronized (BluetoothSerialService.this) {
+                if (mmCancelled || mConnectThread != this) {
+                    closeSocket();
+                    return;
+                }
+                mConnectThread = null;
+
+                // Start the connected thread
+                connected(mmSocket, mmDevice);
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of cancelled connect socket failed", e);
+            }
+        }
+
+        private boolean tryConnect(String strategy) {
+            // Get a BluetoothSocket for a connection with the
+            // given BluetoothDevice
+            try {
+                if (DeviceRegistry.STRATEGY_INSECURE.equals(strategy)) {
+                    mmSocket = mmDevice.createInsecureRfcommSocketToServiceRecord(SerialPortServiceClass_UUID);
+                } else {
+                    mmSocket = mmDevice.createRfcommSocketToServiceRecord(SerialPortServiceClass_UUID);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "create() failed", e);
+                return false;
+            }
+
             // Make a connection to the BluetoothSocket
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
                 mmSocket.connect();
+                return true;
             } catch (IOException e) {
-                connectionFailed();
-                Log.e(TAG, "unable to close() socket during connection failure", e);
+                Log.e(TAG, strategy + " connect() failed", e);
                 // Close the socket
                 try {
                     mmSocket.close();
                 } catch (IOException e2) {
                     Log.e(TAG, "unable to close() socket during connection failure", e2);
                 }
-                // Start the service over to restart listening mode
-                //BluetoothSerialService.this.start();
-                return;
+                return false;
             }
-
-            // Reset the ConnectThread because we're done
-            synchronized (BluetoothSerialService.this) {
-                mConnectThread = null;
-            }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice);
         }
 
         public void cancel() {
+            mmCancelled = true;
+            BluetoothSocket socket = mmSocket;
+            if (socket == null) return;
             try {
-                mmSocket.close();
+                socket.close();
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
@@ -351,7 +442,7 @@ public class BluetoothSerialService {
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmOutStream = tmpOut != null ? new TracedOutputStream(tmpOut) : null;
         }
 
         /*
@@ -411,8 +502,14 @@ public class BluetoothSerialService {
                     // Send the obtained bytes to the UI Activity
                     //mHandler.obtainMessage(BlueTerm.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
 
-                    String a = buffer.toString();
-                    a = "";
+                    // Hand replies such as status answers to the listeners
+                    if (bytes > 0) {
+                        WireTrace trace = mWireTrace;
+                        if (trace != null) trace.record(WireTrace.DIRECTION_IN, buffer, 0, bytes);
+                        for (OnReadListener listener : mReadListeners) {
+                            listener.onRead(buffer, bytes);
+                        }
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "disconnected", e);
                     connectionLost();
@@ -422,67 +519,22 @@ public class BluetoothSerialService {
         }
 
         /**
-         * Write to the connected OutStream.
+         * Write raw bytes to the connected OutStream. Used by the job
+         * scheduler, which sends one form at a time, so the UI Activity is
+         * not told about every write.
          *
          * @param buffer The bytes to write
+         * @param offset Start offset in the buffer
+         * @param length Number of bytes to write
+         * @return false if the write failed
          */
-        public void write(byte[] buffer) {
+        public boolean send(byte[] buffer, int offset, int length) {
             try {
-
-//                //switching to Eazy mode for placing the texts in right place of receipt
-//                byte[] easymode = new byte[] {0x1b,0x45,0x5a};
-//                mmOutStream.write(easymode);
-//                //start of text printing
-//                // Y = Vertical line number/position
-//                // X = Horizontal position of the text
-//                //PRINT is called once before printing rows with positions
-//                //should end with curly bracket }. Look at the bottom of this code
-//                // Since Arabic conversion output is byte array
-//                //all the string commands are sent split and sent as bytes
-//                int Y=10;
-//                int X=40;
-//                String easyinit = "{PRINT:";
-//                mmOutStream.write(easyinit.getBytes());
-//                //ARABT is the Unicode font loaded in PR3
-//                String lineseq1="@"+ Y +"," + X +":ARABT,HMULT2,VMULT2|";
-//                mmOutStream.write(lineseq1.getBytes());
-//                mmOutStream.write("Sample Receipt".getBytes());
-//                mmOutStream.write("|".getBytes());
-//                //change the horizontal position only for printing Arabic on the right
-//                X=490;
-//                String lineseq2="@"+ Y +"," + X +":ARABT,HMULT2,VMULT2|";
-//                mmOutStream.write(lineseq2.getBytes());
-//                mmOutStream.write(araconvert.Convert("استلام العينة",true));
-//                mmOutStream.write("|".getBytes());
-//                //Ending curly bracket for {PRINT in the beginning
-//                mmOutStream.write("}".getBytes());
-//                // changing from eazy mode to line print mode
-//                mmOutStream.write("{LP}".getBytes());
-                
-                // Arabfont select arabic font(ESC w q). q--> is the ID font reported by the printer once the arabic font TTF has been loaded.
-                byte[] arabFont = new byte[]{0x1B, 0x77, 0x48, 0x0D};
-                byte[] arabChar = new byte[]{(byte) 0xd5, (byte) 0xd6, (byte) 0xd7, (byte) 0xed, (byte) 0xee, 0x0D};
-
-                //Printing example using a downloaded arabic font "Traditional Arabic (0x71) " and codepage 864
-                mmOutStream.write(araconvert.Convert("استلام العينة",true));
-//                mmOutStream.write("مثال عربى".getBytes());
-                mmOutStream.write("\n".getBytes());
-                mmOutStream.write(arabFont);
-
-                mmOutStream.write(arabChar);
-                String testArabString = ("بيتر زاهر");
-//                String Reversed = new StringBuffer(testArabString).reverse().toString();
-//                byte[] reservedByteArray = Reversed.getBytes();
-//                mmOutStream.write(reservedByteArray);
-
-                mmOutStream.write("\n\n".getBytes("Cp1256"));
-                mmOutStream.write(buffer);
-                mmOutStream.write(araconvert.Convert(testArabString,true));
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(MESSAGE_WRITE, buffer.length, -1, buffer)
-                        .sendToTarget();
+                mmOutStream.write(buffer, offset, length);
+                return true;
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                Log.e(TAG, "Exception during send", e);
+                return false;
             }
         }
 
@@ -494,4 +546,27 @@ public class BluetoothSerialService {
             }
         }
     }
+
+    /**
+     * Passes every write through to the socket and records it into the wire
+     * trace while one is set.
+     */
+    private class TracedOutputStream extends FilterOutputStream {
+
+        TracedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            WireTrace trace = mWireTrace;
+            if (trace != null) trace.record(WireTrace.DIRECTION_OUT, buffer, offset, length);
+        }
+    }
 }
@@ -0,0 +1,352 @@
+package ae.sdg.printerdemo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Prints one label per record of a dataset, such as a price change run of
+ * shelf labels. Records are read, rendered and queued on a thread of their
+ * own, and at most WINDOW labels are queued at a time: the next record is
+ * only read once the printer has taken an earlier one. Memory therefore does
+ * not grow with the dataset.
+ *
+ * Every label sent is acknowledged by its job completing. The number of
+ * records acknowledged in order is stored under the run ID on every
+ * acknowledgement, so a run that is interrupted by a lost link or a crash
+ * resumes after the last label that was printed when it is started again
+ * with the same ID. The checkpoint also records the version of the dataset
+ * it counts; a dataset that changed since is printed from the top.
+ */
+public class BulkPrintRun {
+    // Debugging
+    private static final String TAG = "BulkPrintRun";
+    private static final boolean D = true;
+
+    private static final String PREFS_NAME = "bulk_print";
+    // Appended to the run ID for the key of the dataset version
+    private static final String VERSION_SUFFIX = "#version";
+
+    // Labels queued at once
+    private static final int WINDOW = 8;
+    // Progress is reported at most this often
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    /**
+     * Progress of a run. Called on the run's thread.
+     */
+    public interface OnProgressListener {
+        /**
+         * @param printed        Records acknowledged, including those of earlier attempts
+         * @param labelsPerSecond Rate of this attempt
+         */
+        void onProgress(int printed, float labelsPerSecond);
+
+        /**
+         * @param printed  Records acknowledged
+         * @param complete true if the whole dataset was printed
+         */
+        void onFinished(int printed, boolean complete);
+    }
+
+    /**
+     * Keeps the number of records each run has printed. save() is called on
+     * the dispatch thread for every label, so it must not block on storage.
+     */
+    public interface CheckpointStore {
+        /**
+         * Return the records printed from the given version of the dataset,
+         * or 0 if the checkpoint was saved for another version.
+         */
+        int load(String runId, String version);
+
+        void save(String runId, String version, int printed);
+
+        void clear(String runId);
+    }
+
+    /**
+     * Stores checkpoints in SharedPreferences. apply() updates memory at once
+     * and writes to disk in the background, so only the disk writes batch up.
+     */
+    private static class PreferencesStore implements CheckpointStore {
+        private final SharedPreferences mPrefs;
+
+        PreferencesStore(Context context) {
+            mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        }
+
+        @Override
+        public int load(String runId, String version) {
+            if (!version.equals(mPrefs.getString(runId + VERSION_SUFFIX, null))) return 0;
+            return mPrefs.getInt(runId, 0);
+        }
+
+        @Override
+        public void save(String runId, String version, int printed) {
+            mPrefs.edit().putString(runId + VERSION_SUFFIX, version).putInt(runId, printed).apply();
+        }
+
+        @Override
+        public void clear(String runId) {
+            mPrefs.edit().remove(runId + VERSION_SUFFIX).remove(runId).apply();
+        }
+    }
+
+    // Member fields
+    private final PrintJobScheduler mScheduler;
+    private final LabelTemplate mTemplate;
+    private final String mRunId;
+    private final String mVersion;
+    private final CheckpointStore mCheckpoints;
+    private final boolean[] mAcked = new boolean[WINDOW];
+    private final PrintJob[] mQueued = new PrintJob[WINDOW];
+    private OnProgressListener mListener;
+    private RunThread mThread;
+    private int mNextAck;
+    private int mInFlight;
+    private boolean mFailed;
+    private boolean mCancelled;
+
+    /**
+     * Constructor.
+     *
+     * @param context   Used to store the checkpoint
+     * @param scheduler Where labels are queued, at PRIORITY_BULK
+     * @param template  The label every record is rendered with
+     * @param runId     Names the run for resuming, such as the dataset path
+     * @param version   Changes whenever the dataset does, such as its size and modification time
+     */
+    public BulkPrintRun(Context context, PrintJobScheduler scheduler, LabelTemplate template, String runId,
+                        String version) {
+        this(new PreferencesStore(context), scheduler, template, runId, version);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param checkpoints Where the checkpoint is kept
+     * @param scheduler   Where labels are queued, at PRIORITY_BULK
+     * @param template    The label every record is rendered with
+     * @param runId       Names the run for resuming, such as the dataset path
+     * @param version     Changes whenever the dataset does, such as its size and modification time
+     */
+    public BulkPrintRun(CheckpointStore checkpoints, PrintJobScheduler scheduler, LabelTemplate template,
+                        String runId, String version) {
+        mScheduler = scheduler;
+        mTemplate = template;
+        mRunId = runId;
+        mVersion = version;
+        mCheckpoints = checkpoints;
+    }
+
+    public void setOnProgressListener(OnProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Return the number of records printed by earlier attempts of this run,
+     * on this version of the dataset.
+     */
+    public int getCheckpoint() {
+        return mCheckpoints.load(mRunId, mVersion);
+    }
+
+    /**
+     * Forget the checkpoint so the next start prints the dataset from the top.
+     */
+    public void clearCheckpoint() {
+        mCheckpoints.clear(mRunId);
+    }
+
+    /**
+     * Start printing the dataset, skipping the records printed before. The
+     * reader is closed when the run ends.
+     */
+    public synchronized void start(DatasetReader dataset) {
+        if (mThread != null) throw new IllegalStateException("already started");
+        mThread = new RunThread(dataset);
+        mThread.start();
+    }
+
+    /**
+     * Stop the run. Labels already queued and not yet started are dropped.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    private final PrintJob.OnCompletionListener mAckListener = new PrintJob.OnCompletionListener() {
+        @Override
+        public void onJobCompleted(PrintJob job) {
+            synchronized (BulkPrintRun.this) {
+                int record = ((BulkJob) job).mRecord;
+                mQueued[record % WINDOW] = null;
+                mAcked[record % WINDOW] = true;
+                int acked = mNextAck;
+                while (mAcked[mNextAck % WINDOW]) {
+                    mAcked[mNextAck % WINDOW] = false;
+                    mNextAck++;
+                }
+                if (mNextAck != acked) mCheckpoints.save(mRunId, mVersion, mNextAck);
+                mInFlight--;
+                BulkPrintRun.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void onJobFailed(PrintJob job) {
+            synchronized (BulkPrintRun.this) {
+                mQueued[((BulkJob) job).mRecord % WINDOW] = null;
+                mFailed = true;
+                mInFlight--;
+                BulkPrintRun.this.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * A label that knows which record it was rendered from.
+     */
+    private static class BulkJob extends PrintJob {
+        final int mRecord;
+
+        BulkJob(byte[] data, String source, int record) {
+            super(data, PRIORITY_BULK, source);
+            mRecord = record;
+        }
+    }
+
+    /**
+     * Reads, renders and queues the records, waiting for acknowledgements
+     * whenever the window is full.
+     */
+    private class RunThread extends Thread {
+        private final DatasetReader mmDataset;
+
+        RunThread(DatasetReader dataset) {
+            mmDataset = dataset;
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mRunThread " + mRunId);
+            setName("BulkPrintRun");
+
+            int resumeAt = getCheckpoint();
+            int record = 0;
+            boolean complete = false;
+            long start = System.nanoTime();
+            long lastProgress = 0;
+            synchronized (BulkPrintRun.this) {
+                mNextAck = resumeAt;
+            }
+            try {
+                Map<String, String> values;
+                while (true) {
+                    synchronized (BulkPrintRun.this) {
+                        // Labels are acknowledged in order, so this also bounds mInFlight
+                        while (record - mNextAck >= WINDOW && !mFailed && !mCancelled) {
+                            BulkPrintRun.this.wait();
+                        }
+                        if (mFailed || mCancelled) break;
+                    }
+
+                    long now = System.nanoTime();
+                    if (mListener != null && now - lastProgress > PROGRESS_INTERVAL_MS * 1000000L) {
+                        lastProgress = now;
+                        reportProgress(resumeAt, start, now);
+                    }
+
+                    values = mmDataset.next();
+                    if (values == null) {
+                        complete = true;
+                        break;
+                    }
+                    if (record++ < resumeAt) continue;
+
+                    PrintJob job = new BulkJob(mTemplate.render(values), mRunId, record - 1);
+                    job.setOnCompletionListener(mAckListener);
+                    synchronized (BulkPrintRun.this) {
+                        mQueued[(record - 1) % WINDOW] = job;
+                        mInFlight++;
+                    }
+                    mScheduler.submit(job);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "unable to read the dataset", e);
+                complete = false;
+            } catch (IllegalArgumentException e) {
+                // Such as a barcode value its symbology cannot take
+                Log.e(TAG, "unable to render record " + record, e);
+                complete = false;
+            } catch (InterruptedException e) {
+                Log.e(TAG, "interrupted", e);
+                complete = false;
+            } finally {
+                try {
+                    mmDataset.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of the dataset failed", e);
+                }
+            }
+
+            // Wait for the labels still queued. After a failure the labels
+            // behind it would print out of order, so they are dropped.
+            try {
+                while (true) {
+                    PrintJob[] dropped = null;
+                    synchronized (BulkPrintRun.this) {
+                        if (mInFlight == 0) {
+                            complete &= !mFailed && !mCancelled;
+                            break;
+                        }
+                        if (mFailed || mCancelled) {
+                            dropped = mQueued.clone();
+                        } else {
+                            BulkPrintRun.this.wait();
+                        }
+                    }
+                    if (dropped != null) {
+                        for (PrintJob job : dropped) {
+                            if (job != null) mScheduler.cancel(job);
+                        }
+                        synchronized (BulkPrintRun.this) {
+                            if (mInFlight > 0) BulkPrintRun.this.wait(PROGRESS_INTERVAL_MS);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "interrupted", e);
+                complete = false;
+            }
+
+            int printed;
+            synchronized (BulkPrintRun.this) {
+                printed = mNextAck;
+            }
+            if (complete) {
+                clearCheckpoint();
+            } else {
+                mCheckpoints.save(mRunId, mVersion, printed);
+            }
+            if (D) Log.d(TAG, mRunId + " printed " + printed + (complete ? ", complete" : ", stopped"));
+            if (mListener != null) {
+                reportProgress(resumeAt, start, System.nanoTime());
+                mListener.onFinished(printed, complete);
+            }
+        }
+
+        private void reportProgress(int resumeAt, long start, long now) {
+            int printed;
+            synchronized (BulkPrintRun.this) {
+                printed = mNextAck;
+            }
+            float seconds = (now - start) / 1e9f;
+            mListener.onProgress(printed, seconds > 0 ? (printed - resumeAt) / seconds : 0);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package ae.sdg.printerdemo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Probes a printer once, on the first connect, and keeps its PrinterProfile.
+ * The probe is one pipelined getvar batch written by the scheduler's dispatch
+ * thread; the replies come back through the ConnectedThread read loop. Jobs
+ * queued meanwhile are held until the answer or a timeout, so they are
+ * compiled against the real target. Later connects load the stored profile
+ * and only ask for the firmware version, without holding jobs; a printer
+ * that reports other firmware than the profile was probed with is probed
+ * again.
+ */
+public class CapabilityProfiler implements PrintJobScheduler.Gate, SgdClient.Callback {
+    // Debugging
+    private static final String TAG = "CapabilityProfiler";
+    private static final boolean D = true;
+
+    // Set-Get-Do variables, in the order of the fields they fill
+    private static final String VAR_MODEL = "device.product_name";
+    private static final String VAR_FIRMWARE = "appl.name";
+    private static final String VAR_WIDTH = "ezpl.print_width";
+    private static final String VAR_FONTS = "file.dir";
+    private static final String VAR_LANGUAGES = "device.languages";
+    private static final String VAR_CODEPAGES = "device.codepages";
+
+    // How codepage names are spelled before their number
+    private static final String[] CODEPAGE_PREFIXES = {"windows-", "ibm-", "ibm", "cp"};
+
+    // Jobs are held for at most this long while a probe is out
+    private static final long PROBE_TIMEOUT_MS = 3000;
+    private static final long PROBE_CHECK_MS = 100;
+
+    // Member fields
+    private final SharedPreferences mPrefs;
+    private final DeviceRegistry mRegistry;
+    private final SgdClient mSgd;
+    private final String[] mQueryVars = {
+            VAR_MODEL, VAR_FIRMWARE, VAR_WIDTH, VAR_FONTS, VAR_LANGUAGES, VAR_CODEPAGES
+    };
+    private volatile PrinterProfile mProfile = new PrinterProfile(null);
+    private String mAddress;
+    private boolean mProbeNeeded;
+    private long mProbeSentAt;
+    // Set while the firmware of a stored profile is still to be checked,
+    // and while that question is out
+    private boolean mCheckNeeded;
+    private boolean mCheckOut;
+
+    /**
+     * Constructor.
+     *
+     * @param context Used to load and store profiles
+     * @param sgd     The getvar client, registered with the serial service
+     */
+    public CapabilityProfiler(Context context, SgdClient sgd) {
+        this(PrinterProfile.preferences(context), DeviceRegistry.getInstance(context), sgd);
+    }
+
+    /**
+     * Constructor for profiles kept in the given preferences.
+     */
+    CapabilityProfiler(SharedPreferences prefs, DeviceRegistry registry, SgdClient sgd) {
+        mPrefs = prefs;
+        mRegistry = registry;
+        mSgd = sgd;
+    }
+
+    /**
+     * Load the stored profile of a newly connected printer, or schedule a probe.
+     */
+    public synchronized void onConnected(String address) {
+        mAddress = address;
+        PrinterProfile stored = address != null ? PrinterProfile.load(mPrefs, address) : null;
+        if (stored != null) {
+            if (D) Log.d(TAG, "using stored " + stored);
+            mProfile = stored;
+            mProbeNeeded = false;
+            mCheckNeeded = true;
+        } else {
+            mProfile = new PrinterProfile(address);
+            mProbeNeeded = address != null;
+            mCheckNeeded = false;
+        }
+        mProbeSentAt = 0;
+        mCheckOut = false;
+    }
+
+    /**
+     * Return the profile of the connected printer. Before a probe has
+     * answered it holds the defaults.
+     */
+    public PrinterProfile getProfile() {
+        return mProfile;
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return !mProbeNeeded || (mProbeSentAt != 0
+                && PrintJobScheduler.now() - mProbeSentAt > PROBE_TIMEOUT_MS);
+    }
+
+    @Override
+    public long onDispatchGap(long now, int queued) {
+        boolean check = false;
+        synchronized (this) {
+            if (mProbeNeeded) {
+                if (mProbeSentAt != 0) return PROBE_CHECK_MS;
+                mProbeSentAt = now;
+            } else if (mCheckNeeded) {
+                mCheckNeeded = false;
+                mCheckOut = true;
+                check = true;
+            } else if (mCheckOut) {
+                return PROBE_CHECK_MS;
+            } else {
+                return Long.MAX_VALUE;
+            }
+        }
+        if (check) {
+            // Comes back here if the firmware changed
+            if (!mSgd.getvar(mFirmwareCheck, VAR_FIRMWARE)) {
+                synchronized (this) {
+                    mCheckOut = false;
+                }
+            }
+            return PROBE_CHECK_MS;
+        }
+        if (D) Log.d(TAG, "probing " + mAddress);
+        if (!mSgd.getvar(this, mQueryVars)) {
+            synchronized (this) {
+                mProbeSentAt = 0;
+            }
+        }
+        return PROBE_CHECK_MS;
+    }
+
+    @Override
+    public void onValues(String[] names, String[] values) {
+        PrinterProfile profile;
+        synchronized (this) {
+            if (!mProbeNeeded) return;
+            profile = new PrinterProfile(mAddress);
+            for (int i = 0; i < names.length; i++) {
+                apply(profile, names[i], values[i].trim());
+            }
+            mProfile = profile;
+            mProbeNeeded = false;
+        }
+        if (D) Log.d(TAG, "probed " + profile);
+        profile.save(mPrefs);
+        if (profile.model != null) mRegistry.setModel(profile.address, profile.model);
+    }
+
+    @Override
+    public void onTimeout(String[] names) {
+        // Keep the defaults for this link and try again on the next connect
+        synchronized (this) {
+            mProbeNeeded = false;
+        }
+        if (D) Log.d(TAG, "probe of " + mAddress + " timed out, using defaults");
+    }
+
+    // Probes again when the printer runs other firmware than its stored profile
+    private final SgdClient.Callback mFirmwareCheck = new SgdClient.Callback() {
+        @Override
+        public void onValues(String[] names, String[] values) {
+            String firmware = values[0].trim();
+            synchronized (CapabilityProfiler.this) {
+                mCheckOut = false;
+                if (firmware.length() == 0 || firmware.equals("?")) return;
+                if (mProbeNeeded || firmware.equals(mProfile.firmware)) return;
+                if (D) Log.d(TAG, mAddress + " now runs " + firmware + ", probing again");
+                mProbeNeeded = true;
+                mProbeSentAt = 0;
+            }
+        }
+
+        @Override
+        public void onTimeout(String[] names) {
+            // A printer that does not answer keeps its stored profile
+            synchronized (CapabilityProfiler.this) {
+                mCheckOut = false;
+            }
+        }
+    };
+
+    private static void apply(PrinterProfile profile, String name, String value) {
+        // Unknown variables are answered with "?"
+        if (value.length() == 0 || value.equals("?")) return;
+        if (VAR_MODEL.equals(name)) {
+            profile.model = value;
+        } else if (VAR_FIRMWARE.equals(name)) {
+            profile.firmware = value;
+        } else if (VAR_WIDTH.equals(name)) {
+            profile.paperWidth = parseInt(value, profile.paperWidth);
+        } else if (VAR_FONTS.equals(name)) {
+            // The downloaded font answers to the ID it was built with
+            boolean listed = value.toUpperCase().contains(PrinterProfile.ARABIC_FONT_NAME);
+            profile.arabicFontId = listed ? PrinterProfile.DEFAULT_ARABIC_FONT_ID : 0;
+        } else if (VAR_LANGUAGES.equals(name)) {
+            profile.languages = value;
+        } else if (VAR_CODEPAGES.equals(name)) {
+            profile.codepage = pickCodepage(value);
+        }
+    }
+
+    /**
+     * Pick codepage 864 from the reported list if the printer has it, since
+     * the Arabic text is encoded in it, and otherwise the first one listed.
+     */
+    static String pickCodepage(String reported) {
+        String first = null;
+        for (String entry : reported.split("[\\s,]+")) {
+            String number = codepageNumber(entry);
+            if (number == null) continue;
+            if (PrinterProfile.DEFAULT_CODEPAGE.equals(number)) return number;
+            if (first == null) first = number;
+        }
+        return first != null ? first : PrinterProfile.DEFAULT_CODEPAGE;
+    }
+
+    /**
+     * Return the number of a codepage name such as "864", "CP864" or
+     * "windows-1256", or null for a name that is not a numbered codepage.
+     */
+    private static String codepageNumber(String name) {
+        String number = name.toLowerCase();
+        for (String prefix : CODEPAGE_PREFIXES) {
+            if (number.startsWith(prefix)) {
+                number = number.substring(prefix.length());
+                break;
+            }
+        }
+        if (number.length() == 0) return null;
+        for (int i = 0; i < number.length(); i++) {
+            if (!Character.isDigit(number.charAt(i))) return null;
+        }
+        return number;
+    }
+
+    private static int parseInt(String value, int fallback) {
+        // Values such as "576 dots" carry a unit
+        int end = 0;
+        while (end < value.length() && Character.isDigit(value.charAt(end))) end++;
+        if (end == 0) return fallback;
+        try {
+            return Integer.parseInt(value.substring(0, end));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
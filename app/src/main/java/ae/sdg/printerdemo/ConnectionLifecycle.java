@@ -0,0 +1,395 @@
+package ae.sdg.printerdemo;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Decides when the printer link is open. While jobs keep coming the link is
+ * kept hot: a cheap getvar goes out in the quiet gaps so neither side drops
+ * the RFCOMM channel, and the next job does not pay for a new connect. Once
+ * nothing was printed for the idle window the link is closed to save the
+ * batteries of phone and printer. A link closed that way is opened again
+ * ahead of time when a job is likely, e.g. the order screen opened or a
+ * template started rendering, or at the latest when the next job is queued.
+ *
+ * A link that drops by itself is treated like one closed for being idle, so
+ * the next job opens it again. Links the user closed are left alone until
+ * the user opens one. The printer of a link waiting to be reopened is kept in
+ * SharedPreferences, so a service started again after an idle close still
+ * reopens it. Keepalives are only sent to a
+ * printer that answers getvar; to one that does not they would be noise.
+ * The lifecycle is a scheduler Gate that never holds jobs; it only uses the
+ * dispatch gaps.
+ */
+public class ConnectionLifecycle implements PrintJobScheduler.Gate, PrintJobScheduler.OnSubmitListener,
+        SgdClient.Callback {
+    // Debugging
+    private static final String TAG = "ConnectionLifecycle";
+    private static final boolean D = true;
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final long DEFAULT_KEEPALIVE_MS = 30 * 1000;
+    // Answered by every Set-Get-Do printer and prints nothing
+    private static final String KEEPALIVE_VAR = "device.uptime";
+    private static final String KEY_CLOSED_ADDRESS = "closed_address";
+
+    /**
+     * Something besides print jobs that needs the link, such as an upload.
+     */
+    public interface BusyCheck {
+        boolean isBusy();
+    }
+
+    /**
+     * The link the lifecycle opens and closes; PrintService backs it with
+     * BluetoothSerialService and the DeviceRegistry.
+     */
+    public interface Link {
+        /**
+         * Return one of the BluetoothSerialService STATE_ constants.
+         */
+        int getState();
+
+        String getConnectedAddress();
+
+        void connect(String address);
+
+        void stop();
+
+        /**
+         * Return how long the last connect to a printer took, or 0 if unknown.
+         */
+        long getConnectLatencyMillis(String address);
+    }
+
+    /**
+     * Policy counters. getStats() hands out copies.
+     */
+    public static class Stats {
+        public long keepalives;
+        public long idleCloses;
+        public long prewarms;
+        // Links opened again because a job was queued while closed
+        public long jobReopens;
+        // Jobs that found the link open
+        public long hotSubmits;
+        // Connect time jobs did not pay because a prewarm opened the link
+        // ahead of them, from the measured latency
+        public long savedConnectMillis;
+        public long connectedMillis;
+        public long idleClosedMillis;
+
+        @Override
+        public String toString() {
+            return "keepalives=" + keepalives + " idleCloses=" + idleCloses + " prewarms=" + prewarms
+                    + " jobReopens=" + jobReopens + " hotSubmits=" + hotSubmits
+                    + " saved=" + savedConnectMillis + "ms connected=" + connectedMillis
+                    + "ms closed=" + idleClosedMillis + "ms";
+        }
+    }
+
+    // Member fields
+    private final Link mLink;
+    private final SgdClient mSgd;
+    private final SharedPreferences mPrefs;
+    private final Stats mStats = new Stats();
+    private BusyCheck mBusyCheck;
+    private PrinterHealthMonitor mHealthMonitor;
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT_MS;
+    private long mKeepaliveInterval = DEFAULT_KEEPALIVE_MS;
+    private long mLastActivity;
+    private long mLastKeepalive;
+    // The printer of the open link, or of the one the policy closed
+    private String mAddress;
+    private boolean mConnected;
+    // The link is closed, by the policy or a drop, and the next job reopens it
+    private boolean mIdleClosed;
+    // Set while the user is closing the link
+    private boolean mUserClosing;
+    // Set while the policy itself is opening the link
+    private boolean mReopening;
+    // The link being opened, or open, was opened by a prewarm and no job has used it yet
+    private boolean mPrewarming;
+    private boolean mPrewarmed;
+    // Set while the policy is closing the link; a job or hint meanwhile reopens it after
+    private boolean mClosing;
+    private boolean mReopenAfterClose;
+    private long mStateSince;
+
+    /**
+     * Constructor.
+     *
+     * @param link The link the lifecycle opens and closes
+     * @param sgd  The getvar client the keepalives go through
+     */
+    public ConnectionLifecycle(Link link, SgdClient sgd) {
+        this(link, sgd, null);
+    }
+
+    /**
+     * Constructor that keeps the printer to reopen in the given preferences,
+     * and picks up the one an earlier lifecycle left there.
+     *
+     * @param prefs Where the printer to reopen is kept, or null not to keep it
+     */
+    public ConnectionLifecycle(Link link, SgdClient sgd, SharedPreferences prefs) {
+        mLink = link;
+        mSgd = sgd;
+        mPrefs = prefs;
+        String closed = prefs != null ? prefs.getString(KEY_CLOSED_ADDRESS, null) : null;
+        if (closed != null) {
+            if (D) Log.d(TAG, "link to " + closed + " was closed, the next job reopens it");
+            mAddress = closed;
+            mIdleClosed = true;
+            mStateSince = PrintJobScheduler.now();
+        }
+    }
+
+    /**
+     * Keep the link open while the given check reports work.
+     */
+    public synchronized void setBusyCheck(BusyCheck check) {
+        mBusyCheck = check;
+    }
+
+    /**
+     * Send no keepalives while the monitor finds the printer silent.
+     */
+    public synchronized void setHealthMonitor(PrinterHealthMonitor monitor) {
+        mHealthMonitor = monitor;
+    }
+
+    /**
+     * @param idleMillis      Close the link after this long without jobs, 0 to never close it
+     * @param keepaliveMillis Gap between keepalives while the link is idle
+     */
+    public synchronized void setPolicy(long idleMillis, long keepaliveMillis) {
+        mIdleTimeout = idleMillis;
+        mKeepaliveInterval = keepaliveMillis;
+    }
+
+    /**
+     * A job is likely soon. Opens the link again if the policy closed it
+     * and otherwise restarts the idle window.
+     */
+    public void prewarm() {
+        if (reopen(true)) {
+            synchronized (this) {
+                mStats.prewarms++;
+            }
+        }
+    }
+
+    /**
+     * The user is closing the link. Call before stopping it, so the close is
+     * not taken for a drop; no job or hint opens it again.
+     */
+    public synchronized void onUserClose() {
+        if (mIdleClosed) mStats.idleClosedMillis += PrintJobScheduler.now() - mStateSince;
+        mUserClosing = mConnected;
+        mIdleClosed = false;
+        mReopenAfterClose = false;
+        saveClosed();
+    }
+
+    /**
+     * Return true while the link is closed but the next job or hint opens
+     * it again, i.e. the policy closed it or it dropped.
+     */
+    public synchronized boolean willReopen() {
+        return mIdleClosed && mAddress != null;
+    }
+
+    /**
+     * Follow the link state. Called with the states BluetoothSerialService reports.
+     */
+    public synchronized void onStateChanged(int state) {
+        long now = PrintJobScheduler.now();
+        if (state == BluetoothSerialService.STATE_CONNECTED) {
+            if (mIdleClosed) mStats.idleClosedMillis += now - mStateSince;
+            mAddress = mLink.getConnectedAddress();
+            mConnected = true;
+            mIdleClosed = false;
+            mPrewarmed = mReopening && mPrewarming;
+            mPrewarming = false;
+            mReopening = false;
+            mLastActivity = now;
+            mLastKeepalive = now;
+            mStateSince = now;
+            saveClosed();
+        } else if (mConnected) {
+            mStats.connectedMillis += now - mStateSince;
+            mConnected = false;
+            mPrewarmed = false;
+            mStateSince = now;
+            // A link the user did not close dropped, open it for the next job
+            mIdleClosed = state == BluetoothSerialService.STATE_NONE && !mUserClosing;
+            mUserClosing = false;
+            saveClosed();
+            if (D && mIdleClosed) Log.d(TAG, "link to " + mAddress + " dropped");
+        } else if (state == BluetoothSerialService.STATE_NONE && mReopening) {
+            // The reopen failed; the next hint or job tries again
+            mReopening = false;
+            mPrewarming = false;
+        }
+    }
+
+    public synchronized Stats getStats() {
+        Stats c = new Stats();
+        c.keepalives = mStats.keepalives;
+        c.idleCloses = mStats.idleCloses;
+        c.prewarms = mStats.prewarms;
+        c.jobReopens = mStats.jobReopens;
+        c.hotSubmits = mStats.hotSubmits;
+        c.savedConnectMillis = mStats.savedConnectMillis;
+        long now = PrintJobScheduler.now();
+        c.connectedMillis = mStats.connectedMillis + (mConnected ? now - mStateSince : 0);
+        c.idleClosedMillis = mStats.idleClosedMillis + (mIdleClosed ? now - mStateSince : 0);
+        return c;
+    }
+
+    @Override
+    public void onSubmit(PrintJob job) {
+        boolean hot;
+        boolean saved;
+        String address;
+        synchronized (this) {
+            mLastActivity = PrintJobScheduler.now();
+            hot = mConnected;
+            address = mAddress;
+            // Only the first job after a prewarm would have paid the connect
+            saved = hot && mPrewarmed;
+            mPrewarmed = false;
+            if (hot) mStats.hotSubmits++;
+        }
+        if (hot) {
+            long latency = saved && address != null ? mLink.getConnectLatencyMillis(address) : 0;
+            if (latency > 0) {
+                synchronized (this) {
+                    mStats.savedConnectMillis += latency;
+                }
+            }
+        } else {
+            reopenForJob();
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public long onDispatchGap(long now, int queued) {
+        boolean close = false;
+        boolean keepalive = false;
+        long next;
+        synchronized (this) {
+            // Nothing to keep alive or close
+            if (!mConnected) return Long.MAX_VALUE;
+            if (queued > 0 || (mBusyCheck != null && mBusyCheck.isBusy())) mLastActivity = now;
+            long closeAt = mIdleTimeout > 0 ? mLastActivity + mIdleTimeout : Long.MAX_VALUE;
+            if (now >= closeAt) {
+                close = true;
+                mIdleClosed = true;
+                mStats.idleCloses++;
+                // Jobs queued from here on must not count on the link
+                mStats.connectedMillis += now - mStateSince;
+                mConnected = false;
+                mPrewarmed = false;
+                mStateSince = now;
+                mClosing = true;
+                saveClosed();
+                next = Long.MAX_VALUE;
+            } else {
+                long keepaliveAt = Math.max(mLastKeepalive, mLastActivity) + mKeepaliveInterval;
+                boolean silent = mHealthMonitor != null && mHealthMonitor.isSilent();
+                if (queued == 0 && now >= keepaliveAt && !silent) {
+                    keepalive = true;
+                    mLastKeepalive = now;
+                    mStats.keepalives++;
+                    keepaliveAt = now + mKeepaliveInterval;
+                }
+                next = Math.min(closeAt, keepaliveAt) - now;
+            }
+        }
+        if (close) {
+            if (D) Log.d(TAG, "idle for " + mIdleTimeout + "ms, closing the link");
+            mLink.stop();
+            boolean reopen;
+            synchronized (this) {
+                mClosing = false;
+                reopen = mReopenAfterClose;
+                mReopenAfterClose = false;
+            }
+            if (reopen) reopenForJob();
+        } else if (keepalive) {
+            mSgd.getvar(this, KEEPALIVE_VAR);
+        }
+        return next;
+    }
+
+    @Override
+    public void onValues(String[] names, String[] values) {
+        // Any answer will do
+    }
+
+    @Override
+    public void onTimeout(String[] names) {
+        // The health monitor notices a printer that stopped answering
+    }
+
+    /**
+     * Keep the printer of a link waiting to be reopened, or forget it.
+     */
+    private void saveClosed() {
+        if (mPrefs == null) return;
+        if (mIdleClosed && mAddress != null) {
+            mPrefs.edit().putString(KEY_CLOSED_ADDRESS, mAddress).apply();
+        } else {
+            mPrefs.edit().remove(KEY_CLOSED_ADDRESS).apply();
+        }
+    }
+
+    private void reopenForJob() {
+        if (reopen(false)) {
+            synchronized (this) {
+                mStats.jobReopens++;
+            }
+        }
+    }
+
+    /**
+     * Open the link again if the policy closed it.
+     *
+     * @param prewarm Whether the connect is ahead of any job
+     * @return true if a connect was started
+     */
+    private boolean reopen(boolean prewarm) {
+        String address;
+        synchronized (this) {
+            if (mConnected) mLastActivity = PrintJobScheduler.now();
+            if (!mIdleClosed || mReopening || mAddress == null) return false;
+            if (mClosing) {
+                // The idle close is under way, reopen once it is done
+                mReopenAfterClose = true;
+                return false;
+            }
+            mReopening = true;
+            // Set before the connect, whose state change may come back at once
+            mPrewarming = prewarm;
+            address = mAddress;
+        }
+        // The link is stopped until the policy or the user opens it
+        if (mLink.getState() != BluetoothSerialService.STATE_NONE) {
+            synchronized (this) {
+                mReopening = false;
+                mPrewarming = false;
+            }
+            return false;
+        }
+        if (D) Log.d(TAG, "reopening the link to " + address);
+        mLink.connect(address);
+        return true;
+    }
+}
@@ -0,0 +1,251 @@
+package ae.sdg.printerdemo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the records of a bulk print dataset one at a time, so a dataset of
+ * any size is never held in memory as a whole.
+ */
+public abstract class DatasetReader {
+
+    // No character read ahead
+    private static final int NONE = -2;
+
+    /**
+     * Return the next record as field name to value, or null at the end.
+     */
+    public abstract Map<String, String> next() throws IOException;
+
+    public abstract void close() throws IOException;
+
+    /**
+     * Read CSV with a header line naming the fields. Fields may be quoted,
+     * with doubled quotes inside and line breaks allowed.
+     */
+    public static DatasetReader fromCsv(final Reader in) {
+        return new DatasetReader() {
+            private final StringBuilder mField = new StringBuilder();
+            private final ArrayList<String> mValues = new ArrayList<String>();
+            private String[] mNames;
+
+            @Override
+            public Map<String, String> next() throws IOException {
+                if (mNames == null) {
+                    if (!readLine()) return null;
+                    mNames = mValues.toArray(new String[mValues.size()]);
+                }
+                // Skip blank lines
+                do {
+                    if (!readLine()) return null;
+                } while (mValues.size() == 1 && mValues.get(0).length() == 0);
+
+                LinkedHashMap<String, String> record = new LinkedHashMap<String, String>();
+                for (int i = 0; i < mNames.length; i++) {
+                    record.put(mNames[i], i < mValues.size() ? mValues.get(i) : "");
+                }
+                return record;
+            }
+
+            private boolean readLine() throws IOException {
+                mValues.clear();
+                mField.setLength(0);
+                boolean quoted = false;
+                int c = in.read();
+                if (c == -1) return false;
+                while (true) {
+                    if (quoted) {
+                        if (c == -1) throw new IOException("unterminated quote");
+                        if (c == '"') {
+                            c = in.read();
+                            if (c != '"') {
+                                quoted = false;
+                                continue;
+                            }
+                        }
+                        mField.append((char) c);
+                    } else if (c == '"') {
+                        quoted = true;
+                    } else if (c == ',') {
+                        mValues.add(mField.toString());
+                        mField.setLength(0);
+                    } else if (c == '\n' || c == -1) {
+                        break;
+                    } else if (c != '\r') {
+                        mField.append((char) c);
+                    }
+                    c = in.read();
+                }
+                mValues.add(mField.toString());
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Read a JSON array of flat objects. Numbers and booleans are returned
+     * as text, null as an empty value, nested values are skipped. Only what
+     * a dataset needs is parsed, one character at a time.
+     */
+    public static DatasetReader fromJson(final Reader in) {
+        return new DatasetReader() {
+            private final StringBuilder mText = new StringBuilder();
+            // A character read ahead, or NONE
+            private int mPeeked = NONE;
+            private boolean mStarted;
+            private boolean mDone;
+
+            @Override
+            public Map<String, String> next() throws IOException {
+                if (mDone) return null;
+                if (!mStarted) {
+                    expect('[');
+                    mStarted = true;
+                    if (peek() == ']') {
+                        read();
+                        mDone = true;
+                        return null;
+                    }
+                }
+
+                LinkedHashMap<String, String> record = new LinkedHashMap<String, String>();
+                expect('{');
+                if (peek() == '}') {
+                    read();
+                } else {
+                    do {
+                        expect('"');
+                        String name = readString();
+                        expect(':');
+                        int c = peek();
+                        if (c == '"') {
+                            read();
+                            record.put(name, readString());
+                        } else if (c == '{' || c == '[') {
+                            skipNested();
+                        } else {
+                            String word = readWord();
+                            record.put(name, word.equals("null") ? "" : word);
+                        }
+                    } while (expect(',', '}') == ',');
+                }
+                if (expect(',', ']') == ']') mDone = true;
+                return record;
+            }
+
+            /**
+             * Return the next character that is not white space, without taking it.
+             */
+            private int peek() throws IOException {
+                int c;
+                do {
+                    c = read();
+                } while (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+                mPeeked = c;
+                return c;
+            }
+
+            private int read() throws IOException {
+                int c = mPeeked;
+                if (c == NONE) return in.read();
+                mPeeked = NONE;
+                return c;
+            }
+
+            private void expect(char expected) throws IOException {
+                expect(expected, expected);
+            }
+
+            private int expect(char either, char or) throws IOException {
+                int c = peek();
+                read();
+                if (c != either && c != or) {
+                    throw new IOException("expected " + either + (either != or ? " or " + or : "")
+                            + " but found " + (c == -1 ? "end of input" : String.valueOf((char) c)));
+                }
+                return c;
+            }
+
+            /**
+             * Read the rest of a string whose opening quote was taken.
+             */
+            private String readString() throws IOException {
+                mText.setLength(0);
+                while (true) {
+                    int c = read();
+                    if (c == -1) throw new IOException("unterminated string");
+                    if (c == '"') return mText.toString();
+                    if (c == '\\') {
+                        c = read();
+                        switch (c) {
+                            case 'b': c = '\b'; break;
+                            case 'f': c = '\f'; break;
+                            case 'n': c = '\n'; break;
+                            case 'r': c = '\r'; break;
+                            case 't': c = '\t'; break;
+                            case 'u': c = readHex(); break;
+                            case '"': case '\\': case '/': break;
+                            default: throw new IOException("bad escape \\" + (char) c);
+                        }
+                    }
+                    mText.append((char) c);
+                }
+            }
+
+            private int readHex() throws IOException {
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) throw new IOException("bad \\u escape");
+                    value = value << 4 | digit;
+                }
+                return value;
+            }
+
+            /**
+             * Read a number, true, false or null as written.
+             */
+            private String readWord() throws IOException {
+                mText.setLength(0);
+                peek();
+                int c;
+                while ((c = read()) != -1 && c != ',' && c != '}' && c != ']'
+                        && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                    mText.append((char) c);
+                }
+                mPeeked = c;
+                if (mText.length() == 0) throw new IOException("missing value");
+                return mText.toString();
+            }
+
+            private void skipNested() throws IOException {
+                read();
+                int depth = 1;
+                while (depth > 0) {
+                    int c = read();
+                    if (c == -1) throw new IOException("unterminated value");
+                    if (c == '"') {
+                        readString();
+                    } else if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+}
@@ -33,15 +33,17 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.TextView;
 
+import java.util.HashSet;
 import java.util.Set;
 
 /**
- * This Activity appears as a dialog. It lists any paired devices and
- * devices detected in the area after discovery. When a device is chosen
- * by the user, the MAC address of the device is sent back to the parent
- * Activity in the result Intent.
+ * This Activity appears as a dialog. It lists the printers from the
+ * DeviceRegistry, most recently used first, then any other paired devices,
+ * and devices detected in the area after discovery. Known printers can be
+ * picked straight away without discovery, and discovery stops as soon as it
+ * finds one. When a device is chosen by the user, the MAC address of the
+ * device is sent back to the parent Activity in the result Intent.
  */
 public class DeviceListActivity extends Activity {
     // Debugging
@@ -53,8 +55,28 @@ public class DeviceListActivity extends Activity {
 
     // Member fields
     private BluetoothAdapter mBtAdapter;
-    private ArrayAdapter<String> mPairedDevicesArrayAdapter;
-    private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private DeviceRegistry mRegistry;
+    private ArrayAdapter<DeviceItem> mPairedDevicesArrayAdapter;
+    private ArrayAdapter<DeviceItem> mNewDevicesArrayAdapter;
+
+    /**
+     * A row of the device lists. Keeps the address next to the label so it
+     * never has to be parsed back out of the row text.
+     */
+    private static class DeviceItem {
+        final String mLabel;
+        final String mAddress;
+
+        DeviceItem(String label, String address) {
+            mLabel = label;
+            mAddress = address;
+        }
+
+        @Override
+        public String toString() {
+            return mLabel;
+        }
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -78,8 +100,8 @@ public class DeviceListActivity extends Activity {
 
         // Initialize array adapters. One for already paired devices and
         // one for newly discovered devices
-        mPairedDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
-        mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
+        mPairedDevicesArrayAdapter = new ArrayAdapter<DeviceItem>(this, R.layout.device_name);
+        mNewDevicesArrayAdapter = new ArrayAdapter<DeviceItem>(this, R.layout.device_name);
 
         // Find and set up the ListView for paired devices
         ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
@@ -101,19 +123,29 @@ public class DeviceListActivity extends Activity {
 
         // Get the local Bluetooth adapter
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+        mRegistry = DeviceRegistry.getInstance(this);
+
+        // Known printers first, most recently used on top
+        Set<String> listed = new HashSet<String>();
+        for (DeviceRegistry.KnownDevice known : mRegistry.getRecent()) {
+            mPairedDevicesArrayAdapter.add(new DeviceItem(known.toString(), known.address));
+            listed.add(known.address);
+        }
 
-        // Get a set of currently paired devices
+        // Then any other paired devices
         Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
+        for (BluetoothDevice device : pairedDevices) {
+            if (listed.add(device.getAddress())) {
+                mPairedDevicesArrayAdapter.add(new DeviceItem(device.getName() + "\n" + device.getAddress(),
+                        device.getAddress()));
+            }
+        }
 
-        // If there are paired devices, add each one to the ArrayAdapter
-        if (pairedDevices.size() > 0) {
+        if (mPairedDevicesArrayAdapter.getCount() > 0) {
             findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-            for (BluetoothDevice device : pairedDevices) {
-                mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
-            }
         } else {
             String noDevices = getResources().getText(R.string.none_paired).toString();
-            mPairedDevicesArrayAdapter.add(noDevices);
+            mPairedDevicesArrayAdapter.add(new DeviceItem(noDevices, null));
         }
     }
 
@@ -155,13 +187,14 @@ public class DeviceListActivity extends Activity {
     // The on-click listener for all devices in the ListViews
     private OnItemClickListener mDeviceClickListener = new OnItemClickListener() {
         public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
+            // Placeholder rows carry no address
+            DeviceItem item = (DeviceItem) av.getItemAtPosition(arg2);
+            String address = item.mAddress;
+            if (address == null) return;
+
             // Cancel discovery because it's costly and we're about to connect
             mBtAdapter.cancelDiscovery();
 
-            // Get the device MAC address, which is the last 17 chars in the View
-            String info = ((TextView) v).getText().toString();
-            String address = info.substring(info.length() - 17);
-
             // Create the result Intent and include the MAC address
             Intent intent = new Intent();
             intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
@@ -183,9 +216,15 @@ public class DeviceListActivity extends Activity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                // A known printer is in range and already listed, so stop
+                // the inquiry instead of waiting for it to time out
+                if (mRegistry.contains(device.getAddress())) {
+                    if (D) Log.d(TAG, "known device found, stopping discovery");
+                    mBtAdapter.cancelDiscovery();
                 // If it's already paired, skip it, because it's been listed already
-                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                } else if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
+                    mNewDevicesArrayAdapter.add(new DeviceItem(device.getName() + "\n" + device.getAddress(),
+                            device.getAddress()));
                 }
             // When discovery is finished, change the Activity title
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
@@ -193,7 +232,7 @@ public class DeviceListActivity extends Activity {
                 setTitle(R.string.select_device);
                 if (mNewDevicesArrayAdapter.getCount() == 0) {
                     String noDevices = getResources().getText(R.string.none_found).toString();
-                    mNewDevicesArrayAdapter.add(noDevices);
+                    mNewDevicesArrayAdapter.add(new DeviceItem(noDevices, null));
                 }
             }
         }
@@ -0,0 +1,211 @@
+package ae.sdg.printerdemo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers every printer the app has connected to: its address and name,
+ * when it was last used, how long connecting took, which socket strategy
+ * worked and, once known, its model. The records live in SharedPreferences,
+ * one JSON object per address, and are cached in memory after the first read.
+ */
+public class DeviceRegistry {
+    // Debugging
+    private static final String TAG = "DeviceRegistry";
+
+    private static final String PREFS_NAME = "device_registry";
+
+    // Connection strategies, tried in this order for unknown devices
+    public static final String STRATEGY_SECURE = "secure";
+    public static final String STRATEGY_INSECURE = "insecure";
+
+    private static DeviceRegistry sInstance;
+
+    /**
+     * What is known about one printer.
+     */
+    public static class KnownDevice {
+        public final String address;
+        public String name;
+        public long lastConnectTime;
+        public long connectLatencyMillis;
+        public String strategy;
+        public String model;
+
+        KnownDevice(String address) {
+            this.address = address;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("lastConnect", lastConnectTime);
+            json.put("latency", connectLatencyMillis);
+            json.put("strategy", strategy);
+            json.put("model", model);
+            return json;
+        }
+
+        static KnownDevice fromJson(String address, JSONObject json) {
+            KnownDevice device = new KnownDevice(address);
+            device.name = json.optString("name", null);
+            device.lastConnectTime = json.optLong("lastConnect");
+            device.connectLatencyMillis = json.optLong("latency");
+            device.strategy = json.optString("strategy", null);
+            device.model = json.optString("model", null);
+            return device;
+        }
+
+        /**
+         * Label used in the device picker, the address stays on the last line.
+         */
+        @Override
+        public String toString() {
+            String label = name != null ? name : address;
+            return (model != null ? label + " (" + model + ")" : label) + "\n" + address;
+        }
+    }
+
+    // Member fields
+    private final SharedPreferences mPrefs;
+    private final HashMap<String, KnownDevice> mDevices = new HashMap<String, KnownDevice>();
+
+    private DeviceRegistry(Context context) {
+        this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * Constructor for a registry kept in the given preferences.
+     */
+    DeviceRegistry(SharedPreferences prefs) {
+        mPrefs = prefs;
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            try {
+                JSONObject json = new JSONObject(String.valueOf(entry.getValue()));
+                mDevices.put(entry.getKey(), KnownDevice.fromJson(entry.getKey(), json));
+            } catch (JSONException e) {
+                Log.e(TAG, "dropping unreadable record for " + entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Return the registry of this application.
+     */
+    public static synchronized DeviceRegistry getInstance(Context context) {
+        if (sInstance == null) sInstance = new DeviceRegistry(context.getApplicationContext());
+        return sInstance;
+    }
+
+    public synchronized boolean contains(String address) {
+        return mDevices.containsKey(address);
+    }
+
+    /**
+     * Return a copy of the record for the address, or null.
+     */
+    public synchronized KnownDevice get(String address) {
+        KnownDevice device = mDevices.get(address);
+        return device == null ? null : copy(device);
+    }
+
+    /**
+     * Return all known printers, most recently used first.
+     */
+    public synchronized List<KnownDevice> getRecent() {
+        ArrayList<KnownDevice> devices = new ArrayList<KnownDevice>(mDevices.size());
+        for (KnownDevice device : mDevices.values()) devices.add(copy(device));
+        Collections.sort(devices, new Comparator<KnownDevice>() {
+            @Override
+            public int compare(KnownDevice a, KnownDevice b) {
+                return a.lastConnectTime < b.lastConnectTime ? 1 : a.lastConnectTime > b.lastConnectTime ? -1 : 0;
+            }
+        });
+        return devices;
+    }
+
+    /**
+     * Return the most recently used printer, or null if there is none.
+     */
+    public synchronized KnownDevice getMostRecent() {
+        KnownDevice recent = null;
+        for (KnownDevice device : mDevices.values()) {
+            if (recent == null || device.lastConnectTime > recent.lastConnectTime) recent = device;
+        }
+        return recent == null ? null : copy(recent);
+    }
+
+    /**
+     * Return the connection strategies to try for a printer, the one that
+     * worked last time first.
+     */
+    public synchronized String[] getStrategies(String address) {
+        KnownDevice device = mDevices.get(address);
+        if (device != null && STRATEGY_INSECURE.equals(device.strategy)) {
+            return new String[]{STRATEGY_INSECURE, STRATEGY_SECURE};
+        }
+        return new String[]{STRATEGY_SECURE, STRATEGY_INSECURE};
+    }
+
+    /**
+     * Record a successful connection. The latency is smoothed so one slow
+     * attempt does not dominate.
+     */
+    public synchronized void recordConnect(String address, String name, long latencyMillis, String strategy) {
+        KnownDevice device = mDevices.get(address);
+        if (device == null) {
+            device = new KnownDevice(address);
+            device.connectLatencyMillis = latencyMillis;
+            mDevices.put(address, device);
+        } else {
+            device.connectLatencyMillis = (device.connectLatencyMillis * 2 + latencyMillis) / 3;
+        }
+        if (name != null) device.name = name;
+        device.lastConnectTime = System.currentTimeMillis();
+        device.strategy = strategy;
+        save(device);
+    }
+
+    /**
+     * Record the model reported by the printer.
+     */
+    public synchronized void setModel(String address, String model) {
+        KnownDevice device = mDevices.get(address);
+        if (device == null) return;
+        device.model = model;
+        save(device);
+    }
+
+    public synchronized void forget(String address) {
+        if (mDevices.remove(address) != null) mPrefs.edit().remove(address).apply();
+    }
+
+    private void save(KnownDevice device) {
+        try {
+            mPrefs.edit().putString(device.address, device.toJson().toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "unable to save " + device.address, e);
+        }
+    }
+
+    private static KnownDevice copy(KnownDevice device) {
+        KnownDevice c = new KnownDevice(device.address);
+        c.name = device.name;
+        c.lastConnectTime = device.lastConnectTime;
+        c.connectLatencyMillis = device.connectLatencyMillis;
+        c.strategy = device.strategy;
+        c.model = device.model;
+        return c;
+    }
+}
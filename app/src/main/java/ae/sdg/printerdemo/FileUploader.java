@@ -0,0 +1,364 @@
+package ae.sdg.printerdemo;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+
+/**
+ * Uploads fonts and firmware files to the printer, such as the ARABT font
+ * the Arabic receipts depend on. The printer is first asked for its file
+ * directory; a file it already lists under the same name and size is not
+ * sent at all. Otherwise the file goes out behind the printer's download
+ * command, a window of chunks per dispatch gap, and the directory is asked
+ * for again to confirm the printer stored it. The download command carries
+ * no offset, so an upload cut off by a lost link starts over once the link
+ * is back. A printer that does not answer the directory query has no way to
+ * confirm an upload, and the upload fails before any of the file is sent.
+ *
+ * The uploader is a scheduler Gate: it holds print jobs while an upload is
+ * running and does its writing in the dispatch gaps, so chunks never land
+ * inside a form. Replies come back through the shared SgdClient.
+ */
+public class FileUploader implements PrintJobScheduler.Gate, SgdClient.Callback {
+    // Debugging
+    private static final String TAG = "FileUploader";
+    private static final boolean D = true;
+
+    private static final int CHUNK_SIZE = 2048;
+    // Chunks sent per dispatch gap
+    private static final int WINDOW = 8;
+    private static final long CHECK_MS = 50;
+    // Storing a large file in flash delays the answer behind it
+    private static final long REPLY_TIMEOUT_MS = 10000;
+    // Unanswered queries before the upload is given up
+    private static final int MAX_RETRIES = 3;
+
+    // Upload steps
+    private static final int STEP_PREPARE = 0;
+    private static final int STEP_QUERY = 1;
+    private static final int STEP_SEND = 2;
+    private static final int STEP_CONFIRM = 3;
+    // What an answer ended an upload with
+    private static final int SKIPPED = -1;
+    private static final int UNSUPPORTED = -2;
+    private static final int STORED = -3;
+    private static final int NOT_STORED = -4;
+
+    /**
+     * The commands an upload is made of. The default is the file download
+     * of Zebra mobile printers: "! CISDFCRC16", then the CRC16, the file
+     * name, the size as 8 hex digits and the checksum, each on a line of its
+     * own, then the bytes. A CRC and checksum of 0000 skip those checks. The
+     * stored files are listed by the Set-Get-Do variable "file.dir", one per
+     * line as the drive, name and size. Subclass it for a printer with
+     * other commands.
+     */
+    public static class Protocol {
+        /**
+         * Return the variable that lists the stored files.
+         */
+        public String directoryVar() {
+            return "file.dir";
+        }
+
+        /**
+         * Return the command the bytes of the file follow.
+         */
+        public byte[] header(String name, long size) {
+            String hexSize = Long.toHexString(size).toUpperCase();
+            while (hexSize.length() < 8) hexSize = "0" + hexSize;
+            return ("! CISDFCRC16\r\n0000\r\n" + name + "\r\n" + hexSize + "\r\n0000\r\n").getBytes();
+        }
+
+        /**
+         * Return the size the directory lists for a file, or -1 if it is not listed.
+         */
+        public long storedSize(String directory, String name) {
+            String[] words = directory.split("\\s+");
+            for (int i = 0; i < words.length; i++) {
+                // Names are listed with their drive, such as E:ARABT.FNT
+                String word = words[i].substring(words[i].indexOf(':') + 1);
+                if (!word.equalsIgnoreCase(name)) continue;
+                try {
+                    return i + 1 < words.length ? Long.parseLong(words[i + 1]) : 0;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Progress of an upload. Called on the dispatch or the reading thread.
+     */
+    public interface OnUploadListener {
+        void onUploadProgress(String name, long sent, long size);
+
+        /**
+         * @param success true if the printer holds the file now
+         * @param skipped true if it already held it
+         */
+        void onUploadFinished(String name, boolean success, boolean skipped);
+    }
+
+    private static class Upload {
+        final File mFile;
+        final String mName;
+        final OnUploadListener mListener;
+        RandomAccessFile mInput;
+        long mSize;
+        int mStep = STEP_PREPARE;
+        long mSentOffset;
+        // Set while a query is waiting for its answer
+        boolean mQueryOut;
+        // Unanswered queries in a row
+        int mRetries;
+
+        Upload(File file, String name, OnUploadListener listener) {
+            mFile = file;
+            mName = name;
+            mListener = listener;
+        }
+    }
+
+    // Member fields
+    private final PrintJobScheduler mScheduler;
+    private final PrintTransport mTransport;
+    private final SgdClient mSgd;
+    private final Protocol mProtocol;
+    private final ArrayDeque<Upload> mQueue = new ArrayDeque<Upload>();
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private Upload mCurrent;
+
+    /**
+     * Constructor.
+     *
+     * @param scheduler The scheduler the uploader is a gate of
+     * @param transport The link the chunks are written to
+     * @param sgd       The getvar client, registered with the serial service
+     * @param protocol  The printer's upload commands
+     */
+    public FileUploader(PrintJobScheduler scheduler, PrintTransport transport, SgdClient sgd, Protocol protocol) {
+        if (protocol == null) throw new IllegalArgumentException("protocol == null");
+        mScheduler = scheduler;
+        mTransport = transport;
+        mSgd = sgd;
+        mProtocol = protocol;
+    }
+
+    /**
+     * Queue an upload. Uploads run one at a time, in the order queued.
+     *
+     * @param name The name the printer stores the file under
+     */
+    public void upload(File file, String name, OnUploadListener listener) {
+        synchronized (this) {
+            mQueue.addLast(new Upload(file, name, listener));
+        }
+        mScheduler.wake();
+    }
+
+    /**
+     * Return true while an upload is queued or running.
+     */
+    public synchronized boolean isBusy() {
+        return mCurrent != null || !mQueue.isEmpty();
+    }
+
+    /**
+     * Start the running upload over, e.g. after a new link came up. The
+     * printer dropped whatever part of the file it had received.
+     */
+    public synchronized void onConnected() {
+        if (mCurrent != null && mCurrent.mStep != STEP_PREPARE) {
+            mCurrent.mStep = STEP_QUERY;
+            mCurrent.mSentOffset = 0;
+            mCurrent.mQueryOut = false;
+        }
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return mCurrent == null && mQueue.isEmpty();
+    }
+
+    @Override
+    public long onDispatchGap(long now, int queued) {
+        Upload upload;
+        synchronized (this) {
+            if (mCurrent == null) mCurrent = mQueue.pollFirst();
+            upload = mCurrent;
+        }
+        if (upload == null) return Long.MAX_VALUE;
+        // Fail queries that went unanswered; onTimeout() asks again or gives up
+        mSgd.expire(now, REPLY_TIMEOUT_MS);
+        synchronized (this) {
+            if (upload != mCurrent) return CHECK_MS;
+        }
+
+        boolean sent = true;
+        try {
+            switch (step(upload)) {
+                case STEP_PREPARE:
+                    prepare(upload);
+                    break;
+                case STEP_QUERY:
+                case STEP_CONFIRM:
+                    sent = query(upload);
+                    break;
+                case STEP_SEND:
+                    sent = sendWindow(upload);
+                    break;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "upload of " + upload.mName + " failed", e);
+            finish(upload, false, false);
+            return CHECK_MS;
+        }
+        // The link went down; start over once it is back
+        if (!sent) onConnected();
+        return CHECK_MS;
+    }
+
+    @Override
+    public void onValues(String[] names, String[] values) {
+        Upload upload;
+        synchronized (this) {
+            upload = mCurrent;
+        }
+        if (upload == null) return;
+
+        String directory = values.length > 0 ? values[0].trim() : "";
+        // A printer without the variable answers "?", an empty drive with nothing
+        boolean unknown = directory.equals("?");
+        long stored = unknown ? -1 : mProtocol.storedSize(directory, upload.mName);
+
+        int step;
+        synchronized (this) {
+            if (upload != mCurrent) return;
+            step = upload.mStep;
+            // Late answers to a query that was already given up on
+            if (step != STEP_QUERY && step != STEP_CONFIRM) return;
+            upload.mQueryOut = false;
+            upload.mRetries = 0;
+            if (step == STEP_QUERY) {
+                if (unknown) {
+                    step = UNSUPPORTED;
+                } else if (stored == upload.mSize) {
+                    step = SKIPPED;
+                } else {
+                    upload.mSentOffset = 0;
+                    upload.mStep = STEP_SEND;
+                }
+            } else {
+                step = stored == upload.mSize ? STORED : NOT_STORED;
+            }
+        }
+
+        if (step == SKIPPED) {
+            if (D) Log.d(TAG, upload.mName + " is already on the printer");
+            finish(upload, true, true);
+        } else if (step == UNSUPPORTED) {
+            Log.e(TAG, "printer does not list its files, " + upload.mName + " cannot be confirmed");
+            finish(upload, false, false);
+        } else if (step == STORED) {
+            finish(upload, true, false);
+        } else if (step == NOT_STORED) {
+            Log.e(TAG, "printer lists " + upload.mName + " with " + stored + " of " + upload.mSize + " bytes");
+            finish(upload, false, false);
+        }
+    }
+
+    @Override
+    public void onTimeout(String[] names) {
+        Upload upload;
+        boolean failed;
+        synchronized (this) {
+            upload = mCurrent;
+            if (upload == null || !upload.mQueryOut) return;
+            // The next gap sends the query again
+            upload.mQueryOut = false;
+            failed = ++upload.mRetries > MAX_RETRIES;
+        }
+        if (failed) {
+            Log.e(TAG, "printer does not answer about " + upload.mName);
+            finish(upload, false, false);
+        }
+    }
+
+    private synchronized int step(Upload upload) {
+        return upload.mStep;
+    }
+
+    private void prepare(Upload upload) throws IOException {
+        upload.mInput = new RandomAccessFile(upload.mFile, "r");
+        upload.mSize = upload.mInput.length();
+        synchronized (this) {
+            upload.mStep = STEP_QUERY;
+        }
+        if (D) Log.d(TAG, "uploading " + upload.mName + ", " + upload.mSize + " bytes");
+    }
+
+    /**
+     * Ask for the directory unless the question is out already.
+     *
+     * @return false if the link is down
+     */
+    private boolean query(Upload upload) {
+        synchronized (this) {
+            if (upload.mQueryOut) return true;
+            upload.mQueryOut = true;
+        }
+        return mSgd.getvar(this, mProtocol.directoryVar());
+    }
+
+    /**
+     * Send the next window of chunks, behind the download command for the
+     * first one.
+     *
+     * @return false if the link is down
+     */
+    private boolean sendWindow(Upload upload) throws IOException {
+        long offset;
+        synchronized (this) {
+            offset = upload.mSentOffset;
+        }
+        if (offset == 0) {
+            byte[] header = mProtocol.header(upload.mName, upload.mSize);
+            if (!mTransport.send(header, 0, header.length)) return false;
+        }
+        for (int i = 0; i < WINDOW && offset < upload.mSize; i++) {
+            int length = (int) Math.min(CHUNK_SIZE, upload.mSize - offset);
+            upload.mInput.seek(offset);
+            upload.mInput.readFully(mChunk, 0, length);
+            if (!mTransport.send(mChunk, 0, length)) return false;
+            offset += length;
+        }
+        synchronized (this) {
+            upload.mSentOffset = offset;
+            if (offset == upload.mSize) upload.mStep = STEP_CONFIRM;
+        }
+        if (upload.mListener != null) upload.mListener.onUploadProgress(upload.mName, offset, upload.mSize);
+        return true;
+    }
+
+    private void finish(Upload upload, boolean success, boolean skipped) {
+        synchronized (this) {
+            if (mCurrent != upload) return;
+            mCurrent = null;
+        }
+        if (upload.mInput != null) {
+            try {
+                upload.mInput.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of " + upload.mFile + " failed", e);
+            }
+        }
+        if (D) Log.d(TAG, upload.mName + (success ? " uploaded" : " failed") + (skipped ? ", skipped" : ""));
+        if (upload.mListener != null) upload.mListener.onUploadFinished(upload.mName, success, skipped);
+    }
+}
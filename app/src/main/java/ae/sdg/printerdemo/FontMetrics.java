@@ -0,0 +1,99 @@
+package ae.sdg.printerdemo;
+
+/**
+ * Glyph widths of one printer font, in dots. The tables are filled once when
+ * the font is defined so that measuring a character during layout is a single
+ * array lookup. Latin-1 and the Arabic block have their own tables; anything
+ * else falls back to the default width.
+ */
+public class FontMetrics {
+
+    // Built-in 12x24 fonts of CPCL (font 7, size 0) and ESC/POS (font A)
+    public static final FontMetrics CPCL_7_0 = fixed("7", 0, 12, 24);
+    public static final FontMetrics ESCPOS_FONT_A = fixed("A", 0, 12, 24);
+    // The smaller 9x17 ESC/POS font B
+    public static final FontMetrics ESCPOS_FONT_B = fixed("B", 0, 9, 17);
+    // Resident font of line print mode, in use until ESC w selects another;
+    // 48 columns on the 576 dot head of the PR3
+    public static final FontMetrics LINE_PRINT = fixed("LP", 0, 12, 24);
+
+    private final String mName;
+    private final int mSize;
+    private final int mLineHeight;
+    private final int mDefaultWidth;
+    private final byte[] mLatinWidths = new byte[0x100];
+    private final byte[] mArabicWidths = new byte[0x100];
+
+    /**
+     * Constructor. Every glyph starts out with the default width.
+     *
+     * @param name         Font name or number as the printer knows it
+     * @param size         Font size selector passed along with the name
+     * @param defaultWidth Advance of a glyph, in dots
+     * @param lineHeight   Height of a text line, in dots
+     */
+    public FontMetrics(String name, int size, int defaultWidth, int lineHeight) {
+        if (defaultWidth <= 0 || defaultWidth > 0xff) {
+            throw new IllegalArgumentException("Bad glyph width " + defaultWidth);
+        }
+        mName = name;
+        mSize = size;
+        mDefaultWidth = defaultWidth;
+        mLineHeight = lineHeight;
+        setWidth((char) 0, (char) 0xff, defaultWidth);
+        setWidth((char) 0x600, (char) 0x6ff, defaultWidth);
+        // Control characters and Arabic diacritics take no room
+        setWidth((char) 0, (char) 0x1f, 0);
+        setWidth((char) 0x64b, (char) 0x652, 0);
+        setWidth((char) 0x670, (char) 0x670, 0);
+    }
+
+    /**
+     * Create a fixed-pitch font.
+     */
+    public static FontMetrics fixed(String name, int size, int cellWidth, int lineHeight) {
+        return new FontMetrics(name, size, cellWidth, lineHeight);
+    }
+
+    /**
+     * Set the width of a range of characters. Only Latin-1 and the Arabic
+     * block can be overridden, other characters use the default width.
+     *
+     * @return this, so proportional fonts can be defined in one expression
+     */
+    public FontMetrics setWidth(char from, char to, int width) {
+        for (int c = from; c <= to; c++) {
+            if (c < 0x100) {
+                mLatinWidths[c] = (byte) width;
+            } else if (c >= 0x600 && c < 0x700) {
+                mArabicWidths[c - 0x600] = (byte) width;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Return the advance of a character, in dots.
+     */
+    public int width(char c) {
+        if (c < 0x100) return mLatinWidths[c] & 0xff;
+        if (c >= 0x600 && c < 0x700) return mArabicWidths[c - 0x600] & 0xff;
+        return mDefaultWidth;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getLineHeight() {
+        return mLineHeight;
+    }
+
+    public int getSpaceWidth() {
+        return width(' ');
+    }
+}
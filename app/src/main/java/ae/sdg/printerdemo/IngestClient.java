@@ -0,0 +1,117 @@
+package ae.sdg.printerdemo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * The client side of IngestGateway, for processes that print through another
+ * app's link. The client proves it holds the gateway's secret when it
+ * connects. Jobs can then be submitted back to back; results are read in
+ * the batches the gateway sends them in.
+ */
+public class IngestClient {
+
+    /**
+     * Receives the result of one job.
+     */
+    public interface OnResultListener {
+        /**
+         * @param tag    The tag the job was submitted with
+         * @param status One of the IngestGateway STATUS_ constants
+         */
+        void onResult(int tag, int status);
+    }
+
+    // Member fields
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+    private final DataOutputStream mOut;
+
+    /**
+     * Connect to a gateway on this device and authenticate.
+     *
+     * @param secret The secret the gateway was started with
+     * @throws IOException if the gateway cannot be reached or refuses the secret
+     */
+    public IngestClient(int port, byte[] secret) throws IOException {
+        mSocket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        try {
+            mSocket.setTcpNoDelay(true);
+            mIn = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+            mOut = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream()));
+            authenticate(secret);
+        } catch (IOException e) {
+            mSocket.close();
+            throw e;
+        }
+    }
+
+    private void authenticate(byte[] secret) throws IOException {
+        if (mIn.readUnsignedByte() != IngestGateway.FRAME_HELLO) throw new IOException("no greeting from the gateway");
+        byte[] nonce = new byte[IngestGateway.NONCE_SIZE];
+        mIn.readFully(nonce);
+        mOut.writeByte(IngestGateway.FRAME_AUTH);
+        mOut.write(IngestGateway.mac(secret, nonce));
+        mOut.flush();
+        if (mIn.readUnsignedByte() != IngestGateway.FRAME_AUTH || mIn.readUnsignedByte() != 1) {
+            throw new IOException("gateway refused the secret");
+        }
+    }
+
+    /**
+     * Queue a job. It is buffered until flush() or the buffer fills.
+     *
+     * @param tag      Returned with the result of the job
+     * @param priority One of the PrintJob PRIORITY_ constants
+     */
+    public void submit(int tag, int priority, byte[] data, int offset, int length) throws IOException {
+        mOut.writeByte(IngestGateway.FRAME_SUBMIT);
+        mOut.writeByte(priority);
+        mOut.writeInt(tag);
+        mOut.writeInt(length);
+        mOut.write(data, offset, length);
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    /**
+     * Block until the next batch of results and hand it to the listener.
+     *
+     * @return the number of results, or -1 once the gateway has hung up
+     */
+    public int readResults(OnResultListener listener) throws IOException {
+        int type;
+        try {
+            type = mIn.readUnsignedByte();
+        } catch (EOFException e) {
+            return -1;
+        }
+        if (type != IngestGateway.FRAME_ACK) throw new IOException("unexpected frame " + type);
+        int count = mIn.readInt();
+        for (int i = 0; i < count; i++) {
+            int tag = mIn.readInt();
+            listener.onResult(tag, mIn.readUnsignedByte());
+        }
+        return count;
+    }
+
+    /**
+     * Tell the gateway no more jobs follow. Results can still be read.
+     */
+    public void finish() throws IOException {
+        mOut.flush();
+        mSocket.shutdownOutput();
+    }
+
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,401 @@
+package ae.sdg.printerdemo;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Lets other processes on the device print through this app's link. The
+ * gateway listens on a loopback TCP port; each client sends framed jobs and
+ * may keep sending without waiting for answers. Jobs go into the shared
+ * PrintJobScheduler under a source of their own per client, so the
+ * scheduler's rotation keeps one client from starving the others, and each
+ * client may only have MAX_IN_FLIGHT jobs queued before the gateway stops
+ * reading from it. Results are sent back in batches.
+ *
+ * Any process can open a loopback port, so a client must first prove it
+ * holds the gateway's secret. The gateway sends FRAME_HELLO and a random
+ * nonce (NONCE_SIZE bytes). The client answers FRAME_AUTH and the
+ * HMAC-SHA256 of the nonce keyed with the secret (MAC_SIZE bytes). The
+ * gateway replies FRAME_AUTH and 1 if the MAC matches, or 0 and hangs up.
+ *
+ * All numbers are big-endian. A job is sent as
+ * FRAME_SUBMIT, priority (1 byte), tag (4 bytes), length (4 bytes), payload.
+ * Results come back as FRAME_ACK, count (4 bytes), then per job its tag
+ * (4 bytes) and one of the STATUS_ constants (1 byte).
+ */
+public class IngestGateway {
+    // Debugging
+    private static final String TAG = "IngestGateway";
+    private static final boolean D = true;
+
+    // Frame types
+    public static final int FRAME_SUBMIT = 1;
+    public static final int FRAME_ACK = 2;
+    public static final int FRAME_HELLO = 3;
+    public static final int FRAME_AUTH = 4;
+
+    public static final int NONCE_SIZE = 16;
+    public static final int MAC_SIZE = 32;
+    // Shorter secrets are refused
+    public static final int MIN_SECRET_SIZE = 16;
+    // A client that has not proven the secret by then is disconnected
+    private static final int AUTH_TIMEOUT_MS = 5000;
+
+    // Job results
+    public static final int STATUS_PRINTED = 0;
+    public static final int STATUS_FAILED = 1;
+    public static final int STATUS_REJECTED = 2;
+
+    // Jobs a client may have queued before the gateway stops reading from it
+    public static final int MAX_IN_FLIGHT = 16;
+    // Larger jobs are refused and the client is disconnected
+    public static final int MAX_FRAME = 4 * 1024 * 1024;
+
+    // Member fields
+    private final PrintJobScheduler mScheduler;
+    private final int mRequestedPort;
+    private final byte[] mSecret;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final ArrayList<Client> mClients = new ArrayList<Client>();
+    private ServerSocket mServerSocket;
+    private AcceptThread mAcceptThread;
+    private int mNextClientId = 1;
+
+    /**
+     * Constructor. The gateway is closed until start() is called.
+     *
+     * @param scheduler Where the jobs are queued
+     * @param port      Loopback port to listen on, or 0 for any free port
+     * @param secret    Shared with the clients allowed to print, at least MIN_SECRET_SIZE bytes
+     */
+    public IngestGateway(PrintJobScheduler scheduler, int port, byte[] secret) {
+        if (secret == null || secret.length < MIN_SECRET_SIZE) {
+            throw new IllegalArgumentException("secret must have at least " + MIN_SECRET_SIZE + " bytes");
+        }
+        mScheduler = scheduler;
+        mRequestedPort = port;
+        mSecret = secret.clone();
+    }
+
+    /**
+     * Return the MAC a client proves the secret with.
+     */
+    static byte[] mac(byte[] secret, byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    /**
+     * Start listening.
+     */
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) return;
+        mServerSocket = new ServerSocket(mRequestedPort, 16, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new AcceptThread(mServerSocket);
+        mAcceptThread.start();
+    }
+
+    /**
+     * Stop listening and disconnect every client. Jobs already queued still print.
+     */
+    public void stop() {
+        ServerSocket serverSocket;
+        Client[] clients;
+        synchronized (this) {
+            serverSocket = mServerSocket;
+            mServerSocket = null;
+            mAcceptThread = null;
+            clients = mClients.toArray(new Client[mClients.size()]);
+            mClients.clear();
+        }
+        if (serverSocket != null) close(serverSocket);
+        for (Client client : clients) client.close();
+    }
+
+    /**
+     * Return the port the gateway listens on, or -1 if it is not started.
+     */
+    public synchronized int getPort() {
+        return mServerSocket != null ? mServerSocket.getLocalPort() : -1;
+    }
+
+    public synchronized int getClientCount() {
+        return mClients.size();
+    }
+
+    private synchronized void removeClient(Client client) {
+        mClients.remove(client);
+    }
+
+    private static void close(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of server socket failed", e);
+        }
+    }
+
+    /**
+     * This thread accepts clients until the server socket is closed.
+     */
+    private class AcceptThread extends Thread {
+        private final ServerSocket mmServerSocket;
+
+        AcceptThread(ServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mAcceptThread port " + mmServerSocket.getLocalPort());
+            setName("IngestAcceptThread");
+
+            while (true) {
+                Socket socket;
+                try {
+                    socket = mmServerSocket.accept();
+                } catch (IOException e) {
+                    if (D) Log.d(TAG, "accept ended: " + e.getMessage());
+                    break;
+                }
+                Client client;
+                synchronized (IngestGateway.this) {
+                    if (mServerSocket != mmServerSocket) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "close() of client socket failed", e);
+                        }
+                        break;
+                    }
+                    client = new Client(socket, mNextClientId++);
+                    mClients.add(client);
+                }
+                if (D) Log.d(TAG, "client " + client.mmId + " connected");
+                client.start();
+            }
+        }
+    }
+
+    /**
+     * One connected process. Its reader thread queues jobs, its writer
+     * thread sends back whatever results have piled up since the last batch.
+     */
+    private class Client implements PrintJob.OnCompletionListener {
+        final int mmId;
+        private final Socket mmSocket;
+        private final String mmSource;
+        // Tags and statuses waiting to be acknowledged
+        private int[] mmAckTags = new int[MAX_IN_FLIGHT];
+        private byte[] mmAckStatus = new byte[MAX_IN_FLIGHT];
+        private int mmAckCount;
+        private int mmInFlight;
+        private boolean mmReadDone;
+        private boolean mmClosed;
+
+        Client(Socket socket, int id) {
+            mmSocket = socket;
+            mmId = id;
+            mmSource = "ingest-" + id;
+        }
+
+        void start() {
+            Thread reader = new Thread() {
+                public void run() {
+                    setName("IngestReader-" + mmId);
+                    read();
+                }
+            };
+            Thread writer = new Thread() {
+                public void run() {
+                    setName("IngestWriter-" + mmId);
+                    write();
+                }
+            };
+            reader.start();
+            writer.start();
+        }
+
+        private void read() {
+            try {
+                mmSocket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(mmSocket.getInputStream()));
+                if (!authenticate(in)) {
+                    close();
+                    return;
+                }
+                while (true) {
+                    int type;
+                    try {
+                        type = in.readUnsignedByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int priority = in.readUnsignedByte();
+                    int tag = in.readInt();
+                    int length = in.readInt();
+                    if (type != FRAME_SUBMIT || length < 0 || length > MAX_FRAME) {
+                        Log.e(TAG, "client " + mmId + " sent a bad frame, type " + type + " length " + length);
+                        break;
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+
+                    if (priority >= PrintJob.PRIORITY_COUNT) {
+                        onResult(tag, STATUS_REJECTED, false);
+                        continue;
+                    }
+                    synchronized (this) {
+                        // Stop reading while the client has enough queued
+                        while (mmInFlight >= MAX_IN_FLIGHT && !mmClosed) wait();
+                        if (mmClosed) break;
+                        mmInFlight++;
+                    }
+                    mScheduler.submit(new IngestJob(data, priority, mmSource, tag).setOnCompletionListener(this));
+                }
+            } catch (IOException e) {
+                if (D) Log.d(TAG, "client " + mmId + " read ended: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Log.e(TAG, "interrupted", e);
+            }
+            // Let the writer send the results still to come, then hang up
+            synchronized (this) {
+                mmReadDone = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Challenge the client to prove the secret. Nothing else is read
+         * or written until it has.
+         */
+        private boolean authenticate(DataInputStream in) throws IOException {
+            byte[] nonce = new byte[NONCE_SIZE];
+            synchronized (mRandom) {
+                mRandom.nextBytes(nonce);
+            }
+            DataOutputStream out = new DataOutputStream(mmSocket.getOutputStream());
+            out.writeByte(FRAME_HELLO);
+            out.write(nonce);
+            out.flush();
+
+            mmSocket.setSoTimeout(AUTH_TIMEOUT_MS);
+            byte[] answer = new byte[MAC_SIZE];
+            int type = in.readUnsignedByte();
+            if (type == FRAME_AUTH) in.readFully(answer);
+            mmSocket.setSoTimeout(0);
+            boolean accepted = type == FRAME_AUTH && MessageDigest.isEqual(answer, mac(mSecret, nonce));
+            out.writeByte(FRAME_AUTH);
+            out.writeByte(accepted ? 1 : 0);
+            out.flush();
+            if (!accepted) Log.e(TAG, "client " + mmId + " failed to authenticate");
+            return accepted;
+        }
+
+        private void write() {
+            int[] tags = new int[MAX_IN_FLIGHT];
+            byte[] status = new byte[MAX_IN_FLIGHT];
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(mmSocket.getOutputStream()));
+                while (true) {
+                    int count;
+                    synchronized (this) {
+                        while (mmAckCount == 0 && !mmClosed && !(mmReadDone && mmInFlight == 0)) wait();
+                        if (mmAckCount == 0) break;
+                        count = mmAckCount;
+                        if (tags.length < count) {
+                            tags = new int[mmAckTags.length];
+                            status = new byte[mmAckTags.length];
+                        }
+                        System.arraycopy(mmAckTags, 0, tags, 0, count);
+                        System.arraycopy(mmAckStatus, 0, status, 0, count);
+                        mmAckCount = 0;
+                    }
+                    out.writeByte(FRAME_ACK);
+                    out.writeInt(count);
+                    for (int i = 0; i < count; i++) {
+                        out.writeInt(tags[i]);
+                        out.writeByte(status[i]);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (D) Log.d(TAG, "client " + mmId + " write ended: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Log.e(TAG, "interrupted", e);
+            }
+            close();
+        }
+
+        private synchronized void onResult(int tag, int status, boolean fromJob) {
+            if (mmAckCount == mmAckTags.length) {
+                int[] tags = new int[mmAckTags.length * 2];
+                byte[] statuses = new byte[tags.length];
+                System.arraycopy(mmAckTags, 0, tags, 0, mmAckCount);
+                System.arraycopy(mmAckStatus, 0, statuses, 0, mmAckCount);
+                mmAckTags = tags;
+                mmAckStatus = statuses;
+            }
+            mmAckTags[mmAckCount] = tag;
+            mmAckStatus[mmAckCount] = (byte) status;
+            mmAckCount++;
+            if (fromJob) mmInFlight--;
+            notifyAll();
+        }
+
+        @Override
+        public void onJobCompleted(PrintJob job) {
+            onResult(((IngestJob) job).mTag, STATUS_PRINTED, true);
+        }
+
+        @Override
+        public void onJobFailed(PrintJob job) {
+            onResult(((IngestJob) job).mTag, STATUS_FAILED, true);
+        }
+
+        void close() {
+            synchronized (this) {
+                mmClosed = true;
+                notifyAll();
+            }
+            removeClient(this);
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of client socket failed", e);
+            }
+        }
+    }
+
+    /**
+     * A job that remembers the tag its client gave it.
+     */
+    private static class IngestJob extends PrintJob {
+        final int mTag;
+
+        IngestJob(byte[] data, int priority, String source, int tag) {
+            super(data, priority, source);
+            mTag = tag;
+        }
+    }
+}
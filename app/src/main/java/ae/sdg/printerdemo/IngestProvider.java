@@ -0,0 +1,75 @@
+package ae.sdg.printerdemo;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * How other apps get onto the ingest gateway. The provider is exported but
+ * guarded by PERMISSION_SUBMIT_JOBS, a signature permission, so only apps
+ * signed with this app's key are let in. Such an app calls
+ *
+ *   getContentResolver().call(Uri.parse("content://" + AUTHORITY), METHOD_OPEN_INGEST, null, null)
+ *
+ * which starts the gateway in PrintService and answers with the loopback
+ * port (EXTRA_PORT) and the secret to authenticate with (EXTRA_SECRET). The
+ * gateway comes up on the service's main thread, so a client retries its
+ * first connect for a moment. Nothing can be queried, inserted or changed.
+ */
+public class IngestProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "ae.sdg.printerdemo.ingest";
+    public static final String PERMISSION_SUBMIT_JOBS = "ae.sdg.printerdemo.permission.SUBMIT_JOBS";
+    public static final String METHOD_OPEN_INGEST = "openIngest";
+    public static final String EXTRA_PORT = "port";
+    public static final String EXTRA_SECRET = "secret";
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_OPEN_INGEST.equals(method)) return null;
+        // The manifest permission only guards the table methods, not call()
+        if (getContext().checkCallingPermission(PERMISSION_SUBMIT_JOBS) != PackageManager.PERMISSION_GRANTED) {
+            throw new SecurityException("Opening the ingest gateway requires " + PERMISSION_SUBMIT_JOBS);
+        }
+        Intent intent = new Intent(getContext(), PrintService.class).setAction(PrintService.ACTION_START_INGEST);
+        getContext().startService(intent);
+        Bundle result = new Bundle();
+        result.putInt(EXTRA_PORT, PrintService.INGEST_PORT);
+        result.putByteArray(EXTRA_SECRET, PrintService.ingestSecret(getContext()));
+        return result;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
@@ -0,0 +1,124 @@
+package ae.sdg.printerdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Where the bytes of a streamed PrintJob come from. The scheduler pulls one
+ * link-sized chunk at a time into a small buffer owned by the job, so the
+ * memory a job needs does not depend on its size.
+ */
+public abstract class JobSource {
+
+    // Files at least this big are memory-mapped instead of read
+    private static final long MAP_THRESHOLD = 256 * 1024;
+    // Size of one mapped window of a large file
+    private static final long MAP_WINDOW = 8 * 1024 * 1024;
+
+    /**
+     * Read up to length bytes.
+     *
+     * @return the number of bytes read, or -1 at the end of the job
+     */
+    public abstract int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Release the underlying stream, channel or file.
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Stream a job from an InputStream. The stream is closed with the job.
+     */
+    public static JobSource fromStream(final InputStream in) {
+        return new JobSource() {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return in.read(buffer, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Stream a job from a channel. The channel is closed with the job.
+     */
+    public static JobSource fromChannel(final ReadableByteChannel channel) {
+        return new JobSource() {
+            private ByteBuffer mWrapped;
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (mWrapped == null || mWrapped.array() != buffer) mWrapped = ByteBuffer.wrap(buffer);
+                mWrapped.limit(offset + length).position(offset);
+                return channel.read(mWrapped);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Stream a spool file. Large files are mapped window by window so their
+     * pages are read by the kernel and never copied into the heap as a whole.
+     */
+    public static JobSource fromFile(String path) throws IOException {
+        return fromFile(new File(path));
+    }
+
+    public static JobSource fromFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return fromFile(raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static JobSource fromFile(final RandomAccessFile raf) throws IOException {
+        final FileChannel channel = raf.getChannel();
+        final long size = channel.size();
+        if (size < MAP_THRESHOLD) return fromChannel(channel);
+
+        return new JobSource() {
+            private MappedByteBuffer mWindow;
+            private long mWindowEnd;
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (mWindow == null || !mWindow.hasRemaining()) {
+                    if (mWindowEnd >= size) return -1;
+                    long windowSize = Math.min(MAP_WINDOW, size - mWindowEnd);
+                    mWindow = channel.map(FileChannel.MapMode.READ_ONLY, mWindowEnd, windowSize);
+                    mWindowEnd += windowSize;
+                }
+                int count = Math.min(length, mWindow.remaining());
+                mWindow.get(buffer, offset, count);
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                mWindow = null;
+                raf.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,212 @@
+package ae.sdg.printerdemo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Printer commands for one label with ${field} placeholders, such as a CPCL
+ * form. The template is split into its literal parts once; rendering a
+ * record only writes those parts and the encoded field values. Arabic text,
+ * in values or in the template itself, goes through the codepage 864 encoder
+ * by way of the shared ArabicPhraseCache, so values that repeat across
+ * records are encoded once. Everything else is written as Latin-1.
+ *
+ * A placeholder such as ${qr:url@40,120} or ${code128:sku@10,200} prints the
+ * value as a barcode at the given CPCL position, with the printer's own
+ * barcode commands. The kinds are code128, ean13 and qr.
+ */
+public class LabelTemplate {
+
+    // What a placeholder stands for, besides the Barcode symbologies
+    private static final int KIND_TEXT = -1;
+
+    // Member fields
+    private final byte[][] mLiterals;
+    private final String[] mFields;
+    private final int[] mKinds;
+    private final int[] mXs;
+    private final int[] mYs;
+    private BarcodeEmitter mBarcodes = new BarcodeEmitter(BarcodeEmitter.DIALECT_CPCL);
+    private final ArabicPhraseCache mArabic = ArabicPhraseCache.getInstance();
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(512);
+
+    /**
+     * Constructor.
+     *
+     * @param template The label commands with ${field} placeholders
+     */
+    public LabelTemplate(String template) {
+        ArrayList<byte[]> literals = new ArrayList<byte[]>();
+        ArrayList<String> fields = new ArrayList<String>();
+        ArrayList<int[]> kinds = new ArrayList<int[]>();
+        int start = 0;
+        while (true) {
+            int open = template.indexOf("${", start);
+            int close = open < 0 ? -1 : template.indexOf('}', open);
+            if (close < 0) {
+                literals.add(encodeLiteral(template.substring(start)));
+                break;
+            }
+            literals.add(encodeLiteral(template.substring(start, open)));
+            String field = template.substring(open + 2, close);
+            int[] kind = parseKind(field);
+            if (kind[0] != KIND_TEXT) {
+                int at = field.indexOf('@');
+                field = field.substring(field.indexOf(':') + 1, at < 0 ? field.length() : at);
+            }
+            fields.add(field);
+            kinds.add(kind);
+            start = close + 1;
+        }
+        mLiterals = literals.toArray(new byte[literals.size()][]);
+        mFields = fields.toArray(new String[fields.size()]);
+        mKinds = new int[mFields.length];
+        mXs = new int[mFields.length];
+        mYs = new int[mFields.length];
+        for (int i = 0; i < mFields.length; i++) {
+            int[] kind = kinds.get(i);
+            mKinds[i] = kind[0];
+            mXs[i] = kind[1];
+            mYs[i] = kind[2];
+        }
+    }
+
+    /**
+     * Print barcode placeholders with the given emitter, normally the one of
+     * the target printer's profile. The default speaks CPCL.
+     */
+    public synchronized void setBarcodeEmitter(BarcodeEmitter emitter) {
+        mBarcodes = emitter;
+    }
+
+    /**
+     * Return the names of the fields the template uses.
+     */
+    public String[] getFields() {
+        return mFields.clone();
+    }
+
+    /**
+     * Render one record. Missing fields are left empty, so is a missing barcode.
+     *
+     * @throws IllegalArgumentException if a value cannot be encoded as its barcode
+     */
+    public synchronized byte[] render(Map<String, String> record) {
+        mOut.reset();
+        for (int i = 0; i < mFields.length; i++) {
+            mOut.write(mLiterals[i], 0, mLiterals[i].length);
+            String value = record.get(mFields[i]);
+            if (value != null && value.length() > 0) {
+                if (mKinds[i] != KIND_TEXT) {
+                    byte[] encoded;
+                    try {
+                        encoded = mBarcodes.emit(barcode(mKinds[i], value), mXs[i], mYs[i]);
+                    } catch (UnsupportedOperationException e) {
+                        throw new IllegalArgumentException("This printer cannot print ${" + mFields[i] + "}", e);
+                    }
+                    mOut.write(encoded, 0, encoded.length);
+                } else if (isArabic(value)) {
+                    mArabic.write(value, true, mOut);
+                } else {
+                    byte[] encoded = latin1(value);
+                    mOut.write(encoded, 0, encoded.length);
+                }
+            }
+        }
+        byte[] last = mLiterals[mFields.length];
+        mOut.write(last, 0, last.length);
+        return mOut.toByteArray();
+    }
+
+    /**
+     * Encode the commands around the placeholders. Runs of Arabic words in
+     * them, such as a fixed caption, are encoded like values.
+     */
+    private byte[] encodeLiteral(String literal) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(literal.length());
+        int i = 0;
+        while (i < literal.length()) {
+            if (!isArabic(literal.charAt(i))) {
+                out.write(literal.charAt(i) < 0x100 ? literal.charAt(i) : '?');
+                i++;
+                continue;
+            }
+            // The run takes the spaces between Arabic words but not the ones after it
+            int end = i + 1;
+            for (int j = end; j < literal.length(); j++) {
+                char c = literal.charAt(j);
+                if (isArabic(c)) {
+                    end = j + 1;
+                } else if (c != ' ') {
+                    break;
+                }
+            }
+            mArabic.write(literal.substring(i, end), true, out);
+            i = end;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Return the kind of a placeholder and its position, as {kind, x, y}.
+     */
+    private static int[] parseKind(String field) {
+        int colon = field.indexOf(':');
+        int kind = KIND_TEXT;
+        if (colon > 0) {
+            String name = field.substring(0, colon);
+            if (name.equals("code128")) {
+                kind = Barcode.CODE128;
+            } else if (name.equals("ean13")) {
+                kind = Barcode.EAN13;
+            } else if (name.equals("qr")) {
+                kind = Barcode.QR;
+            }
+        }
+        int x = 0;
+        int y = 0;
+        int at = field.indexOf('@');
+        if (kind != KIND_TEXT && at > colon) {
+            String[] position = field.substring(at + 1).split(",");
+            try {
+                x = Integer.parseInt(position[0].trim());
+                if (position.length > 1) y = Integer.parseInt(position[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad barcode position in ${" + field + "}");
+            }
+        }
+        return new int[]{kind, x, y};
+    }
+
+    private static Barcode barcode(int kind, String value) {
+        switch (kind) {
+            case Barcode.CODE128:
+                return Barcode.code128(value);
+            case Barcode.EAN13:
+                return Barcode.ean13(value);
+            default:
+                return Barcode.qr(value, 'M');
+        }
+    }
+
+    private static boolean isArabic(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (isArabic(value.charAt(i))) return true;
+        }
+        return false;
+    }
+
+    private static boolean isArabic(char c) {
+        return (c >= 0x600 && c <= 0x6ff) || (c >= 0xfb50 && c <= 0xfeff);
+    }
+
+    private static byte[] latin1(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
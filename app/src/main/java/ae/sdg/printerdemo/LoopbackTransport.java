@@ -0,0 +1,77 @@
+package ae.sdg.printerdemo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A PrintTransport with no printer behind it, for replays and benchmarks.
+ * Bytes are counted and optionally copied to a sink. A link rate can be set
+ * so that writes take as long as they would over RFCOMM.
+ */
+public class LoopbackTransport implements PrintTransport {
+
+    // Member fields
+    private final OutputStream mSink;
+    private volatile boolean mConnected = true;
+    private int mBytesPerSecond;
+    private long mBytesSent;
+    private int mWrites;
+
+    /**
+     * Constructor.
+     *
+     * @param sink Receives a copy of every write, or null
+     */
+    public LoopbackTransport(OutputStream sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Make every write take as long as it would at this rate, or 0 for no delay.
+     */
+    public synchronized LoopbackTransport setBytesPerSecond(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    public void setConnected(boolean connected) {
+        mConnected = connected;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized int getWriteCount() {
+        return mWrites;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public synchronized boolean send(byte[] buffer, int offset, int length) {
+        if (!mConnected) return false;
+        if (mBytesPerSecond > 0) {
+            // An interrupted write fails like a dropped link would
+            try {
+                Thread.sleep(length * 1000L / mBytesPerSecond);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (mSink != null) {
+            try {
+                mSink.write(buffer, offset, length);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        mBytesSent += length;
+        mWrites++;
+        return true;
+    }
+}
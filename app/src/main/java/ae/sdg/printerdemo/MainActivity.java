@@ -4,9 +4,12 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
@@ -21,15 +24,25 @@ import com.ganesh.iarabic.arabic864;
 import static ae.sdg.printerdemo.BluetoothSerialService.*;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener{
+    // Debugging
+    private static final String TAG = "MainActivity";
 
     private BluetoothAdapter mBluetoothAdapter = null;
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE = 1;
     private static final int REQUEST_ENABLE_BT = 2;
+    private static final int REQUEST_TOGGLE_MIRROR = 3;
 
     // Name of the connected device
     private String mConnectedDeviceName = null;
-    private static BluetoothSerialService mSerialService = null;
+    // The engine lives in PrintService, these are set while bound to it
+    private PrintService mPrintService = null;
+    private BluetoothSerialService mSerialService = null;
+    // Address picked before the service connection came up
+    private String mPendingAddress = null;
+    private String mPendingMirror = null;
+    // Reconnect to the last printer once the service is bound, on launch only
+    private boolean mAutoConnect;
 
     //Views
     TextView mStatusTextView;
@@ -44,6 +57,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        mAutoConnect = savedInstanceState == null;
 
         //instance for Arabic under onCreate
         araconvert = new arabic864();
@@ -54,6 +68,15 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         mOrderEditText = (EditText) findViewById(R.id.order_edit_text);
 
         mConnectButton.setOnClickListener(this);
+        // A long press picks a printer that gets a copy of every order, or stops copying to it
+        mConnectButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                Intent serverIntent = new Intent(MainActivity.this, DeviceListActivity.class);
+                startActivityForResult(serverIntent, REQUEST_TOGGLE_MIRROR);
+                return true;
+            }
+        });
         mSendButton.setOnClickListener(this);
 
         mOrderEditText.setText("! 0 200 200 210 1\n" +
@@ -65,13 +88,28 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         if (mBluetoothAdapter == null) {
             finishDialogNoBluetooth();
         }
-        mSerialService = new BluetoothSerialService(this, mHandlerBT);
     }
 
     @Override
     public void onStart() {
         super.onStart();
         mEnablingBT = false;
+
+        // Started as well as bound, so the link survives this Activity
+        Intent intent = new Intent(this, PrintService.class);
+        startService(intent);
+        bindService(intent, mConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        if (mPrintService != null) {
+            mPrintService.removeClient(mHandlerBT);
+            mPrintService = null;
+            mSerialService = null;
+        }
+        unbindService(mConnection);
     }
 
     @Override
@@ -101,6 +139,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 alert.show();
             }
 
+            // Back on the order screen, a print is likely
+            if (mPrintService != null) mPrintService.prewarm();
+
             if (mSerialService != null) {
                 // Only if the state is STATE_NONE, do we know that we haven't started already
                 if (mSerialService.getState() == BluetoothSerialService.STATE_NONE) {
@@ -116,21 +157,62 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     public int getConnectionState() {
+        if (mSerialService == null) return BluetoothSerialService.STATE_NONE;
         return mSerialService.getState();
     }
 
-    public void send(byte[] out) {
-        mSerialService.write(out);
+    public void print(byte[] out, int priority) {
+        if (mPrintService != null)
+            mPrintService.printOrder(out, priority, TAG);
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (mSerialService != null)
-            mSerialService.stop();
+    private void connectDevice(String address) {
+        // Get the BLuetoothDevice object
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        // Attempt to connect to the device
+        mSerialService.connect(device);
+    }
 
+    private void toggleMirror(String address) {
+        int text;
+        if (mPrintService.isMirror(address)) {
+            mPrintService.removeMirror(address);
+            text = R.string.mirror_removed;
+        } else {
+            mPrintService.addMirror(address);
+            text = R.string.mirror_added;
+        }
+        Toast.makeText(getApplicationContext(), getString(text, address), Toast.LENGTH_SHORT).show();
     }
 
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mPrintService = ((PrintService.LocalBinder) service).getService();
+            mSerialService = mPrintService.getSerialService();
+            // Replays the current state into mHandlerBT
+            mPrintService.addClient(mHandlerBT);
+            if (mPendingAddress != null) {
+                connectDevice(mPendingAddress);
+                mPendingAddress = null;
+            } else if (!(mAutoConnect && mPrintService.connectLastPrinter())) {
+                // The order screen is up, a print is likely
+                mPrintService.prewarm();
+            }
+            mAutoConnect = false;
+            if (mPendingMirror != null) {
+                toggleMirror(mPendingMirror);
+                mPendingMirror = null;
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mPrintService = null;
+            mSerialService = null;
+        }
+    };
+
     // The Handler that gets information back from the BluetoothService
     private final Handler mHandlerBT = new Handler() {
 
@@ -224,10 +306,24 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                     // Get the device MAC address
                     String address = data.getExtras()
                             .getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
-                    // Get the BLuetoothDevice object
-                    BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-                    // Attempt to connect to the device
-                    mSerialService.connect(device);
+                    // Results arrive before the service is bound again
+                    if (mSerialService != null) {
+                        connectDevice(address);
+                    } else {
+                        mPendingAddress = address;
+                    }
+                }
+                break;
+
+            case REQUEST_TOGGLE_MIRROR:
+                if (resultCode == Activity.RESULT_OK) {
+                    String address = data.getExtras()
+                            .getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+                    if (mPrintService != null) {
+                        toggleMirror(address);
+                    } else {
+                        mPendingMirror = address;
+                    }
                 }
                 break;
 
@@ -249,14 +345,14 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                     Intent serverIntent = new Intent(this, DeviceListActivity.class);
                     startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE);
                 } else if (getConnectionState() == BluetoothSerialService.STATE_CONNECTED) {
-                    mSerialService.stop();
+                    mPrintService.disconnect();
                     mSerialService.start();
                 }
                 break;
             case R.id.send_button:
                 String command = mOrderEditText.getText().toString();
                 if (!command.isEmpty())
-                    send(araconvert.Convert(command, true));
+                    print(araconvert.Convert(command, true), PrintJob.PRIORITY_INTERACTIVE);
                 break;
         }
     }
@@ -0,0 +1,202 @@
+package ae.sdg.printerdemo;
+
+import android.util.Log;
+
+/**
+ * Sends one SharedPrintBuffer to several printers at once. Every target is a
+ * PrintJobScheduler with a link of its own, so the copies go out in parallel
+ * on the targets' dispatch threads while the bytes exist once. Each target is
+ * tracked on its own; the buffer reference held for a target is given back
+ * as soon as that target finishes. A target whose link dropped would hold
+ * its copy forever, so with a timeout set the copies still unfinished when
+ * it passes are cancelled and the job ends with the targets that printed.
+ */
+public class MirrorJob {
+    // Debugging
+    private static final String TAG = "MirrorJob";
+    private static final boolean D = true;
+
+    /**
+     * Outcome of the copies. Called on the targets' dispatch threads, so
+     * implementations must not block.
+     */
+    public interface OnMirrorListener {
+        void onTargetFinished(MirrorJob job, int target, boolean completed);
+
+        /**
+         * @param completed Number of targets that printed the job
+         */
+        void onAllFinished(MirrorJob job, int completed);
+    }
+
+    // Member fields
+    private final SharedPrintBuffer mBuffer;
+    private final PrintJobScheduler[] mTargets;
+    private final PrintJob[] mJobs;
+    private final int mPriority;
+    private final String mSource;
+    private final boolean[] mTimedOut;
+    private OnMirrorListener mListener;
+    private long mTimeoutMillis;
+    private boolean mExpired;
+    private int mFinished;
+    private int mCompleted;
+
+    /**
+     * Constructor. Nothing is sent until submit().
+     *
+     * @param buffer   The bytes to send. The job takes its own references.
+     * @param targets  One scheduler per printer
+     * @param priority One of the PrintJob PRIORITY_ constants
+     * @param source   Name of the producer
+     */
+    public MirrorJob(SharedPrintBuffer buffer, PrintJobScheduler[] targets, int priority, String source) {
+        mBuffer = buffer;
+        mTargets = targets.clone();
+        mJobs = new PrintJob[targets.length];
+        mTimedOut = new boolean[targets.length];
+        mPriority = priority;
+        mSource = source;
+    }
+
+    public MirrorJob setOnMirrorListener(OnMirrorListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Cancel the copies that have not finished this long after submit(), or
+     * 0 to wait for them however long it takes.
+     */
+    public MirrorJob setTimeout(long millis) {
+        mTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Queue a copy on every target.
+     */
+    public MirrorJob submit() {
+        for (int i = 0; i < mTargets.length; i++) {
+            mBuffer.retain();
+            PrintJob job = mBuffer.newJob(mPriority, mSource);
+            job.setOnCompletionListener(mCompletionListener);
+            synchronized (this) {
+                mJobs[i] = job;
+            }
+            mTargets[i].submit(job);
+        }
+        if (mTimeoutMillis > 0) new WatchdogThread().start();
+        return this;
+    }
+
+    /**
+     * Cancel the copies that have not finished yet.
+     */
+    public void cancel() {
+        for (int i = 0; i < mTargets.length; i++) {
+            PrintJob job;
+            synchronized (this) {
+                job = mJobs[i];
+            }
+            if (job != null) mTargets[i].cancel(job);
+        }
+    }
+
+    public int getTargetCount() {
+        return mTargets.length;
+    }
+
+    /**
+     * Return the PrintJob state of the copy for a target.
+     */
+    public synchronized int getState(int target) {
+        return mJobs[target] != null ? mJobs[target].getState() : PrintJob.STATE_QUEUED;
+    }
+
+    /**
+     * Return how many bytes a target has been sent.
+     */
+    public synchronized long getBytesSent(int target) {
+        return mJobs[target] != null ? mJobs[target].getBytesSent() : 0;
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished == mTargets.length;
+    }
+
+    /**
+     * Return the number of targets that printed the job so far.
+     */
+    public synchronized int getCompletedCount() {
+        return mCompleted;
+    }
+
+    /**
+     * Return true if the copy for a target was cancelled by the timeout.
+     */
+    public synchronized boolean isTimedOut(int target) {
+        return mTimedOut[target];
+    }
+
+    private void onFinished(PrintJob job, boolean completed) {
+        int target = -1;
+        boolean all;
+        int count;
+        synchronized (this) {
+            for (int i = 0; i < mJobs.length; i++) {
+                if (mJobs[i] == job) target = i;
+            }
+            mFinished++;
+            if (completed) mCompleted++;
+            if (!completed && mExpired) mTimedOut[target] = true;
+            all = mFinished == mTargets.length;
+            count = mCompleted;
+            notifyAll();
+        }
+        mBuffer.release();
+        if (D) Log.d(TAG, "target " + target + (completed ? " completed" : " failed"));
+        OnMirrorListener listener = mListener;
+        if (listener != null) {
+            listener.onTargetFinished(this, target, completed);
+            if (all) listener.onAllFinished(this, count);
+        }
+    }
+
+    /**
+     * Waits for the copies until the timeout and cancels the ones left.
+     */
+    private class WatchdogThread extends Thread {
+
+        public void run() {
+            setName("MirrorWatchdog");
+            long until = PrintJobScheduler.now() + mTimeoutMillis;
+            synchronized (MirrorJob.this) {
+                try {
+                    long left;
+                    while (mFinished < mTargets.length && (left = until - PrintJobScheduler.now()) > 0) {
+                        MirrorJob.this.wait(left);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (mFinished == mTargets.length) return;
+                mExpired = true;
+            }
+            if (D) Log.d(TAG, "timed out after " + mTimeoutMillis + "ms, cancelling the copies left");
+            cancel();
+        }
+    }
+
+    private final PrintJob.OnCompletionListener mCompletionListener = new PrintJob.OnCompletionListener() {
+        @Override
+        public void onJobCompleted(PrintJob job) {
+            onFinished(job, true);
+        }
+
+        @Override
+        public void onJobFailed(PrintJob job) {
+            onFinished(job, false);
+        }
+    };
+}
@@ -0,0 +1,53 @@
+package ae.sdg.printerdemo;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The receipt the order screen prints: the Arabic heading, the command that
+ * selects the downloaded Arabic font, a line of codepage 864 sample glyphs,
+ * the order itself and the signature. The framing is part of the job bytes,
+ * so it goes through the scheduler like everything else. The heading is laid
+ * out for the paper width of the printer, so it lines up on the right.
+ */
+public class OrderReceipt {
+
+    static final String HEADING = "استلام العينة";
+    static final String SIGNATURE = "بيتر زاهر";
+
+    // Codepage 864 glyphs printed in the Arabic font, ending in CR
+    private static final byte[] SAMPLE = {(byte) 0xd5, (byte) 0xd6, (byte) 0xd7, (byte) 0xed, (byte) 0xee, 0x0D};
+    private static final byte[] LF = {'\n'};
+
+    private OrderReceipt() {
+    }
+
+    /**
+     * Encode the phrases every receipt repeats ahead of the first order.
+     */
+    public static void warmUp() {
+        ArabicPhraseCache.getInstance().warmUp(HEADING, SIGNATURE);
+    }
+
+    /**
+     * Frame an order for a printer.
+     *
+     * @param profile The printer the receipt is for
+     * @param order   The order, already encoded for codepage 864
+     */
+    public static byte[] encode(PrinterProfile profile, byte[] order) {
+        ArabicPhraseCache phrases = ArabicPhraseCache.getInstance();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(order.length + 64);
+        // The framing has always ended its lines in a bare LF
+        ReceiptLayout heading = profile.newReceiptLayout(ReceiptLayout.MODE_LINE).setBareLf(true);
+        byte[] line = heading.text(HEADING, ReceiptLayout.ALIGN_START).toByteArray();
+        out.write(line, 0, line.length);
+        byte[] font = profile.selectArabicFont();
+        out.write(font, 0, font.length);
+        out.write(SAMPLE, 0, SAMPLE.length);
+        out.write(LF, 0, LF.length);
+        out.write(LF, 0, LF.length);
+        out.write(order, 0, order.length);
+        phrases.write(SIGNATURE, true, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,373 @@
+package ae.sdg.printerdemo;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A unit of work for the PrintJobScheduler. The payload is split at CPCL form
+ * boundaries (a line reading "PRINT") so that the scheduler can hand the
+ * printer to a more urgent job between two labels of a large batch.
+ *
+ * A job is either an array, split up front, or a JobSource that is read one
+ * link-sized chunk at a time while printing. Streamed chunks are cut at form
+ * boundaries as they are found; a chunk that ends inside a form keeps the
+ * link until the form is finished.
+ */
+public class PrintJob {
+
+    // Priority classes, most urgent first
+    public static final int PRIORITY_INTERACTIVE = 0; // receipts a customer is waiting for
+    public static final int PRIORITY_NORMAL = 1;      // regular documents
+    public static final int PRIORITY_BULK = 2;        // label batches and other background work
+    public static final int PRIORITY_COUNT = 3;
+
+    // Job states
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_PRINTING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    // Debugging
+    private static final String TAG = "PrintJob";
+
+    // Streamed jobs are read in chunks of about one RFCOMM frame
+    public static final int CHUNK_SIZE = 990;
+
+    private static final byte[] FORM_TERMINATOR = {'P', 'R', 'I', 'N', 'T'};
+    private static final AtomicLong sNextId = new AtomicLong(1);
+
+    /**
+     * Callbacks for the outcome of a job. They are called on the scheduler's
+     * dispatch thread, so they must not block.
+     */
+    public interface OnCompletionListener {
+        void onJobCompleted(PrintJob job);
+
+        void onJobFailed(PrintJob job);
+    }
+
+    private final long mId;
+    private final byte[] mData;
+    private final int[] mFormEnds;
+    private final JobSource mInput;
+    private final int mPriority;
+    private final String mSource;
+    private final long mDeadline;
+    private OnCompletionListener mListener;
+
+    // Dispatch bookkeeping, only touched by the scheduler
+    long mEnqueueTime;
+    long mStartTime;
+    int mNextForm;
+    long mBytesSent;
+    volatile int mState = STATE_QUEUED;
+
+    // The segment returned by the last nextSegment()
+    byte[] mSegment;
+    int mSegmentOffset;
+    int mSegmentLength;
+    boolean mSegmentEndsForm;
+
+    // Streaming state: the chunk buffer and the form terminator scanner
+    private byte[] mChunk;
+    private int mChunkPos;
+    private int mChunkLimit;
+    private boolean mEof;
+    private int mMatched;
+    private boolean mMatchedCr;
+    private boolean mLineStart = true;
+    // A CPCL form header went out without its PRINT line
+    private boolean mFormOpen;
+
+    /**
+     * Create a job without a deadline.
+     *
+     * @param data     The bytes to print
+     * @param priority One of the PRIORITY_ constants
+     * @param source   Name of the producer, used to interleave producers fairly
+     */
+    public PrintJob(byte[] data, int priority, String source) {
+        this(data, priority, source, 0);
+    }
+
+    /**
+     * Create a job.
+     *
+     * @param data     The bytes to print
+     * @param priority One of the PRIORITY_ constants
+     * @param source   Name of the producer, used to interleave producers fairly
+     * @param deadline Time, in the PrintJobScheduler#now() clock, by which printing
+     *                 should have started, or 0 for none
+     */
+    public PrintJob(byte[] data, int priority, String source, long deadline) {
+        this(data, data != null ? findFormEnds(data) : null, priority, source, deadline);
+    }
+
+    /**
+     * Create a job whose forms were already found, for data shared by several jobs.
+     */
+    PrintJob(byte[] data, int[] formEnds, int priority, String source, long deadline) {
+        if (data == null) throw new IllegalArgumentException("data == null");
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+        mId = sNextId.getAndIncrement();
+        mData = data;
+        mFormEnds = formEnds;
+        mInput = null;
+        mPriority = priority;
+        mSource = source != null ? source : "";
+        mDeadline = deadline;
+    }
+
+    /**
+     * Create a streamed job. The input is closed when the job ends.
+     *
+     * @param input    Where the bytes come from
+     * @param priority One of the PRIORITY_ constants
+     * @param source   Name of the producer, used to interleave producers fairly
+     * @param deadline Time, in the PrintJobScheduler#now() clock, by which printing
+     *                 should have started, or 0 for none
+     */
+    public PrintJob(JobSource input, int priority, String source, long deadline) {
+        if (input == null) throw new IllegalArgumentException("input == null");
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+        mId = sNextId.getAndIncrement();
+        mData = null;
+        mFormEnds = null;
+        mInput = input;
+        mPriority = priority;
+        mSource = source != null ? source : "";
+        mDeadline = deadline;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Return the payload of an array job, or null for a streamed job.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public boolean isStreamed() {
+        return mInput != null;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public String getSource() {
+        return mSource;
+    }
+
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Return the number of segments the scheduler may interleave with other
+     * jobs, or -1 for a streamed job where this is not known in advance.
+     */
+    public int getFormCount() {
+        return mFormEnds != null ? mFormEnds.length : -1;
+    }
+
+    /**
+     * Return the number of segments written so far.
+     */
+    public int getSegmentsSent() {
+        return mNextForm;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public PrintJob setOnCompletionListener(OnCompletionListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    OnCompletionListener getOnCompletionListener() {
+        return mListener;
+    }
+
+    /**
+     * Return true if the bytes sent so far left a CPCL form open. Only
+     * streamed jobs can stop inside a form.
+     */
+    boolean isFormOpen() {
+        return mFormOpen;
+    }
+
+    /**
+     * Return false once it is certain that nothing is left to send.
+     */
+    boolean hasMore() {
+        if (mFormEnds != null) return mNextForm < mFormEnds.length;
+        return !mEof || mChunkPos < mChunkLimit;
+    }
+
+    /**
+     * Load the next segment into mSegment, mSegmentOffset and mSegmentLength.
+     * Array jobs hand out one form at a time without copying; streamed jobs
+     * read into their chunk buffer and cut it after a form terminator.
+     *
+     * @return false if the job has no more data, or none yet if hasMore()
+     * is still true, e.g. a non-blocking channel that is empty for now
+     */
+    boolean nextSegment() throws IOException {
+        if (mFormEnds != null) {
+            if (mNextForm >= mFormEnds.length) return false;
+            mSegment = mData;
+            mSegmentOffset = mNextForm == 0 ? 0 : mFormEnds[mNextForm - 1];
+            mSegmentLength = mFormEnds[mNextForm] - mSegmentOffset;
+            mSegmentEndsForm = true;
+            return true;
+        }
+
+        if (mChunkPos == mChunkLimit) {
+            if (mEof) return false;
+            if (mChunk == null) mChunk = new byte[CHUNK_SIZE];
+            int count = mInput.read(mChunk, 0, mChunk.length);
+            if (count == 0) return false;
+            if (count < 0) {
+                mEof = true;
+                return false;
+            }
+            mChunkPos = 0;
+            mChunkLimit = count;
+        }
+
+        int end = mChunkPos;
+        boolean endsForm = false;
+        while (end < mChunkLimit && !endsForm) {
+            endsForm = scan(mChunk[end++]);
+        }
+        mSegment = mChunk;
+        mSegmentOffset = mChunkPos;
+        mSegmentLength = end - mChunkPos;
+        mSegmentEndsForm = endsForm;
+        mChunkPos = end;
+        return true;
+    }
+
+    /**
+     * Feed one byte to the form terminator scanner.
+     *
+     * @return true if the byte ends a "PRINT" line
+     */
+    private boolean scan(byte b) {
+        if (b == '\n') {
+            boolean terminator = mMatched == FORM_TERMINATOR.length;
+            if (terminator) mFormOpen = false;
+            mMatched = 0;
+            mMatchedCr = false;
+            mLineStart = true;
+            return terminator;
+        }
+        // Every CPCL form starts with a "! " header line
+        if (mLineStart && b == '!') mFormOpen = true;
+        mLineStart = false;
+        if (mMatched < 0) return false;
+        if (mMatchedCr) {
+            mMatched = -1;
+        } else if (b == '\r' && mMatched == FORM_TERMINATOR.length) {
+            mMatchedCr = true;
+        } else if (mMatched < FORM_TERMINATOR.length && b == FORM_TERMINATOR[mMatched]) {
+            mMatched++;
+        } else {
+            mMatched = -1;
+        }
+        return false;
+    }
+
+    /**
+     * Close the input of a streamed job without touching its buffers, so a
+     * read blocked on it returns while the dispatch thread still owns them.
+     */
+    void closeInput() {
+        if (mInput == null) return;
+        try {
+            mInput.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of job input failed", e);
+        }
+    }
+
+    /**
+     * Release the input and the chunk buffer of a streamed job.
+     */
+    void close() {
+        mChunk = null;
+        mSegment = null;
+        if (mInput == null) return;
+        try {
+            mInput.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of job input failed", e);
+        }
+    }
+
+    /**
+     * Find the end offset of every form, including the line break after the
+     * terminator. The last segment always ends at data.length.
+     */
+    static int[] findFormEnds(byte[] data) {
+        int count = 0;
+        int[] ends = new int[4];
+        int lineStart = 0;
+        int length = data.length;
+        for (int i = 0; i <= length; i++) {
+            if (i < length && data[i] != '\n') continue;
+
+            int lineEnd = i;
+            if (lineEnd > lineStart && data[lineEnd - 1] == '\r') lineEnd--;
+            if (isTerminator(data, lineStart, lineEnd)) {
+                int formEnd = i < length ? i + 1 : length;
+                if (formEnd < length) {
+                    if (count == ends.length) {
+                        int[] grown = new int[count * 2];
+                        System.arraycopy(ends, 0, grown, 0, count);
+                        ends = grown;
+                    }
+                    ends[count++] = formEnd;
+                }
+            }
+            lineStart = i + 1;
+        }
+
+        int[] result = new int[count + 1];
+        System.arraycopy(ends, 0, result, 0, count);
+        result[count] = length;
+        return result;
+    }
+
+    private static boolean isTerminator(byte[] data, int start, int end) {
+        if (end - start != FORM_TERMINATOR.length) return false;
+        for (int i = 0; i < FORM_TERMINATOR.length; i++) {
+            if (data[start + i] != FORM_TERMINATOR[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "PrintJob{id=" + mId + ", priority=" + mPriority + ", source=" + mSource
+                + (mData != null ? ", bytes=" + mData.length + ", forms=" + mFormEnds.length : ", streamed")
+                + "}";
+    }
+}
@@ -0,0 +1,474 @@
+package ae.sdg.printerdemo;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This class sits in front of a PrintTransport and decides which job goes
+ * down the link next. Jobs are queued per priority class and, inside a class,
+ * per source; sources take turns form by form so one producer cannot starve
+ * another. A more urgent class always wins at the next form boundary, and a
+ * job whose deadline is about to pass jumps ahead of everything else.
+ */
+public class PrintJobScheduler {
+    // Debugging
+    private static final String TAG = "PrintJobScheduler";
+    private static final boolean D = true;
+
+    // How often a held queue re-checks the link while it is down
+    private static final long HOLD_POLL_MS = 500;
+    // Jobs this close to their deadline are dispatched before any other class
+    private static final long DEADLINE_GUARD_MS = 250;
+    // How often a streamed job whose input has nothing yet is read again
+    private static final long STALL_POLL_MS = 20;
+    // Ends the form a cancelled job left open, after finishing its last line
+    private static final byte[] FORM_CLOSE = {'\r', '\n', 'P', 'R', 'I', 'N', 'T', '\r', '\n'};
+
+    /**
+     * Lets a health check hold the queue and use the gaps between forms. Both
+     * methods are called on the dispatch thread, never while a form is being
+     * written, so the gate may write short queries to the transport itself.
+     */
+    public interface Gate {
+        /**
+         * Do any periodic work, such as sending a status query.
+         *
+         * @param now    The scheduler clock
+         * @param queued Number of jobs waiting or printing
+         * @return milliseconds until the gate wants to be called again
+         */
+        long onDispatchGap(long now, int queued);
+
+        /**
+         * Return false to hold all jobs.
+         */
+        boolean isReady();
+    }
+
+    /**
+     * Told about every job as it is queued, on the submitting thread and
+     * outside the scheduler lock, e.g. to bring a closed link back up.
+     */
+    public interface OnSubmitListener {
+        void onSubmit(PrintJob job);
+    }
+
+    /**
+     * Per priority class counters. getStats() hands out copies, so a snapshot
+     * can be read without holding the scheduler lock.
+     */
+    public static class ClassStats {
+        public int queueDepth;
+        public long submitted;
+        public long completed;
+        public long failed;
+        public long cancelled;
+        public long deadlineMisses;
+        public long totalWaitMillis;
+        public long maxWaitMillis;
+        public long started;
+
+        public long getAverageWaitMillis() {
+            return started == 0 ? 0 : totalWaitMillis / started;
+        }
+
+        ClassStats copy() {
+            ClassStats c = new ClassStats();
+            c.queueDepth = queueDepth;
+            c.submitted = submitted;
+            c.completed = completed;
+            c.failed = failed;
+            c.cancelled = cancelled;
+            c.deadlineMisses = deadlineMisses;
+            c.totalWaitMillis = totalWaitMillis;
+            c.maxWaitMillis = maxWaitMillis;
+            c.started = started;
+            return c;
+        }
+
+        @Override
+        public String toString() {
+            return "depth=" + queueDepth + " submitted=" + submitted + " completed=" + completed
+                    + " failed=" + failed + " avgWait=" + getAverageWaitMillis() + "ms"
+                    + " maxWait=" + maxWaitMillis + "ms misses=" + deadlineMisses;
+        }
+    }
+
+    /**
+     * The jobs of one priority class. Every source has its own FIFO, and the
+     * rotation holds the sources that still have work, in turn order.
+     */
+    private static class ClassQueue {
+        final HashMap<String, ArrayDeque<PrintJob>> mBySource = new HashMap<String, ArrayDeque<PrintJob>>();
+        final ArrayDeque<String> mRotation = new ArrayDeque<String>();
+    }
+
+    // Member fields
+    private final PrintTransport mTransport;
+    private final ClassQueue[] mQueues = new ClassQueue[PrintJob.PRIORITY_COUNT];
+    private final ClassStats[] mStats = new ClassStats[PrintJob.PRIORITY_COUNT];
+    private int mQueuedCount;
+    private boolean mRunning;
+    private DispatchThread mDispatchThread;
+    // Copied on write so the dispatch thread can walk it outside the lock
+    private Gate[] mGates = new Gate[0];
+    private volatile OnSubmitListener mSubmitListener;
+    // A streamed job whose last chunk ended inside a form
+    private PrintJob mMidForm;
+    // The job the dispatch thread is reading or writing outside the lock
+    private PrintJob mDispatching;
+    // A cancelled job left a form open that must be ended before the next one
+    private boolean mCloseForm;
+
+    /**
+     * Constructor. The scheduler is idle until start() is called.
+     *
+     * @param transport The link jobs are written to
+     */
+    public PrintJobScheduler(PrintTransport transport) {
+        mTransport = transport;
+        for (int i = 0; i < PrintJob.PRIORITY_COUNT; i++) {
+            mQueues[i] = new ClassQueue();
+            mStats[i] = new ClassStats();
+        }
+    }
+
+    /**
+     * Return the scheduler clock in milliseconds. Deadlines are expressed in it.
+     */
+    public static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * Add a gate consulted before every form. Jobs only go out while every
+     * gate is ready.
+     */
+    public synchronized void addGate(Gate gate) {
+        Gate[] gates = new Gate[mGates.length + 1];
+        System.arraycopy(mGates, 0, gates, 0, mGates.length);
+        gates[mGates.length] = gate;
+        mGates = gates;
+        notifyAll();
+    }
+
+    public synchronized void removeGate(Gate gate) {
+        ArrayList<Gate> gates = new ArrayList<Gate>(Arrays.asList(mGates));
+        if (gates.remove(gate)) mGates = gates.toArray(new Gate[gates.size()]);
+        notifyAll();
+    }
+
+    public void setOnSubmitListener(OnSubmitListener listener) {
+        mSubmitListener = listener;
+    }
+
+    /**
+     * Make the dispatch thread call the gates now, e.g. because a gate has
+     * new work or the link came up.
+     */
+    public synchronized void wake() {
+        notifyAll();
+    }
+
+    /**
+     * Start the dispatch thread.
+     */
+    public synchronized void start() {
+        if (D) Log.d(TAG, "start");
+        if (mDispatchThread != null) return;
+        mRunning = true;
+        mDispatchThread = new DispatchThread();
+        mDispatchThread.start();
+    }
+
+    /**
+     * Stop the dispatch thread. Queued jobs stay queued until the next start().
+     */
+    public synchronized void stop() {
+        if (D) Log.d(TAG, "stop");
+        mRunning = false;
+        mDispatchThread = null;
+        notifyAll();
+    }
+
+    /**
+     * Queue a job for printing.
+     *
+     * @param job The job to queue
+     */
+    public void submit(PrintJob job) {
+        synchronized (this) {
+            if (job.mState != PrintJob.STATE_QUEUED || job.mEnqueueTime != 0) {
+                throw new IllegalStateException("Job already submitted: " + job);
+            }
+            ClassQueue queue = mQueues[job.getPriority()];
+            ArrayDeque<PrintJob> jobs = queue.mBySource.get(job.getSource());
+            if (jobs == null) {
+                jobs = new ArrayDeque<PrintJob>();
+                queue.mBySource.put(job.getSource(), jobs);
+                queue.mRotation.addLast(job.getSource());
+            }
+            jobs.addLast(job);
+            job.mEnqueueTime = now();
+
+            ClassStats stats = mStats[job.getPriority()];
+            stats.submitted++;
+            stats.queueDepth++;
+            mQueuedCount++;
+            if (D) Log.d(TAG, "submit " + job);
+            notifyAll();
+        }
+        OnSubmitListener listener = mSubmitListener;
+        if (listener != null) listener.onSubmit(job);
+    }
+
+    /**
+     * Cancel a job. A job that is already printing stops after the segment
+     * being written; a streamed job waiting for its input has the input
+     * closed. If that leaves a CPCL form open, the form is ended with
+     * PRINT before anything else is sent, so the printer prints the part of
+     * the label it got instead of reading the next job into it.
+     *
+     * @return false if the job had already finished
+     */
+    public boolean cancel(PrintJob job) {
+        synchronized (this) {
+            if (job.mState != PrintJob.STATE_QUEUED && job.mState != PrintJob.STATE_PRINTING) {
+                return false;
+            }
+            removeJob(job);
+            // The job being written is closed by the dispatch thread
+            if (job != mDispatching) {
+                if (job.isFormOpen()) mCloseForm = true;
+                job.close();
+            } else {
+                // The dispatch thread closes the rest
+                job.closeInput();
+            }
+            if (job == mMidForm) mMidForm = null;
+            job.mState = PrintJob.STATE_CANCELLED;
+            mStats[job.getPriority()].cancelled++;
+            notifyAll();
+        }
+        notifyFinished(job, false);
+        return true;
+    }
+
+    /**
+     * Return the number of jobs waiting or printing.
+     */
+    public synchronized int getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    /**
+     * Return a snapshot of the counters of one priority class.
+     *
+     * @param priority One of the PrintJob.PRIORITY_ constants
+     */
+    public synchronized ClassStats getStats(int priority) {
+        return mStats[priority].copy();
+    }
+
+    /**
+     * Pick the job that owns the next form slot. Must hold the lock.
+     */
+    private PrintJob selectNext(long now) {
+        // A job about to miss its deadline goes first, earliest deadline wins
+        PrintJob urgent = null;
+        for (ClassQueue queue : mQueues) {
+            for (ArrayDeque<PrintJob> jobs : queue.mBySource.values()) {
+                PrintJob head = jobs.peekFirst();
+                long deadline = head.getDeadline();
+                if (deadline != 0 && deadline - now <= DEADLINE_GUARD_MS
+                        && (urgent == null || deadline < urgent.getDeadline())) {
+                    urgent = head;
+                }
+            }
+        }
+        if (urgent != null) return urgent;
+
+        // Otherwise the most urgent class, taking its sources in turn
+        for (ClassQueue queue : mQueues) {
+            String source = queue.mRotation.peekFirst();
+            if (source != null) return queue.mBySource.get(source).peekFirst();
+        }
+        return null;
+    }
+
+    /**
+     * Remove a job from its source queue. Must hold the lock.
+     */
+    private void removeJob(PrintJob job) {
+        ClassQueue queue = mQueues[job.getPriority()];
+        ArrayDeque<PrintJob> jobs = queue.mBySource.get(job.getSource());
+        if (jobs == null || !jobs.remove(job)) return;
+        if (jobs.isEmpty()) {
+            queue.mBySource.remove(job.getSource());
+            queue.mRotation.remove(job.getSource());
+        }
+        mStats[job.getPriority()].queueDepth--;
+        mQueuedCount--;
+    }
+
+    /**
+     * Move the job's source to the back of its class rotation. Must hold the lock.
+     */
+    private void rotate(PrintJob job) {
+        ArrayDeque<String> rotation = mQueues[job.getPriority()].mRotation;
+        if (rotation.remove(job.getSource())) rotation.addLast(job.getSource());
+    }
+
+    private void notifyFinished(PrintJob job, boolean completed) {
+        PrintJob.OnCompletionListener listener = job.getOnCompletionListener();
+        if (listener == null) return;
+        if (completed) {
+            listener.onJobCompleted(job);
+        } else {
+            listener.onJobFailed(job);
+        }
+    }
+
+    /**
+     * This thread takes one segment at a time from the queues and writes it to
+     * the transport. The lock is only held while choosing, never while reading
+     * a streamed job or writing.
+     */
+    private class DispatchThread extends Thread {
+
+        public void run() {
+            Log.i(TAG, "BEGIN mDispatchThread");
+            setName("DispatchThread");
+
+            while (true) {
+                Gate[] gates;
+                int queued;
+                boolean midForm;
+                boolean closeForm;
+                synchronized (PrintJobScheduler.this) {
+                    if (!mRunning || mDispatchThread != this) return;
+                    gates = mGates;
+                    queued = mQueuedCount;
+                    midForm = mMidForm != null;
+                    closeForm = mCloseForm;
+                    mCloseForm = false;
+                }
+                boolean connected = mTransport.isConnected();
+                // A form left open by a cancelled job dies with the link otherwise
+                if (closeForm && connected) {
+                    if (D) Log.d(TAG, "ending the form of a cancelled job");
+                    mTransport.send(FORM_CLOSE, 0, FORM_CLOSE.length);
+                }
+                // Let the gates use the gap before the next form
+                long gateDelay = 0;
+                if (connected && !midForm) {
+                    for (Gate gate : gates) {
+                        long delay = Math.max(1, gate.onDispatchGap(now(), queued));
+                        if (gateDelay == 0 || delay < gateDelay) gateDelay = delay;
+                    }
+                }
+
+                PrintJob job;
+                synchronized (PrintJobScheduler.this) {
+                    if (!mRunning || mDispatchThread != this) return;
+                    boolean held = false;
+                    if (!midForm) {
+                        for (Gate gate : gates) held |= !gate.isReady();
+                    }
+                    if (mQueuedCount == 0 || !connected || held) {
+                        // Nothing to do, or the queue is held
+                        long wait = mQueuedCount == 0 ? gateDelay : HOLD_POLL_MS;
+                        if (!connected) wait = mQueuedCount == 0 ? 0 : HOLD_POLL_MS;
+                        if (gateDelay > 0 && wait > gateDelay) wait = gateDelay;
+                        try {
+                            PrintJobScheduler.this.wait(wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        continue;
+                    }
+
+                    long now = now();
+                    job = mMidForm != null ? mMidForm : selectNext(now);
+                    mDispatching = job;
+                    if (job.mState == PrintJob.STATE_QUEUED) {
+                        job.mState = PrintJob.STATE_PRINTING;
+                        job.mStartTime = now;
+                        long wait = now - job.mEnqueueTime;
+                        ClassStats stats = mStats[job.getPriority()];
+                        stats.started++;
+                        stats.totalWaitMillis += wait;
+                        if (wait > stats.maxWaitMillis) stats.maxWaitMillis = wait;
+                        if (job.getDeadline() != 0 && now > job.getDeadline()) stats.deadlineMisses++;
+                    }
+                }
+
+                // Read and write outside the lock
+                boolean ok = true;
+                boolean sent = false;
+                try {
+                    if (job.nextSegment()) {
+                        ok = mTransport.send(job.mSegment, job.mSegmentOffset, job.mSegmentLength);
+                        sent = true;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception while reading " + job, e);
+                    ok = false;
+                }
+
+                boolean finished;
+                boolean stalled;
+                synchronized (PrintJobScheduler.this) {
+                    mDispatching = null;
+                    if (job.mState == PrintJob.STATE_CANCELLED) {
+                        mMidForm = null;
+                        if (job.isFormOpen()) mCloseForm = true;
+                        job.close();
+                        continue;
+                    }
+                    if (sent) {
+                        job.mNextForm++;
+                        job.mBytesSent += job.mSegmentLength;
+                    }
+                    finished = !ok || !job.hasMore();
+                    // The input of a streamed job has nothing for now
+                    stalled = !sent && !finished;
+                    // A streamed chunk that stopped inside a form keeps the link
+                    if (!stalled) mMidForm = !finished && !job.mSegmentEndsForm ? job : null;
+                    if (finished) {
+                        removeJob(job);
+                        job.mState = ok ? PrintJob.STATE_DONE : PrintJob.STATE_FAILED;
+                        if (ok) {
+                            mStats[job.getPriority()].completed++;
+                        } else {
+                            mStats[job.getPriority()].failed++;
+                        }
+                    }
+                    // Give the other sources of this class a turn at the form boundary
+                    if (mMidForm == null) rotate(job);
+                }
+                if (finished) {
+                    job.close();
+                    if (D) Log.d(TAG, (ok ? "completed " : "failed ") + job);
+                    notifyFinished(job, ok);
+                } else if (stalled) {
+                    // Other jobs go first; if there are none, read it again
+                    // later instead of spinning on an empty input
+                    synchronized (PrintJobScheduler.this) {
+                        if (mMidForm != job && selectNext(now()) != job) continue;
+                        try {
+                            PrintJobScheduler.this.wait(STALL_POLL_MS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,667 @@
+package ae.sdg.printerdemo;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.support.v4.app.NotificationCompat;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static ae.sdg.printerdemo.BluetoothSerialService.*;
+
+/**
+ * Hosts the print engine outside of any Activity: the Bluetooth link, the job
+ * scheduler, the health monitor and anything they have warmed up. Activities
+ * bind to it and register a Handler to receive the same messages
+ * BluetoothSerialService sends, so rotating the screen or switching apps no
+ * longer drops the RFCOMM link. The service runs in the foreground while it
+ * holds a link. Without one it keeps running while a client is bound, jobs
+ * are queued, the ingest gateway is open or the ConnectionLifecycle will
+ * open the link again for the next job, after an idle close or a drop. It
+ * stops itself once none of that holds, which in practice is after the user
+ * closed the link and left.
+ */
+public class PrintService extends Service {
+    // Debugging
+    private static final String TAG = "PrintService";
+    private static final boolean D = true;
+
+    private static final int NOTIFICATION_ID = 1;
+    // Loopback port of the job ingest gateway, the raw printing port
+    public static final int INGEST_PORT = 9100;
+    // Starts the ingest gateway, sent by IngestProvider
+    public static final String ACTION_START_INGEST = "ae.sdg.printerdemo.action.START_INGEST";
+    // Where the secret ingest clients authenticate with is kept
+    private static final String PREFS_NAME = "print_service";
+    private static final String KEY_INGEST_SECRET = "ingest_secret";
+    // The mirror printers, comma separated
+    private static final String KEY_MIRRORS = "mirrors";
+    // Where a build that ships the Arabic font keeps it
+    private static final String ARABIC_FONT_ASSET = "fonts/" + PrinterProfile.ARABIC_FONT_FILE;
+    // A mirrored copy not printed by then is given up, e.g. on a dropped link
+    private static final long MIRROR_TIMEOUT_MS = 60000;
+
+    /**
+     * The link and scheduler of one mirror printer.
+     */
+    private static class Mirror {
+        final BluetoothSerialService mmSerialService;
+        final PrintJobScheduler mmScheduler;
+
+        Mirror(BluetoothSerialService serialService) {
+            mmSerialService = serialService;
+            mmScheduler = new PrintJobScheduler(serialService);
+        }
+    }
+
+    /**
+     * Class used for the client Binder. The service always runs in the same
+     * process as its clients, so no IPC is involved.
+     */
+    public class LocalBinder extends Binder {
+        public PrintService getService() {
+            return PrintService.this;
+        }
+    }
+
+    // Member fields
+    private final IBinder mBinder = new LocalBinder();
+    private final ArrayList<Handler> mClients = new ArrayList<Handler>();
+    private BluetoothSerialService mSerialService;
+    private PrintJobScheduler mScheduler;
+    private PrinterHealthMonitor mHealthMonitor;
+    private CapabilityProfiler mProfiler;
+    private FileUploader mUploader;
+    private ConnectionLifecycle mLifecycle;
+    private IngestGateway mIngestGateway;
+    // Extra printers that receive copies of mirrored jobs, by address
+    private final HashMap<String, Mirror> mMirrors = new HashMap<String, Mirror>();
+    // The printer the Arabic font was last sent to, so a failed upload is not repeated for every order
+    private String mFontUploadAddress;
+    private String mConnectedDeviceName;
+    private boolean mForeground;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (D) Log.d(TAG, "onCreate");
+
+        OrderReceipt.warmUp();
+        mSerialService = new BluetoothSerialService(this, mServiceHandler);
+        mScheduler = new PrintJobScheduler(mSerialService);
+        SgdClient sgd = new SgdClient(mSerialService);
+        mSerialService.addOnReadListener(sgd);
+        mHealthMonitor = new PrinterHealthMonitor(sgd);
+        mHealthMonitor.setOnStatusChangeListener(mStatusListener);
+        mProfiler = new CapabilityProfiler(this, sgd);
+        mScheduler.addGate(mProfiler);
+        mScheduler.addGate(mHealthMonitor);
+        // The file download of the Zebra mobile printers
+        mUploader = new FileUploader(mScheduler, mSerialService, sgd, new FileUploader.Protocol());
+        mScheduler.addGate(mUploader);
+        final DeviceRegistry registry = DeviceRegistry.getInstance(this);
+        mLifecycle = new ConnectionLifecycle(new ConnectionLifecycle.Link() {
+            @Override
+            public int getState() {
+                return mSerialService.getState();
+            }
+
+            @Override
+            public String getConnectedAddress() {
+                return mSerialService.getConnectedAddress();
+            }
+
+            @Override
+            public void connect(String address) {
+                mSerialService.connect(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address));
+            }
+
+            @Override
+            public void stop() {
+                mSerialService.stop();
+            }
+
+            @Override
+            public long getConnectLatencyMillis(String address) {
+                DeviceRegistry.KnownDevice device = registry.get(address);
+                return device != null ? device.connectLatencyMillis : 0;
+            }
+        }, sgd, getSharedPreferences(PREFS_NAME, MODE_PRIVATE));
+        mLifecycle.setHealthMonitor(mHealthMonitor);
+        mLifecycle.setBusyCheck(new ConnectionLifecycle.BusyCheck() {
+            @Override
+            public boolean isBusy() {
+                return mUploader.isBusy();
+            }
+        });
+        mScheduler.addGate(mLifecycle);
+        mScheduler.setOnSubmitListener(mLifecycle);
+        mScheduler.start();
+        mIngestGateway = new IngestGateway(mScheduler, INGEST_PORT, getIngestSecret());
+        for (String address : getMirrors()) connectMirror(address);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null) {
+            // Restarted after the process was killed; the link went with it,
+            // but one the policy would have reopened is reopened by the next job
+            if (D) Log.d(TAG, "restarted");
+            stopIfIdle();
+        } else if (ACTION_START_INGEST.equals(intent.getAction())) {
+            try {
+                startIngestGateway();
+            } catch (IOException e) {
+                Log.e(TAG, "unable to start the ingest gateway", e);
+            }
+        }
+        // Keep running after the last client unbinds while a link is up
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        stopIfIdle();
+        // Get onRebind() when the next client comes
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (D) Log.d(TAG, "onDestroy");
+        mIngestGateway.stop();
+        mScheduler.stop();
+        mSerialService.stop();
+        synchronized (mMirrors) {
+            for (Mirror mirror : mMirrors.values()) {
+                mirror.mmScheduler.stop();
+                mirror.mmSerialService.stop();
+            }
+            mMirrors.clear();
+        }
+        super.onDestroy();
+    }
+
+    public BluetoothSerialService getSerialService() {
+        return mSerialService;
+    }
+
+    public PrintJobScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public PrinterHealthMonitor getHealthMonitor() {
+        return mHealthMonitor;
+    }
+
+    /**
+     * Return the uploader for fonts and firmware. Print jobs are held while it uploads.
+     */
+    public FileUploader getUploader() {
+        return mUploader;
+    }
+
+    /**
+     * Return the policy that keeps the link open while busy and closes it when idle.
+     */
+    public ConnectionLifecycle getLifecycle() {
+        return mLifecycle;
+    }
+
+    /**
+     * Close the link on the user's request. Unlike an idle close or a drop,
+     * it is not opened again until the user connects.
+     */
+    public void disconnect() {
+        mLifecycle.onUserClose();
+        mSerialService.stop();
+    }
+
+    /**
+     * Connect to the most recently used printer, unless a link is open or
+     * the lifecycle will reopen one.
+     *
+     * @return true if a connect was started
+     */
+    public boolean connectLastPrinter() {
+        if (mSerialService.getState() != STATE_NONE || mLifecycle.willReopen()) return false;
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null || !adapter.isEnabled()) return false;
+        DeviceRegistry.KnownDevice recent = DeviceRegistry.getInstance(this).getMostRecent();
+        if (recent == null) return false;
+        if (D) Log.d(TAG, "reconnecting to " + recent.address);
+        mSerialService.connect(adapter.getRemoteDevice(recent.address));
+        return true;
+    }
+
+    /**
+     * Hint that a job is coming, e.g. an order screen opened. Reopens a link
+     * closed for being idle so the job does not wait for the connect.
+     */
+    public void prewarm() {
+        mLifecycle.prewarm();
+    }
+
+    /**
+     * Return the profile of the connected printer. Until the first probe has
+     * answered it holds the defaults.
+     */
+    public PrinterProfile getProfile() {
+        return mProfiler.getProfile();
+    }
+
+    /**
+     * Print one label per record of a CSV or JSON dataset file, resuming
+     * after the labels an earlier run of the same file printed, unless the
+     * file changed since.
+     *
+     * @param file     The dataset, JSON if the name ends in .json
+     * @param template The label every record is rendered with
+     * @param listener Told about the progress on the run's thread, or null
+     */
+    public BulkPrintRun printDataset(File file, LabelTemplate template,
+                                     BulkPrintRun.OnProgressListener listener) throws IOException {
+        Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        DatasetReader dataset = file.getName().endsWith(".json")
+                ? DatasetReader.fromJson(in) : DatasetReader.fromCsv(in);
+        // The first label is still being read and rendered, open the link meanwhile
+        mLifecycle.prewarm();
+        template.setBarcodeEmitter(getProfile().newBarcodeEmitter());
+        // Same named files elsewhere, or this one edited, do not share the checkpoint
+        BulkPrintRun run = new BulkPrintRun(this, mScheduler, template, file.getAbsolutePath(),
+                file.length() + "@" + file.lastModified());
+        run.setOnProgressListener(listener);
+        run.start(dataset);
+        return run;
+    }
+
+    /**
+     * Start recording the link traffic into a ring of the given size.
+     */
+    public void startWireTrace(int capacity) {
+        mSerialService.setWireTrace(new WireTrace(capacity));
+    }
+
+    public void stopWireTrace() {
+        mSerialService.setWireTrace(null);
+    }
+
+    /**
+     * Dump the trace being recorded to a new file under the app files dir.
+     *
+     * @return the file, or null if no trace is being recorded
+     */
+    public File dumpWireTrace() throws IOException {
+        WireTrace trace = mSerialService.getWireTrace();
+        if (trace == null) return null;
+        File dir = new File(getFilesDir(), "traces");
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("unable to create " + dir);
+        File file = new File(dir, "trace-" + System.currentTimeMillis() + ".wtr");
+        trace.dump(file);
+        if (D) Log.d(TAG, "dumped " + trace.getRecordCount() + " records to " + file);
+        return file;
+    }
+
+    /**
+     * Replay a dumped trace against a loopback link running at the given
+     * rate, as a benchmark of the recorded traffic. Runs on the calling
+     * thread, so call it off the main thread.
+     *
+     * @param file           A file written by dumpWireTrace()
+     * @param bytesPerSecond Link rate to simulate, or 0 for no delay
+     * @param speed          How much faster than recorded to replay, 0 for no pauses
+     */
+    public WireTraceReplayer.Result replayWireTrace(File file, int bytesPerSecond, float speed)
+            throws IOException {
+        LoopbackTransport link = new LoopbackTransport(null).setBytesPerSecond(bytesPerSecond);
+        return new WireTraceReplayer(link).setSpeed(speed).replay(file);
+    }
+
+    /**
+     * Register a client Handler. It is sent the current state straight away.
+     */
+    public void addClient(Handler handler) {
+        synchronized (mClients) {
+            if (!mClients.contains(handler)) mClients.add(handler);
+        }
+        if (mConnectedDeviceName != null) {
+            handler.sendMessage(deviceNameMessage(handler, mConnectedDeviceName));
+        }
+        handler.obtainMessage(MESSAGE_STATE_CHANGE, mSerialService.getState(), -1).sendToTarget();
+    }
+
+    public void removeClient(Handler handler) {
+        synchronized (mClients) {
+            mClients.remove(handler);
+        }
+    }
+
+    /**
+     * Queue a job on the shared scheduler.
+     */
+    public void print(PrintJob job) {
+        mScheduler.submit(job);
+    }
+
+    /**
+     * Queue an order from the order screen, framed for the connected printer.
+     * With mirror printers set up, every one of them prints a copy.
+     *
+     * @param order The order, already encoded for codepage 864
+     */
+    public void printOrder(byte[] order, int priority, String source) {
+        PrinterProfile profile = getProfile();
+        // The upload holds the order, which then finds the font in place
+        if (profile.arabicFontId == 0 && uploadArabicFont()) {
+            profile.arabicFontId = PrinterProfile.DEFAULT_ARABIC_FONT_ID;
+        }
+        byte[] receipt = OrderReceipt.encode(profile, order);
+        boolean mirrored;
+        synchronized (mMirrors) {
+            mirrored = !mMirrors.isEmpty();
+        }
+        if (mirrored) {
+            mirror(receipt, priority, source);
+        } else {
+            mScheduler.submit(new PrintJob(receipt, priority, source));
+        }
+    }
+
+    /**
+     * Download the ARABT font to the connected printer, unless its profile
+     * shows the printer holds it or an upload to it was tried already. The
+     * font is not part of the source tree; a build that ships it puts it in
+     * the assets as fonts/ARABT.FNT. Print jobs wait for the upload.
+     *
+     * @return true if an upload was queued
+     */
+    public boolean uploadArabicFont() {
+        final PrinterProfile profile = getProfile();
+        if (profile.address == null || profile.address.equals(mFontUploadAddress)) return false;
+        File font = new File(getCacheDir(), PrinterProfile.ARABIC_FONT_FILE);
+        try {
+            InputStream in = getAssets().open(ARABIC_FONT_ASSET);
+            try {
+                FileOutputStream out = new FileOutputStream(font);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = in.read(buffer)) > 0) out.write(buffer, 0, count);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            if (D) Log.d(TAG, "this build ships no " + ARABIC_FONT_ASSET);
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "unable to read " + ARABIC_FONT_ASSET, e);
+            return false;
+        }
+        mFontUploadAddress = profile.address;
+        mUploader.upload(font, PrinterProfile.ARABIC_FONT_FILE, new FileUploader.OnUploadListener() {
+            @Override
+            public void onUploadProgress(String name, long sent, long size) {
+            }
+
+            @Override
+            public void onUploadFinished(String name, boolean success, boolean skipped) {
+                profile.arabicFontId = success ? PrinterProfile.DEFAULT_ARABIC_FONT_ID : 0;
+                if (success) profile.save(PrinterProfile.preferences(PrintService.this));
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Let other processes on this device submit jobs on the loopback ingest
+     * port. Apps signed with this app's key start it through IngestProvider.
+     */
+    public void startIngestGateway() throws IOException {
+        mIngestGateway.start();
+    }
+
+    public void stopIngestGateway() {
+        mIngestGateway.stop();
+        stopIfIdle();
+    }
+
+    /**
+     * Return the secret ingest clients must prove they hold. It is made once
+     * per install and leaves the app only through this call and
+     * IngestProvider, which hands it to apps signed with this app's key.
+     */
+    public byte[] getIngestSecret() {
+        return ingestSecret(this);
+    }
+
+    static byte[] ingestSecret(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        synchronized (PrintService.class) {
+            String stored = prefs.getString(KEY_INGEST_SECRET, null);
+            if (stored != null) return Base64.decode(stored, Base64.NO_WRAP);
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            prefs.edit().putString(KEY_INGEST_SECRET, Base64.encodeToString(secret, Base64.NO_WRAP)).apply();
+            return secret;
+        }
+    }
+
+    /**
+     * Return the addresses of the mirror printers, as stored.
+     */
+    public String[] getMirrors() {
+        String stored = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getString(KEY_MIRRORS, "");
+        return stored.length() == 0 ? new String[0] : stored.split(",");
+    }
+
+    public boolean isMirror(String address) {
+        synchronized (mMirrors) {
+            return mMirrors.containsKey(address);
+        }
+    }
+
+    /**
+     * Connect an extra printer that receives a copy of every mirrored job,
+     * orders included. The setting is kept across restarts.
+     */
+    public void addMirror(String address) {
+        if (connectMirror(address)) saveMirrors();
+    }
+
+    public void removeMirror(String address) {
+        Mirror mirror;
+        synchronized (mMirrors) {
+            mirror = mMirrors.remove(address);
+        }
+        if (mirror != null) {
+            mirror.mmScheduler.stop();
+            mirror.mmSerialService.stop();
+            saveMirrors();
+        }
+    }
+
+    /**
+     * Send a job to the connected printer and every mirror. The bytes are
+     * shared by all the copies and dropped once the last one has finished.
+     * Copies not printed within MIRROR_TIMEOUT_MS are cancelled, and the job
+     * reports the printers that did print it.
+     */
+    public MirrorJob mirror(byte[] data, int priority, String source) {
+        ArrayList<PrintJobScheduler> targets = new ArrayList<PrintJobScheduler>();
+        targets.add(mScheduler);
+        synchronized (mMirrors) {
+            for (Mirror mirror : mMirrors.values()) targets.add(mirror.mmScheduler);
+        }
+        SharedPrintBuffer buffer = new SharedPrintBuffer(data);
+        MirrorJob job = new MirrorJob(buffer, targets.toArray(new PrintJobScheduler[targets.size()]),
+                priority, source).setTimeout(MIRROR_TIMEOUT_MS).submit();
+        buffer.release();
+        return job;
+    }
+
+    private boolean connectMirror(String address) {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null) return false;
+        synchronized (mMirrors) {
+            if (mMirrors.containsKey(address)) return false;
+            Mirror mirror = new Mirror(new BluetoothSerialService(this, mMirrorHandler));
+            mMirrors.put(address, mirror);
+            mirror.mmScheduler.start();
+            mirror.mmSerialService.connect(adapter.getRemoteDevice(address));
+        }
+        return true;
+    }
+
+    private void saveMirrors() {
+        StringBuilder addresses = new StringBuilder();
+        synchronized (mMirrors) {
+            for (String address : mMirrors.keySet()) {
+                if (addresses.length() > 0) addresses.append(',');
+                addresses.append(address);
+            }
+        }
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putString(KEY_MIRRORS, addresses.toString()).apply();
+    }
+
+    private void stopIfIdle() {
+        boolean idle;
+        synchronized (mClients) {
+            idle = mClients.isEmpty();
+        }
+        if (idle && mSerialService.getState() == STATE_NONE && mScheduler.getQueuedCount() == 0
+                && !mLifecycle.willReopen() && mIngestGateway.getPort() < 0) {
+            if (D) Log.d(TAG, "idle, stopping");
+            stopSelf();
+        }
+    }
+
+    private void updateForeground(int state) {
+        if (state == STATE_CONNECTED && !mForeground) {
+            Intent intent = new Intent(this, MainActivity.class);
+            PendingIntent pending = PendingIntent.getActivity(this, 0, intent, 0);
+            Notification notification = new NotificationCompat.Builder(this)
+                    .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                    .setContentTitle(getString(R.string.app_name))
+                    .setContentText(getString(R.string.title_connected_to) + mConnectedDeviceName)
+                    .setContentIntent(pending)
+                    .setOngoing(true)
+                    .build();
+            startForeground(NOTIFICATION_ID, notification);
+            mForeground = true;
+        } else if (state != STATE_CONNECTED && mForeground) {
+            stopForeground(true);
+            mForeground = false;
+        }
+    }
+
+    private static Message deviceNameMessage(Handler handler, String name) {
+        Message msg = handler.obtainMessage(MESSAGE_DEVICE_NAME);
+        Bundle bundle = new Bundle();
+        bundle.putString(DEVICE_NAME, name);
+        msg.setData(bundle);
+        return msg;
+    }
+
+    // Receives the messages of BluetoothSerialService and hands a copy to every client
+    private final Handler mServiceHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MESSAGE_STATE_CHANGE:
+                    mLifecycle.onStateChanged(msg.arg1);
+                    if (msg.arg1 == STATE_CONNECTED) {
+                        mHealthMonitor.reset();
+                        mProfiler.onConnected(mSerialService.getConnectedAddress());
+                        mUploader.onConnected();
+                        // Let the gates start their work without waiting for a job
+                        mScheduler.wake();
+                    }
+                    updateForeground(msg.arg1);
+                    break;
+                case MESSAGE_DEVICE_NAME:
+                    mConnectedDeviceName = msg.getData().getString(DEVICE_NAME);
+                    break;
+            }
+
+            Handler[] clients;
+            synchronized (mClients) {
+                clients = mClients.toArray(new Handler[mClients.size()]);
+            }
+            for (Handler client : clients) {
+                Message copy = client.obtainMessage(msg.what, msg.arg1, msg.arg2, msg.obj);
+                copy.setData(msg.getData());
+                client.sendMessage(copy);
+            }
+
+            if (msg.what == MESSAGE_STATE_CHANGE && msg.arg1 == STATE_NONE) stopIfIdle();
+        }
+    };
+
+    // Mirror links only report trouble, the clients follow the main link
+    private final Handler mMirrorHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MESSAGE_TOAST) {
+                Message copy = mServiceHandler.obtainMessage(MESSAGE_TOAST);
+                copy.setData(msg.getData());
+                mServiceHandler.sendMessage(copy);
+            } else if (msg.what == MESSAGE_STATE_CHANGE) {
+                if (D) Log.d(TAG, "mirror state " + msg.arg1);
+            }
+        }
+    };
+
+    // Tell the clients why jobs are being held. Called on the reading thread.
+    private final PrinterHealthMonitor.OnStatusChangeListener mStatusListener =
+            new PrinterHealthMonitor.OnStatusChangeListener() {
+        @Override
+        public void onStatusChanged(int status, int batteryPercent) {
+            String text;
+            if ((status & PrinterHealthMonitor.STATUS_PAPER_OUT) != 0) {
+                text = "Printer is out of paper";
+            } else if ((status & PrinterHealthMonitor.STATUS_HEAD_OPEN) != 0) {
+                text = "Printer lid is open";
+            } else if ((status & PrinterHealthMonitor.STATUS_BATTERY_LOW) != 0) {
+                text = "Printer battery is low (" + batteryPercent + "%)";
+            } else {
+                return;
+            }
+            Message msg = mServiceHandler.obtainMessage(MESSAGE_TOAST);
+            Bundle bundle = new Bundle();
+            bundle.putString(TOAST, text + ", jobs are on hold");
+            msg.setData(bundle);
+            mServiceHandler.sendMessage(msg);
+        }
+    };
+}
@@ -0,0 +1,24 @@
+package ae.sdg.printerdemo;
+
+/**
+ * A byte pipe to a printer. The scheduler and the other job producers only
+ * need to know whether the link is up and how to push raw bytes down it,
+ * so anything from an RFCOMM socket to a loopback can stand in.
+ */
+public interface PrintTransport {
+
+    /**
+     * Return true when bytes written now will reach the printer.
+     */
+    boolean isConnected();
+
+    /**
+     * Write the given bytes verbatim, blocking until they are handed to the link.
+     *
+     * @param buffer The bytes to write
+     * @param offset Start offset in the buffer
+     * @param length Number of bytes to write
+     * @return false if the link is down or the write failed
+     */
+    boolean send(byte[] buffer, int offset, int length);
+}
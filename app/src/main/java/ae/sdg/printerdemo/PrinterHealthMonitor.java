@@ -0,0 +1,213 @@
+package ae.sdg.printerdemo;
+
+import android.util.Log;
+
+/**
+ * Keeps a cached view of the printer's paper, lid and battery state so that
+ * jobs can be held before they are sent instead of printed into the void.
+ *
+ * The monitor is a PrintJobScheduler.Gate: the dispatch thread gives it the
+ * gaps between forms, where it writes one pipelined getvar batch when a poll
+ * is due. The replies come back through the ConnectedThread read loop via an
+ * SgdClient, so checking the cache before a job costs no round trip. Polls
+ * back off while the printer is healthy and idle, and speed up while jobs
+ * are flowing or something is wrong. A printer that leaves MAX_SILENT_POLLS
+ * queries unanswered, such as one in line print mode that takes the query
+ * for text, is not asked again until reset() on the next connect.
+ */
+public class PrinterHealthMonitor implements PrintJobScheduler.Gate, SgdClient.Callback {
+    // Debugging
+    private static final String TAG = "PrinterHealthMonitor";
+    private static final boolean D = true;
+
+    // Status flags
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_PAPER_OUT = 1;
+    public static final int STATUS_HEAD_OPEN = 1 << 1;
+    public static final int STATUS_BATTERY_LOW = 1 << 2;
+    public static final int STATUS_UNKNOWN = 1 << 3;
+
+    private static final String VAR_MEDIA = "media.status";
+    private static final String VAR_LATCH = "head.latch";
+    private static final String VAR_BATTERY = "power.percent_full";
+
+    // Poll interval bounds, in milliseconds
+    private static final long MIN_INTERVAL_MS = 2000;
+    private static final long MAX_INTERVAL_MS = 60000;
+    // Interval while jobs keep coming
+    private static final long BUSY_INTERVAL_MS = 5000;
+    // A batch without an answer after this long is given up
+    private static final long REPLY_TIMEOUT_MS = 3000;
+    // How often an unanswered batch is checked for its timeout
+    private static final long PENDING_CHECK_MS = 250;
+    // Printers that never answer are not polled again on this link
+    private static final int MAX_SILENT_POLLS = 3;
+
+    /**
+     * Notified when the cached status changes. Called on the reading thread.
+     */
+    public interface OnStatusChangeListener {
+        void onStatusChanged(int status, int batteryPercent);
+    }
+
+    // Member fields
+    private final SgdClient mSgd;
+    private final String[] mQueryVars = {VAR_MEDIA, VAR_LATCH, VAR_BATTERY};
+    private OnStatusChangeListener mListener;
+    private int mLowBatteryPercent = 5;
+
+    private volatile int mStatus = STATUS_UNKNOWN;
+    private volatile int mBatteryPercent = -1;
+    private long mInterval = MIN_INTERVAL_MS;
+    private long mNextPoll;
+    private int mSilentPolls;
+    private long mPolls;
+    private long mReplies;
+
+    /**
+     * Constructor. The SgdClient must be registered with
+     * BluetoothSerialService.addOnReadListener() so replies reach it.
+     *
+     * @param sgd The getvar client used for status queries
+     */
+    public PrinterHealthMonitor(SgdClient sgd) {
+        mSgd = sgd;
+    }
+
+    public void setOnStatusChangeListener(OnStatusChangeListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Hold jobs when the battery is at or below this level.
+     */
+    public void setLowBatteryPercent(int percent) {
+        mLowBatteryPercent = percent;
+    }
+
+    /**
+     * Forget the cached status and poll at once. Call when a new link is made.
+     */
+    public synchronized void reset() {
+        mSgd.reset();
+        mStatus = STATUS_UNKNOWN;
+        mBatteryPercent = -1;
+        mInterval = MIN_INTERVAL_MS;
+        mNextPoll = 0;
+        mSilentPolls = 0;
+    }
+
+    /**
+     * Return the STATUS_ flags from the last reply.
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public int getBatteryPercent() {
+        return mBatteryPercent;
+    }
+
+    public synchronized long getPollCount() {
+        return mPolls;
+    }
+
+    public synchronized long getReplyCount() {
+        return mReplies;
+    }
+
+    /**
+     * Return true once the printer has left MAX_SILENT_POLLS queries in a row
+     * unanswered, e.g. because it does not speak Set-Get-Do. Polling stops
+     * until reset().
+     */
+    public synchronized boolean isSilent() {
+        return mSilentPolls >= MAX_SILENT_POLLS;
+    }
+
+    /**
+     * Jobs pass unless the printer reported a problem. An unknown status does
+     * not hold the queue, so printers without status support keep working.
+     */
+    @Override
+    public boolean isReady() {
+        int status = mStatus;
+        return (status & (STATUS_PAPER_OUT | STATUS_HEAD_OPEN | STATUS_BATTERY_LOW)) == 0;
+    }
+
+    @Override
+    public long onDispatchGap(long now, int queued) {
+        mSgd.expire(now, REPLY_TIMEOUT_MS);
+        synchronized (this) {
+            if (mSilentPolls >= MAX_SILENT_POLLS) return Long.MAX_VALUE;
+            // Paper and battery drain while jobs are flowing
+            if (queued > 0 && mInterval > BUSY_INTERVAL_MS) {
+                mInterval = BUSY_INTERVAL_MS;
+                mNextPoll = Math.min(mNextPoll, now + mInterval);
+            }
+            if (mSgd.hasPending()) return PENDING_CHECK_MS;
+            if (now < mNextPoll) return mNextPoll - now;
+            mNextPoll = now + mInterval;
+            mPolls++;
+        }
+        if (!mSgd.getvar(this, mQueryVars)) {
+            if (D) Log.d(TAG, "status query could not be sent");
+        }
+        return mInterval;
+    }
+
+    @Override
+    public void onValues(String[] names, String[] values) {
+        int status = STATUS_OK;
+        int battery = -1;
+        for (int i = 0; i < names.length; i++) {
+            String value = values[i].trim().toLowerCase();
+            if (VAR_MEDIA.equals(names[i])) {
+                if (value.contains("out")) status |= STATUS_PAPER_OUT;
+            } else if (VAR_LATCH.equals(names[i])) {
+                if (value.contains("open")) status |= STATUS_HEAD_OPEN;
+            } else if (VAR_BATTERY.equals(names[i])) {
+                try {
+                    battery = Integer.parseInt(value);
+                    if (battery <= mLowBatteryPercent) status |= STATUS_BATTERY_LOW;
+                } catch (NumberFormatException e) {
+                    // Mains powered printers answer with "?"
+                }
+            }
+        }
+
+        int previous;
+        synchronized (this) {
+            mReplies++;
+            mSilentPolls = 0;
+            previous = mStatus;
+            mStatus = status;
+            mBatteryPercent = battery;
+            // Back off while healthy, look again soon while something is wrong
+            mInterval = status == STATUS_OK ? Math.min(mInterval * 2, MAX_INTERVAL_MS) : MIN_INTERVAL_MS;
+            mNextPoll = PrintJobScheduler.now() + mInterval;
+        }
+        if (previous != status) {
+            if (D) Log.d(TAG, "status " + previous + " -> " + status + ", battery " + battery + "%");
+            OnStatusChangeListener listener = mListener;
+            if (listener != null) listener.onStatusChanged(status, battery);
+        }
+    }
+
+    @Override
+    public void onTimeout(String[] names) {
+        int previous;
+        synchronized (this) {
+            previous = mStatus;
+            mStatus = STATUS_UNKNOWN;
+            if (++mSilentPolls >= MAX_SILENT_POLLS) {
+                if (D) Log.d(TAG, "printer does not answer status queries, polling stopped");
+            }
+            mNextPoll = PrintJobScheduler.now() + mInterval;
+        }
+        if (previous != STATUS_UNKNOWN) {
+            OnStatusChangeListener listener = mListener;
+            if (listener != null) listener.onStatusChanged(STATUS_UNKNOWN, -1);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ae.sdg.printerdemo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * What one printer can do, as reported by CapabilityProfiler on the first
+ * connect. Only what jobs are compiled with is kept. Profiles are stored per
+ * address in SharedPreferences so later jobs are compiled for the target
+ * without probing it again. Anything the printer did not report keeps the
+ * value this app has always assumed.
+ */
+public class PrinterProfile {
+    // Debugging
+    private static final String TAG = "PrinterProfile";
+
+    static final String PREFS_NAME = "printer_profiles";
+    // Stored profiles of another version are probed again
+    private static final int VERSION = 2;
+
+    // What jobs assumed before profiles existed
+    public static final int DEFAULT_PAPER_WIDTH = 576;
+    public static final int DEFAULT_ARABIC_FONT_ID = 0x48;
+    public static final String DEFAULT_CODEPAGE = "864";
+    // The downloaded Arabic font, as the printer lists it and as it is stored
+    public static final String ARABIC_FONT_NAME = "ARABT";
+    public static final String ARABIC_FONT_FILE = ARABIC_FONT_NAME + ".FNT";
+
+    public final String address;
+    public String model;
+    // A stored profile is probed again once the printer reports other firmware
+    public String firmware;
+    public int paperWidth = DEFAULT_PAPER_WIDTH;
+    // The command languages reported, which pick the barcode dialect
+    public String languages = "";
+    // The codepage Latin-1 text is written in
+    public String codepage = DEFAULT_CODEPAGE;
+    // The ID ESC w selects the Arabic font by, or 0 if the printer listed
+    // its fonts and the Arabic one was not among them
+    public int arabicFontId = DEFAULT_ARABIC_FONT_ID;
+
+    public PrinterProfile(String address) {
+        this.address = address;
+    }
+
+    /**
+     * Return the preferences the profiles are stored in.
+     */
+    static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Return the stored profile of a printer, or null if it was never probed
+     * or was probed by a version of this class that stored other fields.
+     */
+    public static PrinterProfile load(SharedPreferences prefs, String address) {
+        String stored = prefs.getString(address, null);
+        if (stored == null) return null;
+        try {
+            JSONObject json = new JSONObject(stored);
+            if (json.optInt("version") != VERSION) return null;
+            PrinterProfile profile = new PrinterProfile(address);
+            profile.model = json.optString("model", null);
+            profile.firmware = json.optString("firmware", null);
+            profile.paperWidth = json.optInt("paperWidth", DEFAULT_PAPER_WIDTH);
+            profile.languages = json.optString("languages", "");
+            profile.codepage = json.optString("codepage", DEFAULT_CODEPAGE);
+            profile.arabicFontId = json.optInt("arabicFontId", DEFAULT_ARABIC_FONT_ID);
+            return profile;
+        } catch (JSONException e) {
+            Log.e(TAG, "dropping unreadable profile for " + address, e);
+            return null;
+        }
+    }
+
+    public void save(SharedPreferences prefs) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("version", VERSION);
+            json.put("model", model);
+            json.put("firmware", firmware);
+            json.put("paperWidth", paperWidth);
+            json.put("languages", languages);
+            json.put("codepage", codepage);
+            json.put("arabicFontId", arabicFontId);
+            prefs.edit().putString(address, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "unable to save profile for " + address, e);
+        }
+    }
+
+    /**
+     * Return the ESC w command that selects the downloaded Arabic font, or
+     * nothing if the printer does not hold it and keeps its resident font.
+     */
+    public byte[] selectArabicFont() {
+        if (arabicFontId == 0) return new byte[0];
+        return new byte[]{0x1B, 0x77, (byte) arabicFontId, 0x0D};
+    }
+
+    /**
+     * Create a receipt layout for the full printable width of this printer,
+     * in the resident font of the given mode.
+     */
+    public ReceiptLayout newReceiptLayout(int mode) {
+        FontMetrics font = mode == ReceiptLayout.MODE_CPCL ? FontMetrics.CPCL_7_0 : FontMetrics.LINE_PRINT;
+        return new ReceiptLayout(font, paperWidth, mode, codepage);
+    }
+
+    /**
+     * Create a barcode emitter in the command language the printer reported.
+     * CPCL is assumed unless it reported ESC/POS.
+     */
+    public BarcodeEmitter newBarcodeEmitter() {
+        String reported = languages.toLowerCase();
+        int dialect = reported.contains("escpos") || reported.contains("esc/pos")
+                ? BarcodeEmitter.DIALECT_ESCPOS : BarcodeEmitter.DIALECT_CPCL;
+        // Line print only firmware has no barcode commands at all
+        boolean nativeBarcodes = !reported.trim().equals("line_print");
+        return new BarcodeEmitter(dialect).setNativeSupported(nativeBarcodes);
+    }
+
+    @Override
+    public String toString() {
+        return "PrinterProfile{" + model + " " + firmware + ", " + paperWidth + " dots, codepage " + codepage
+                + ", Arabic font " + arabicFontId + "}";
+    }
+}
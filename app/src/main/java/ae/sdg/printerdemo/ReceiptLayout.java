@@ -0,0 +1,614 @@
+package ae.sdg.printerdemo;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Lays out receipt text for a given font and paper width: word wrapping,
+ * column alignment and the visual ordering of mixed Arabic and Latin runs.
+ * Each cell is measured and wrapped in one pass over its characters using
+ * the font's width tables, then every line is split into directional runs
+ * which are written in display order.
+ *
+ * Two outputs are supported: MODE_LINE pads with spaces for line print mode,
+ * MODE_CPCL places every cell with its own TEXT command at a computed X, which
+ * replaces hand-tuned positions such as X=490 for right-aligned Arabic.
+ *
+ * Arabic runs are encoded for codepage 864. Everything else is written in the
+ * printer's codepage, '?' where that has no glyph.
+ *
+ * A ReceiptLayout keeps scratch buffers between calls and is not thread-safe.
+ */
+public class ReceiptLayout {
+
+    // Output modes
+    public static final int MODE_LINE = 0;
+    public static final int MODE_CPCL = 1;
+
+    // Alignments. START and END follow the direction of the cell's text.
+    public static final int ALIGN_LEFT = 0;
+    public static final int ALIGN_CENTER = 1;
+    public static final int ALIGN_RIGHT = 2;
+    public static final int ALIGN_START = 3;
+    public static final int ALIGN_END = 4;
+
+    // Bidi classes, a reduced version of the Unicode ones
+    private static final byte T_L = 0;  // strong left-to-right
+    private static final byte T_R = 1;  // strong right-to-left
+    private static final byte T_EN = 2; // European and Arabic-Indic digits
+    private static final byte T_N = 3;  // spaces and punctuation
+
+    private static final byte[] TYPES = new byte[0x700];
+
+    static {
+        for (int c = 0; c < TYPES.length; c++) {
+            byte type;
+            if ((c >= '0' && c <= '9') || (c >= 0x660 && c <= 0x669) || (c >= 0x6f0 && c <= 0x6f9)) {
+                type = T_EN;
+            } else if (c >= 0x590) {
+                type = T_R;
+            } else if (Character.isLetter(c)) {
+                type = T_L;
+            } else {
+                type = T_N;
+            }
+            TYPES[c] = type;
+        }
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LF = {'\n'};
+    private static final byte[] TEXT = {'T', 'E', 'X', 'T', ' '};
+
+    // Bytes of the characters below TYPES.length, per codepage
+    private static final HashMap<String, byte[]> CODEPAGES = new HashMap<String, byte[]>();
+
+    /**
+     * A column of a row. Columns are given left to right as they appear on paper.
+     */
+    public static class Column {
+        final int mWidth;
+        final int mAlign;
+
+        /**
+         * @param width Width of the column, in dots
+         * @param align One of the ALIGN_ constants
+         */
+        public Column(int width, int align) {
+            mWidth = width;
+            mAlign = align;
+        }
+    }
+
+    // Member fields
+    private final FontMetrics mFont;
+    private final int mPaperWidth;
+    private final int mMode;
+    private final byte[] mCodepage;
+    private byte[] mLineEnd = CRLF;
+    private final ArabicPhraseCache mArabic = ArabicPhraseCache.getInstance();
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(1024);
+    private int mY;
+    // Single full-width columns for text(), one per alignment
+    private final Column[][] mFullWidth = new Column[ALIGN_END + 1][];
+
+    // Scratch space reused across rows and cells
+    private int[] mCellFirstLine = new int[8];
+    private int[] mCellLineCount = new int[8];
+    private boolean[] mCellRtl = new boolean[8];
+    private char[] mChars = new char[256];
+    private byte[] mTypes = new byte[256];
+    private int[] mLineStarts = new int[16];
+    private int[] mLineEnds = new int[16];
+    private int[] mLineWidths = new int[16];
+    private int[] mRunStarts = new int[16];
+    private int[] mRunEnds = new int[16];
+    private int[] mRunLevels = new int[16];
+    private int[] mRunOrder = new int[16];
+    private int mLineCount;
+
+    /**
+     * Constructor for a printer set to codepage 864.
+     *
+     * @param font       The font the text will be printed in
+     * @param paperWidth Printable width, in dots
+     * @param mode       MODE_LINE or MODE_CPCL
+     */
+    public ReceiptLayout(FontMetrics font, int paperWidth, int mode) {
+        this(font, paperWidth, mode, PrinterProfile.DEFAULT_CODEPAGE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param font       The font the text will be printed in
+     * @param paperWidth Printable width, in dots
+     * @param mode       MODE_LINE or MODE_CPCL
+     * @param codepage   The printer's codepage, such as "864" or "1252"
+     */
+    public ReceiptLayout(FontMetrics font, int paperWidth, int mode, String codepage) {
+        mFont = font;
+        mCodepage = codepageTable(codepage);
+        mPaperWidth = paperWidth;
+        mMode = mode;
+        for (int align = 0; align < mFullWidth.length; align++) {
+            mFullWidth[align] = new Column[]{new Column(paperWidth, align)};
+        }
+    }
+
+    /**
+     * End lines in MODE_LINE with a bare LF instead of CRLF.
+     */
+    public ReceiptLayout setBareLf(boolean bareLf) {
+        mLineEnd = bareLf ? LF : CRLF;
+        return this;
+    }
+
+    /**
+     * Split the paper into columns proportionally to the given weights.
+     *
+     * @param aligns  One of the ALIGN_ constants per column
+     * @param weights Relative width of every column
+     */
+    public Column[] columns(int[] aligns, int... weights) {
+        int total = 0;
+        for (int w : weights) total += w;
+        Column[] columns = new Column[weights.length];
+        int used = 0;
+        for (int i = 0; i < weights.length; i++) {
+            int width = i == weights.length - 1 ? mPaperWidth - used : mPaperWidth * weights[i] / total;
+            columns[i] = new Column(width, aligns[i]);
+            used += width;
+        }
+        return columns;
+    }
+
+    /**
+     * Add a paragraph spanning the full paper width.
+     */
+    public ReceiptLayout text(String text, int align) {
+        return row(mFullWidth[align], text);
+    }
+
+    /**
+     * Add a row of cells. Every cell wraps inside its own column and the row
+     * is as tall as its tallest cell.
+     */
+    public ReceiptLayout row(Column[] columns, String... cells) {
+        if (cells.length != columns.length) {
+            throw new IllegalArgumentException(cells.length + " cells for " + columns.length + " columns");
+        }
+
+        // Copy all cells into one buffer and wrap them
+        int total = 0;
+        for (String cell : cells) total += cell.length();
+        if (mChars.length < total) {
+            mChars = new char[total * 2];
+            mTypes = new byte[total * 2];
+        }
+        if (mCellFirstLine.length < cells.length) {
+            mCellFirstLine = new int[cells.length];
+            mCellLineCount = new int[cells.length];
+            mCellRtl = new boolean[cells.length];
+        }
+        int[] firstLine = mCellFirstLine;
+        int[] lineCount = mCellLineCount;
+        boolean[] rtl = mCellRtl;
+        mLineCount = 0;
+        int offset = 0;
+        int rows = 1;
+        for (int i = 0; i < cells.length; i++) {
+            String cell = cells[i];
+            cell.getChars(0, cell.length(), mChars, offset);
+            firstLine[i] = mLineCount;
+            wrap(offset, offset + cell.length(), columns[i].mWidth);
+            lineCount[i] = mLineCount - firstLine[i];
+            rtl[i] = isRtl(offset, offset + cell.length());
+            if (lineCount[i] > rows) rows = lineCount[i];
+            offset += cell.length();
+        }
+
+        // Emit one physical line at a time across all columns
+        for (int r = 0; r < rows; r++) {
+            int x = 0;
+            int cursor = 0;
+            for (int i = 0; i < cells.length; i++) {
+                Column column = columns[i];
+                if (r < lineCount[i]) {
+                    int line = firstLine[i] + r;
+                    int width = mLineWidths[line];
+                    int lineX = x + alignOffset(column, width, rtl[i]);
+                    if (mMode == MODE_CPCL) {
+                        mOut.write(TEXT, 0, TEXT.length);
+                        writeAscii(mFont.getName());
+                        mOut.write(' ');
+                        writeDecimal(mFont.getSize());
+                        mOut.write(' ');
+                        writeDecimal(lineX);
+                        mOut.write(' ');
+                        writeDecimal(mY);
+                        mOut.write(' ');
+                    } else {
+                        cursor = pad(cursor, lineX);
+                        cursor += width;
+                    }
+                    writeVisual(mLineStarts[line], mLineEnds[line], rtl[i]);
+                    if (mMode == MODE_CPCL) mOut.write(CRLF, 0, CRLF.length);
+                }
+                x += column.mWidth;
+            }
+            if (mMode == MODE_LINE) mOut.write(mLineEnd, 0, mLineEnd.length);
+            mY += mFont.getLineHeight();
+        }
+        return this;
+    }
+
+    /**
+     * Leave some empty lines.
+     */
+    public ReceiptLayout feed(int lines) {
+        for (int i = 0; i < lines; i++) {
+            if (mMode == MODE_LINE) mOut.write(mLineEnd, 0, mLineEnd.length);
+            mY += mFont.getLineHeight();
+        }
+        return this;
+    }
+
+    /**
+     * Return the height used so far, in dots.
+     */
+    public int getHeight() {
+        return mY;
+    }
+
+    /**
+     * Return the laid out text or TEXT commands.
+     */
+    public byte[] toByteArray() {
+        return mOut.toByteArray();
+    }
+
+    /**
+     * Return the layout wrapped in a complete CPCL form.
+     *
+     * @param dpi Resolution of the printer
+     */
+    public byte[] toCpclForm(int dpi) {
+        ByteArrayOutputStream form = new ByteArrayOutputStream(mOut.size() + 48);
+        byte[] header = ("! 0 " + dpi + " " + dpi + " " + mY + " 1\r\n").getBytes();
+        byte[] footer = "FORM\r\nPRINT\r\n".getBytes();
+        form.write(header, 0, header.length);
+        form.write(mOut.toByteArray(), 0, mOut.size());
+        form.write(footer, 0, footer.length);
+        return form.toByteArray();
+    }
+
+    /**
+     * Start over with an empty receipt, keeping the scratch buffers.
+     */
+    public void reset() {
+        mOut.reset();
+        mY = 0;
+    }
+
+    /**
+     * Break mChars[start, end) into lines no wider than maxWidth. Lines break
+     * after spaces when possible, words longer than a line are cut, and
+     * spaces around a soft break are dropped.
+     */
+    private void wrap(int start, int end, int maxWidth) {
+        int lineStart = start;
+        int width = 0;
+        int contentEnd = start;
+        int contentWidth = 0;
+        int breakEnd = -1;
+        int breakWidth = 0;
+        int resume = -1;
+        int widthAtResume = 0;
+        boolean prevSpace = false;
+        char prev = 0;
+
+        for (int i = start; i < end; i++) {
+            char c = mChars[i];
+            if (c == '\n') {
+                addLine(lineStart, contentEnd, contentWidth);
+                lineStart = i + 1;
+                width = contentWidth = 0;
+                contentEnd = lineStart;
+                breakEnd = resume = -1;
+                prevSpace = false;
+                prev = c;
+                continue;
+            }
+            if (c == ' ') {
+                if (!prevSpace) {
+                    breakEnd = contentEnd;
+                    breakWidth = contentWidth;
+                    resume = -1;
+                }
+                width += mFont.width(c);
+                prevSpace = true;
+                prev = c;
+                continue;
+            }
+            if (prevSpace) {
+                resume = i;
+                widthAtResume = width;
+            }
+            // Lam followed by alef prints as one ligature glyph
+            int w = prev == 'ل' && (c == 'آ' || c == 'أ' || c == 'إ' || c == 'ا')
+                    ? 0 : mFont.width(c);
+            if (width + w > maxWidth && contentEnd > lineStart) {
+                if (breakEnd > lineStart && resume > 0) {
+                    addLine(lineStart, breakEnd, breakWidth);
+                    lineStart = resume;
+                    width -= widthAtResume;
+                    contentWidth -= widthAtResume;
+                } else {
+                    addLine(lineStart, contentEnd, contentWidth);
+                    lineStart = i;
+                    width = contentWidth = 0;
+                }
+                breakEnd = resume = -1;
+            }
+            width += w;
+            contentEnd = i + 1;
+            contentWidth = width;
+            prevSpace = false;
+            prev = c;
+        }
+        if (contentEnd > lineStart || lineStart == start) {
+            addLine(lineStart, Math.max(contentEnd, lineStart), contentWidth);
+        }
+    }
+
+    private void addLine(int start, int end, int width) {
+        if (mLineCount == mLineStarts.length) {
+            mLineStarts = grow(mLineStarts);
+            mLineEnds = grow(mLineEnds);
+            mLineWidths = grow(mLineWidths);
+        }
+        mLineStarts[mLineCount] = start;
+        mLineEnds[mLineCount] = end;
+        mLineWidths[mLineCount] = width;
+        mLineCount++;
+    }
+
+    /**
+     * Return true if the first strong character of the range is right-to-left.
+     */
+    private boolean isRtl(int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte type = typeOf(mChars[i]);
+            if (type == T_L) return false;
+            if (type == T_R) return true;
+        }
+        return false;
+    }
+
+    private int alignOffset(Column column, int width, boolean rtl) {
+        int align = column.mAlign;
+        if (align == ALIGN_START) align = rtl ? ALIGN_RIGHT : ALIGN_LEFT;
+        if (align == ALIGN_END) align = rtl ? ALIGN_LEFT : ALIGN_RIGHT;
+        int free = Math.max(0, column.mWidth - width);
+        switch (align) {
+            case ALIGN_CENTER:
+                return free / 2;
+            case ALIGN_RIGHT:
+                return free;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Write spaces until the cursor reaches x. Return the new cursor.
+     */
+    private int pad(int cursor, int x) {
+        int space = Math.max(1, mFont.getSpaceWidth());
+        while (cursor + space <= x) {
+            mOut.write(' ');
+            cursor += space;
+        }
+        return cursor;
+    }
+
+    /**
+     * Resolve the directional runs of mChars[start, end) and write them in
+     * display order. This follows the shape of the Unicode bidi algorithm for
+     * a single paragraph without explicit embeddings: digits after Latin text
+     * count as Latin, neutrals take the direction of the strong text around
+     * them or else the paragraph direction.
+     */
+    private void writeVisual(int start, int end, boolean rtl) {
+        if (start >= end) return;
+        int base = rtl ? 1 : 0;
+
+        // W7: digits preceded by Latin text behave as Latin
+        byte lastStrong = rtl ? T_R : T_L;
+        for (int i = start; i < end; i++) {
+            byte type = typeOf(mChars[i]);
+            if (type == T_EN && lastStrong == T_L) type = T_L;
+            if (type == T_L || type == T_R) lastStrong = type;
+            mTypes[i] = type;
+        }
+
+        // N1, N2: neutrals between two runs of the same direction join them
+        int i = start;
+        while (i < end) {
+            if (mTypes[i] != T_N) {
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j < end && mTypes[j] == T_N) j++;
+            byte before = i == start ? (rtl ? T_R : T_L) : strongOf(mTypes[i - 1]);
+            byte after = j == end ? (rtl ? T_R : T_L) : strongOf(mTypes[j]);
+            byte resolved = before == after ? before : (rtl ? T_R : T_L);
+            for (int k = i; k < j; k++) mTypes[k] = resolved;
+            i = j;
+        }
+
+        // I1, I2: levels, then split into runs of equal level
+        int runs = 0;
+        int maxLevel = base;
+        for (i = start; i < end; ) {
+            int level = levelOf(mTypes[i], base);
+            int j = i + 1;
+            while (j < end && levelOf(mTypes[j], base) == level) j++;
+            if (runs == mRunStarts.length) {
+                mRunStarts = grow(mRunStarts);
+                mRunEnds = grow(mRunEnds);
+                mRunLevels = grow(mRunLevels);
+                mRunOrder = grow(mRunOrder);
+            }
+            mRunStarts[runs] = i;
+            mRunEnds[runs] = j;
+            mRunLevels[runs] = level;
+            mRunOrder[runs] = runs;
+            if (level > maxLevel) maxLevel = level;
+            runs++;
+            i = j;
+        }
+
+        // L2: from the highest level down to the lowest odd one, reverse every
+        // sequence of runs at that level or above
+        for (int level = maxLevel; level >= 1; level--) {
+            int r = 0;
+            while (r < runs) {
+                if (mRunLevels[mRunOrder[r]] < level) {
+                    r++;
+                    continue;
+                }
+                int s = r;
+                while (r < runs && mRunLevels[mRunOrder[r]] >= level) r++;
+                for (int a = s, b = r - 1; a < b; a++, b--) {
+                    int t = mRunOrder[a];
+                    mRunOrder[a] = mRunOrder[b];
+                    mRunOrder[b] = t;
+                }
+            }
+        }
+
+        for (int r = 0; r < runs; r++) {
+            int run = mRunOrder[r];
+            if ((mRunLevels[run] & 1) == 1) {
+                writeRtlRun(mRunStarts[run], mRunEnds[run]);
+            } else {
+                writeLtrRun(mRunStarts[run], mRunEnds[run]);
+            }
+        }
+    }
+
+    private void writeLtrRun(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = mChars[i];
+            mOut.write(c < mCodepage.length ? mCodepage[c] : '?');
+        }
+    }
+
+    /**
+     * The Arabic encoder shapes and reverses its input but trims it too, so
+     * spaces at the edges of the run are written around it by hand.
+     */
+    private void writeRtlRun(int start, int end) {
+        int lead = 0;
+        while (start + lead < end && mChars[start + lead] == ' ') lead++;
+        int trail = 0;
+        while (end - trail > start + lead && mChars[end - trail - 1] == ' ') trail++;
+        for (int i = 0; i < trail; i++) mOut.write(' ');
+        int length = end - start - lead - trail;
+        if (length > 0) mArabic.write(mChars, start + lead, length, true, mOut);
+        for (int i = 0; i < lead; i++) mOut.write(' ');
+    }
+
+    private void writeAscii(String s) {
+        for (int i = 0; i < s.length(); i++) mOut.write(s.charAt(i));
+    }
+
+    private void writeDecimal(int value) {
+        if (value < 0) {
+            mOut.write('-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) divisor *= 10;
+        for (; divisor > 0; divisor /= 10) mOut.write('0' + value / divisor % 10);
+    }
+
+    /**
+     * Return how the characters below TYPES.length are written on a printer
+     * set to the given codepage. Tables are built once per codepage.
+     */
+    static byte[] codepageTable(String codepage) {
+        synchronized (CODEPAGES) {
+            byte[] table = CODEPAGES.get(codepage);
+            if (table != null) return table;
+            table = new byte[TYPES.length];
+            Arrays.fill(table, (byte) '?');
+            for (int c = 0; c < 0x80; c++) table[c] = (byte) c;
+            CharsetEncoder encoder = encoderFor(codepage);
+            if (encoder != null) {
+                char[] one = new char[1];
+                for (int c = 0x80; c < table.length; c++) {
+                    one[0] = (char) c;
+                    if (!encoder.canEncode(one[0])) continue;
+                    try {
+                        ByteBuffer bytes = encoder.encode(CharBuffer.wrap(one));
+                        if (bytes.remaining() == 1) table[c] = bytes.get();
+                    } catch (CharacterCodingException e) {
+                        // Stays '?'
+                    }
+                }
+            } else if (PrinterProfile.DEFAULT_CODEPAGE.equals(codepage)) {
+                // Arabic-Indic digits live at 0xB0 in codepage 864
+                for (int c = 0x660; c <= 0x669; c++) table[c] = (byte) (0xb0 + c - 0x660);
+            }
+            CODEPAGES.put(codepage, table);
+            return table;
+        }
+    }
+
+    private static CharsetEncoder encoderFor(String codepage) {
+        String[] names = {"Cp" + codepage, "windows-" + codepage, codepage};
+        for (String name : names) {
+            try {
+                return Charset.forName(name).newEncoder();
+            } catch (IllegalArgumentException e) {
+                // Unknown name, try the next spelling
+            }
+        }
+        return null;
+    }
+
+    private static byte typeOf(char c) {
+        if (c < TYPES.length) return TYPES[c];
+        if ((c >= 0xfb1d && c <= 0xfdff) || (c >= 0xfe70 && c <= 0xfeff)) return T_R;
+        return Character.isLetter(c) ? T_L : T_N;
+    }
+
+    private static byte strongOf(byte type) {
+        return type == T_L ? T_L : T_R;
+    }
+
+    private static int levelOf(byte type, int base) {
+        if (base == 0) {
+            if (type == T_R) return 1;
+            if (type == T_EN) return 2;
+            return 0;
+        }
+        return type == T_R ? 1 : 2;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,163 @@
+package ae.sdg.printerdemo;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Sends Set-Get-Do "getvar" queries and matches the quoted replies that come
+ * back through the ConnectedThread read loop. Several variables go out in a
+ * single write and the printer answers them in order, so a whole batch costs
+ * one transmission. Requests are answered first in, first out.
+ *
+ * This class does not coordinate with other writers; callers send queries
+ * from the scheduler's dispatch thread so they never land inside a form.
+ */
+public class SgdClient implements BluetoothSerialService.OnReadListener {
+    // Debugging
+    private static final String TAG = "SgdClient";
+    private static final boolean D = true;
+
+    // Longest value kept, anything beyond is dropped
+    private static final int MAX_VALUE_LENGTH = 512;
+
+    /**
+     * Receives the answer to a getvar batch. Called on the reading thread.
+     */
+    public interface Callback {
+        void onValues(String[] names, String[] values);
+
+        void onTimeout(String[] names);
+    }
+
+    private static class Request {
+        final String[] mNames;
+        final String[] mValues;
+        final Callback mCallback;
+        final long mSentAt;
+        int mReceived;
+
+        Request(String[] names, Callback callback, long sentAt) {
+            mNames = names;
+            mValues = new String[names.length];
+            mCallback = callback;
+            mSentAt = sentAt;
+        }
+    }
+
+    // Member fields
+    private final PrintTransport mTransport;
+    private final ArrayDeque<Request> mPending = new ArrayDeque<Request>();
+    private final ByteArrayOutputStream mValue = new ByteArrayOutputStream(64);
+    private boolean mInQuote;
+
+    public SgdClient(PrintTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Build the bytes of a pipelined getvar batch.
+     */
+    public static byte[] buildQuery(String... names) {
+        StringBuilder query = new StringBuilder(names.length * 32);
+        for (String name : names) {
+            query.append("! U1 getvar \"").append(name).append("\"\r\n");
+        }
+        return query.toString().getBytes();
+    }
+
+    /**
+     * Query one or more variables.
+     *
+     * @return false if the query could not be written
+     */
+    public boolean getvar(Callback callback, String... names) {
+        byte[] query = buildQuery(names);
+        Request request = new Request(names, callback, PrintJobScheduler.now());
+        synchronized (this) {
+            mPending.addLast(request);
+        }
+        if (mTransport.send(query, 0, query.length)) return true;
+        synchronized (this) {
+            mPending.remove(request);
+        }
+        return false;
+    }
+
+    /**
+     * Return true while a batch is waiting for its replies.
+     */
+    public synchronized boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Fail every batch sent longer than timeout milliseconds ago. Replies
+     * arriving later are ignored.
+     */
+    public void expire(long now, long timeout) {
+        ArrayList<Request> expired = null;
+        synchronized (this) {
+            while (!mPending.isEmpty() && now - mPending.peekFirst().mSentAt > timeout) {
+                if (expired == null) expired = new ArrayList<Request>();
+                expired.add(mPending.removeFirst());
+            }
+            if (mPending.isEmpty()) {
+                mInQuote = false;
+                mValue.reset();
+            }
+        }
+        if (expired == null) return;
+        for (Request request : expired) {
+            if (D) Log.d(TAG, "getvar timed out after " + timeout + "ms");
+            request.mCallback.onTimeout(request.mNames);
+        }
+    }
+
+    /**
+     * Drop all pending batches, e.g. when the link is replaced.
+     */
+    public synchronized void reset() {
+        mPending.clear();
+        mInQuote = false;
+        mValue.reset();
+    }
+
+    @Override
+    public void onRead(byte[] buffer, int length) {
+        ArrayList<Request> done = null;
+        synchronized (this) {
+            if (mPending.isEmpty()) return;
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[i];
+                if (b != '"') {
+                    if (mInQuote && mValue.size() < MAX_VALUE_LENGTH) mValue.write(b);
+                    continue;
+                }
+                if (!mInQuote) {
+                    mInQuote = true;
+                    continue;
+                }
+                mInQuote = false;
+                Request request = mPending.peekFirst();
+                if (request == null) {
+                    mValue.reset();
+                    continue;
+                }
+                request.mValues[request.mReceived++] = mValue.toString();
+                mValue.reset();
+                if (request.mReceived == request.mNames.length) {
+                    mPending.removeFirst();
+                    if (done == null) done = new ArrayList<Request>();
+                    done.add(request);
+                }
+            }
+        }
+        if (done == null) return;
+        for (Request request : done) {
+            request.mCallback.onValues(request.mNames, request.mValues);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ae.sdg.printerdemo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encoded printer commands shared by several jobs, such as one ticket sent to
+ * the kitchen and the audit printer. The bytes are never changed after
+ * construction and their forms are found once, so any number of PrintJobs
+ * can send them at the same time without copies. The buffer is reference
+ * counted; it starts with one reference, owned by its creator, and is
+ * released when the last one is given back.
+ */
+public class SharedPrintBuffer {
+
+    /**
+     * Called once, on the thread that gave back the last reference.
+     */
+    public interface OnReleaseListener {
+        void onReleased(SharedPrintBuffer buffer);
+    }
+
+    // Member fields
+    private final byte[] mData;
+    private final int[] mFormEnds;
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+    private volatile OnReleaseListener mListener;
+
+    /**
+     * Constructor. The buffer takes the array over; the caller must not
+     * change it afterwards.
+     *
+     * @param data The encoded commands
+     */
+    public SharedPrintBuffer(byte[] data) {
+        if (data == null) throw new IllegalArgumentException("data == null");
+        mData = data;
+        mFormEnds = PrintJob.findFormEnds(data);
+    }
+
+    public void setOnReleaseListener(OnReleaseListener listener) {
+        mListener = listener;
+    }
+
+    public int size() {
+        return mData.length;
+    }
+
+    /**
+     * Return a read-only view of the bytes.
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+        return ByteBuffer.wrap(mData).asReadOnlyBuffer();
+    }
+
+    /**
+     * Take another reference.
+     *
+     * @throws IllegalStateException if the buffer was already released
+     */
+    public SharedPrintBuffer retain() {
+        while (true) {
+            int refs = mRefs.get();
+            if (refs == 0) throw new IllegalStateException("buffer already released");
+            if (mRefs.compareAndSet(refs, refs + 1)) return this;
+        }
+    }
+
+    /**
+     * Give back a reference.
+     */
+    public void release() {
+        int refs = mRefs.decrementAndGet();
+        if (refs < 0) throw new IllegalStateException("buffer released too often");
+        if (refs == 0) {
+            OnReleaseListener listener = mListener;
+            if (listener != null) listener.onReleased(this);
+        }
+    }
+
+    public boolean isReleased() {
+        return mRefs.get() == 0;
+    }
+
+    /**
+     * Create a job that sends the shared bytes. The caller passes a
+     * reference on to the job and gives it back when the job ends.
+     */
+    PrintJob newJob(int priority, String source) {
+        if (isReleased()) throw new IllegalStateException("buffer already released");
+        return new PrintJob(mData, mFormEnds, priority, source, 0);
+    }
+}
@@ -0,0 +1,249 @@
+package ae.sdg.printerdemo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Records the bytes that cross the printer link, in both directions, with
+ * the time they crossed it. Records go into one ring allocated up front, so
+ * recording is a header and an array copy and never allocates; once the ring
+ * is full the oldest records are dropped. A trace can be dumped to a file and
+ * played back with WireTraceReplayer.
+ *
+ * The dump format is big-endian: magic, version, wall clock start, record
+ * count, dropped count, then per record the nanoseconds since the start, the
+ * direction in the top bit of the length, and the bytes.
+ */
+public class WireTrace {
+
+    // Record directions
+    public static final int DIRECTION_OUT = 0; // written to the printer
+    public static final int DIRECTION_IN = 1;  // read from the printer
+
+    private static final int MAGIC = 0x57545243; // "WTRC"
+    private static final int VERSION = 1;
+    // Nanoseconds and direction plus length
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * One record read back from a dump.
+     */
+    public static class Record {
+        public final int direction;
+        public final long timeNanos;
+        public final byte[] data;
+
+        Record(int direction, long timeNanos, byte[] data) {
+            this.direction = direction;
+            this.timeNanos = timeNanos;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads the records of a dump in the order they were recorded.
+     */
+    public static class Reader {
+        private final DataInputStream mIn;
+        private final long mStartWallMillis;
+        private final int mRecordCount;
+        private final long mDroppedCount;
+
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(in));
+            if (mIn.readInt() != MAGIC) throw new IOException("not a wire trace");
+            int version = mIn.readInt();
+            if (version != VERSION) throw new IOException("unsupported wire trace version " + version);
+            mStartWallMillis = mIn.readLong();
+            mRecordCount = mIn.readInt();
+            mDroppedCount = mIn.readLong();
+        }
+
+        public long getStartWallMillis() {
+            return mStartWallMillis;
+        }
+
+        public int getRecordCount() {
+            return mRecordCount;
+        }
+
+        /**
+         * Return the number of records the ring had already dropped.
+         */
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        /**
+         * Return the next record, or null at the end of the dump.
+         */
+        public Record next() throws IOException {
+            long time;
+            try {
+                time = mIn.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            int word = mIn.readInt();
+            byte[] data = new byte[word & Integer.MAX_VALUE];
+            mIn.readFully(data);
+            return new Record(word >>> 31, time, data);
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    // Member fields
+    private final byte[] mRing;
+    private final int mMaxRecord;
+    private long mStartNanos;
+    private long mStartWallMillis;
+    private int mHead;
+    private int mTail;
+    private int mUsed;
+    private int mRecordCount;
+    private long mDroppedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Size of the ring in bytes, headers included
+     */
+    public WireTrace(int capacity) {
+        if (capacity < HEADER_SIZE * 4) throw new IllegalArgumentException("capacity " + capacity);
+        mRing = new byte[capacity];
+        // Longer writes are split so one of them never wipes the whole ring
+        mMaxRecord = capacity / 4 - HEADER_SIZE;
+        clear();
+    }
+
+    /**
+     * Drop all records and restart the clock.
+     */
+    public synchronized void clear() {
+        mHead = mTail = mUsed = mRecordCount = 0;
+        mDroppedCount = 0;
+        mStartNanos = System.nanoTime();
+        mStartWallMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Record bytes that crossed the link.
+     *
+     * @param direction DIRECTION_OUT or DIRECTION_IN
+     */
+    public void record(int direction, byte[] buffer, int offset, int length) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            while (length > 0) {
+                int count = Math.min(length, mMaxRecord);
+                append(now - mStartNanos, direction, buffer, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+
+    public synchronized int getRecordCount() {
+        return mRecordCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Write the records held now to a stream. The ring is copied under the
+     * lock and written outside it, so the link is held up for one array copy.
+     */
+    public void dump(OutputStream out) throws IOException {
+        byte[] ring;
+        int count;
+        long startWall, dropped;
+        synchronized (this) {
+            ring = new byte[mUsed];
+            copyOut(mHead, ring, 0, mUsed);
+            count = mRecordCount;
+            startWall = mStartWallMillis;
+            dropped = mDroppedCount;
+        }
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(startWall);
+        data.writeInt(count);
+        data.writeLong(dropped);
+        // Records are stored in the dump format already
+        data.write(ring);
+        data.flush();
+    }
+
+    public void dump(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            dump(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Open a dump for reading.
+     */
+    public static Reader open(File file) throws IOException {
+        return new Reader(new FileInputStream(file));
+    }
+
+    private void append(long time, int direction, byte[] buffer, int offset, int length) {
+        int size = HEADER_SIZE + length;
+        // Drop the oldest records until this one fits
+        while (mUsed + size > mRing.length) {
+            int dropped = HEADER_SIZE + (readInt(mHead + 8) & Integer.MAX_VALUE);
+            mHead = (mHead + dropped) % mRing.length;
+            mUsed -= dropped;
+            mRecordCount--;
+            mDroppedCount++;
+        }
+        writeInt((int) (time >>> 32));
+        writeInt((int) time);
+        writeInt(direction << 31 | length);
+        int first = Math.min(length, mRing.length - mTail);
+        System.arraycopy(buffer, offset, mRing, mTail, first);
+        System.arraycopy(buffer, offset + first, mRing, 0, length - first);
+        mTail = (mTail + length) % mRing.length;
+        mUsed += size;
+        mRecordCount++;
+    }
+
+    private void writeInt(int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            mRing[mTail] = (byte) (value >>> shift);
+            if (++mTail == mRing.length) mTail = 0;
+        }
+    }
+
+    private int readInt(int position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = value << 8 | (mRing[(position + i) % mRing.length] & 0xFF);
+        }
+        return value;
+    }
+
+    private void copyOut(int position, byte[] target, int offset, int length) {
+        int first = Math.min(length, mRing.length - position);
+        System.arraycopy(mRing, position, target, offset, first);
+        System.arraycopy(mRing, 0, target, offset + first, length - first);
+    }
+}
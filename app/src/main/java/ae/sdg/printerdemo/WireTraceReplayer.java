@@ -0,0 +1,122 @@
+package ae.sdg.printerdemo;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plays a WireTrace dump back against a transport. Outgoing records are
+ * written to the transport and incoming records are handed to a read
+ * listener, standing in for the printer, each at its recorded time divided
+ * by the speed. Comparing the elapsed time of a replay before and after a
+ * change gives a benchmark on the traffic of a real session.
+ */
+public class WireTraceReplayer {
+    // Debugging
+    private static final String TAG = "WireTraceReplayer";
+    private static final boolean D = true;
+
+    /**
+     * What one replay did.
+     */
+    public static class Result {
+        public int records;
+        public long bytesOut;
+        public long bytesIn;
+        public int failedWrites;
+        // Length of the recorded session and of its replay
+        public long recordedMillis;
+        public long elapsedMillis;
+
+        @Override
+        public String toString() {
+            return records + " records, " + bytesOut + " bytes out, " + bytesIn + " bytes in, "
+                    + failedWrites + " failed, " + recordedMillis + "ms recorded, "
+                    + elapsedMillis + "ms replayed";
+        }
+    }
+
+    // Member fields
+    private final PrintTransport mTransport;
+    private BluetoothSerialService.OnReadListener mReadListener;
+    private float mSpeed = 1;
+
+    /**
+     * Constructor.
+     *
+     * @param transport Receives the outgoing records
+     */
+    public WireTraceReplayer(PrintTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Set the listener that receives the recorded replies, or null to skip them.
+     */
+    public WireTraceReplayer setReadListener(BluetoothSerialService.OnReadListener listener) {
+        mReadListener = listener;
+        return this;
+    }
+
+    /**
+     * Set how much faster than recorded to replay. 1 keeps the original
+     * timing, 0 replays as fast as the transport takes it.
+     */
+    public WireTraceReplayer setSpeed(float speed) {
+        if (speed < 0) throw new IllegalArgumentException("speed " + speed);
+        mSpeed = speed;
+        return this;
+    }
+
+    public Result replay(File file) throws IOException {
+        WireTrace.Reader reader = WireTrace.open(file);
+        try {
+            return replay(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Replay every record of the reader on the calling thread.
+     */
+    public Result replay(WireTrace.Reader reader) throws IOException {
+        Result result = new Result();
+        long start = System.nanoTime();
+        long firstRecord = -1;
+        WireTrace.Record record;
+        while ((record = reader.next()) != null) {
+            if (firstRecord < 0) firstRecord = record.timeNanos;
+            long offset = record.timeNanos - firstRecord;
+            result.recordedMillis = offset / 1000000L;
+            if (mSpeed > 0) {
+                long due = start + (long) (offset / mSpeed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            if (record.direction == WireTrace.DIRECTION_OUT) {
+                if (mTransport.send(record.data, 0, record.data.length)) {
+                    result.bytesOut += record.data.length;
+                } else {
+                    result.failedWrites++;
+                }
+            } else {
+                if (mReadListener != null) mReadListener.onRead(record.data, record.data.length);
+                result.bytesIn += record.data.length;
+            }
+            result.records++;
+        }
+        result.elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        if (D) Log.d(TAG, "replayed " + result);
+        return result;
+    }
+}
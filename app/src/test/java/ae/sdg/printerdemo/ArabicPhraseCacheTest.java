@@ -0,0 +1,98 @@
+package ae.sdg.printerdemo;
+
+import com.ganesh.iarabic.arabic864;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks what the phrase cache keeps, what it drops and that cached bytes
+ * match what the encoder produces.
+ */
+public class ArabicPhraseCacheTest {
+    private static final String[] PHRASES = {"مرحبا", "شكرا", "المجموع", "الضريبة", "نقدا", "بطاقة"};
+
+    @Test
+    public void repeatedPhrase_isAHit() {
+        ArabicPhraseCache cache = new ArabicPhraseCache(64 * 1024);
+        byte[] first = write(cache, "مرحبا");
+        byte[] second = write(cache, "مرحبا");
+
+        assertArrayEquals(new arabic864().Convert("مرحبا", true), first);
+        assertArrayEquals(first, second);
+        ArabicPhraseCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.hits);
+    }
+
+    @Test
+    public void charRange_findsTheStringEntry() {
+        ArabicPhraseCache cache = new ArabicPhraseCache(64 * 1024);
+        byte[] whole = write(cache, "شكرا");
+        char[] line = "xx شكرا yy".toCharArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.write(line, 3, 4, true, out);
+
+        assertArrayEquals(whole, out.toByteArray());
+        assertEquals(1, cache.getStats().hits);
+    }
+
+    @Test
+    public void leastRecentlyUsed_isDroppedFirst() {
+        ArabicPhraseCache cache = new ArabicPhraseCache(800);
+        write(cache, "مرحبا 0");
+        // Keep using the first phrase while new ones come in, until one is dropped
+        int added = 1;
+        while (cache.getStats().evictions == 0) {
+            write(cache, "مرحبا 0");
+            write(cache, "مرحبا " + added++);
+        }
+        assertTrue(added > 2);
+
+        ArabicPhraseCache.Stats before = cache.getStats();
+        write(cache, "مرحبا 0");
+        assertEquals(before.hits + 1, cache.getStats().hits);
+        write(cache, "مرحبا 1");
+        assertEquals(before.misses + 1, cache.getStats().misses);
+    }
+
+    @Test
+    public void size_staysWithinTheBound() {
+        ArabicPhraseCache cache = new ArabicPhraseCache(1024);
+        for (int i = 0; i < 200; i++) {
+            write(cache, PHRASES[i % PHRASES.length] + " " + i);
+            assertTrue(cache.getStats().toString(), cache.getStats().sizeBytes <= 1024);
+        }
+        assertTrue(cache.getStats().entries > 0);
+    }
+
+    @Test
+    public void longText_isEncodedButNotCached() {
+        ArabicPhraseCache cache = new ArabicPhraseCache(1024);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 200) text.append("مرحبا ");
+
+        assertArrayEquals(new arabic864().Convert(text.toString(), true), write(cache, text.toString()));
+        assertEquals(0, cache.getStats().entries);
+    }
+
+    @Test
+    public void orderReceiptPhrases_areWarm() {
+        OrderReceipt.warmUp();
+        ArabicPhraseCache.Stats before = ArabicPhraseCache.getInstance().getStats();
+        OrderReceipt.encode(new PrinterProfile(null), new byte[]{'1', '\r', '\n'});
+
+        ArabicPhraseCache.Stats after = ArabicPhraseCache.getInstance().getStats();
+        assertEquals(before.misses, after.misses);
+        assertEquals(before.hits + 2, after.hits);
+    }
+
+    private static byte[] write(ArabicPhraseCache cache, String text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.write(text, true, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,108 @@
+package ae.sdg.printerdemo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the check digits, the Code 128 code set planning and the ESC/POS
+ * framing of barcodes.
+ */
+public class BarcodeTest {
+
+    @Test
+    public void ean13_getsItsCheckDigit() {
+        assertEquals("4006381333931", Barcode.ean13("400638133393").getData());
+        assertEquals("5901234123457", Barcode.ean13("590123412345").getData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ean13_wrongCheckDigit_isRejected() {
+        Barcode.ean13("4006381333932");
+    }
+
+    @Test
+    public void code128_digitsUseCodeSetC() {
+        // Start C, three digit pairs, check symbol
+        assertEquals("[105, 12, 34, 56, 44]",
+                Arrays.toString(Barcode.code128("123456").getCodewords()));
+    }
+
+    @Test
+    public void code128_switchesToSetCForALongDigitRun() {
+        // Start B, a, b, Code C, three digit pairs, check symbol
+        assertEquals("[104, 65, 66, 99, 12, 34, 56, 19]",
+                Arrays.toString(Barcode.code128("ab123456").getCodewords()));
+    }
+
+    @Test
+    public void code128_checkSymbol_isWeightedSum() {
+        int[] codewords = Barcode.code128("Hello\t42").getCodewords();
+        int sum = codewords[0];
+        for (int i = 1; i < codewords.length - 1; i++) sum += i * codewords[i];
+        assertEquals(sum % 103, codewords[codewords.length - 1]);
+    }
+
+    @Test
+    public void escPosCode128_namesTheCodeSets() throws Exception {
+        byte[] data = BarcodeEmitter.escPosCode128(Barcode.code128("ab123456").getCodewords());
+        assertArrayEquals(new byte[]{'{', 'B', 'a', 'b', '{', 'C', 12, 34, 56}, data);
+    }
+
+    @Test
+    public void escPosCode128_carriesItsLength() {
+        byte[] out = new BarcodeEmitter(BarcodeEmitter.DIALECT_ESCPOS).emit(Barcode.code128("ab123456"), 0, 0);
+        // GS h, GS w, then GS k 73 and the length of the 9 data bytes
+        assertEquals(0x1D, out[6]);
+        assertEquals('k', out[7]);
+        assertEquals(73, out[8]);
+        assertEquals(9, out[9]);
+        assertEquals(10 + 9, out.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void escPosCode128_longerThanOneLengthByte_isRejected() {
+        char[] text = new char[300];
+        Arrays.fill(text, 'x');
+        new BarcodeEmitter(BarcodeEmitter.DIALECT_ESCPOS).emit(Barcode.code128(new String(text)), 0, 0);
+    }
+
+    @Test
+    public void templatePlaceholder_printsABarcodeAtItsPosition() throws Exception {
+        LabelTemplate template = new LabelTemplate("! 0 200 200 300 1\r\n${qr:url@40,120}PRINT\r\n");
+        String out = new String(template.render(record("url", "https://sdg.ae")), "ISO-8859-1");
+        assertTrue(out.contains("BARCODE QR 40 120 M 2 U 2\r\n"));
+        assertTrue(out.contains("https://sdg.ae"));
+        assertTrue(out.endsWith("ENDQR\r\nPRINT\r\n"));
+    }
+
+    @Test
+    public void templatePlaceholder_speaksTheProfilesLanguage() {
+        PrinterProfile profile = new PrinterProfile("00:11:22:33:44:55");
+        profile.languages = "line_print escpos";
+        LabelTemplate template = new LabelTemplate("${code128:sku}");
+        template.setBarcodeEmitter(profile.newBarcodeEmitter());
+        byte[] out = template.render(record("sku", "AB12"));
+        assertEquals(0x1D, out[out.length - 10]);
+        assertEquals('k', out[out.length - 9]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void templatePlaceholder_qrOnLinePrintOnlyFirmware_isRejected() {
+        PrinterProfile profile = new PrinterProfile("00:11:22:33:44:55");
+        profile.languages = "line_print";
+        LabelTemplate template = new LabelTemplate("${qr:url}");
+        template.setBarcodeEmitter(profile.newBarcodeEmitter());
+        template.render(record("url", "https://sdg.ae"));
+    }
+
+    private static Map<String, String> record(String field, String value) {
+        Map<String, String> record = new HashMap<String, String>();
+        record.put(field, value);
+        return record;
+    }
+}
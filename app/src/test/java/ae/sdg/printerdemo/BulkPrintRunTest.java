@@ -0,0 +1,149 @@
+package ae.sdg.printerdemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs datasets through a scheduler on a loopback link, with the checkpoints
+ * kept in memory.
+ */
+public class BulkPrintRunTest {
+    private static final String VERSION = "1500@2000";
+    private static final LabelTemplate TEMPLATE = new LabelTemplate("! 0 200 200 50 1\r\nTEXT 4 0 0 0 ${sku}\r\nPRINT\r\n");
+
+    private ByteArrayOutputStream mPrinted;
+    private PrintJobScheduler mScheduler;
+    private MemoryStore mStore;
+
+    /**
+     * Keeps checkpoints in a map and remembers every save.
+     */
+    private static class MemoryStore implements BulkPrintRun.CheckpointStore {
+        final HashMap<String, Integer> mValues = new HashMap<String, Integer>();
+        final HashMap<String, String> mVersions = new HashMap<String, String>();
+        final ArrayList<Integer> mSaves = new ArrayList<Integer>();
+
+        @Override
+        public synchronized int load(String runId, String version) {
+            if (!version.equals(mVersions.get(runId))) return 0;
+            Integer value = mValues.get(runId);
+            return value != null ? value : 0;
+        }
+
+        @Override
+        public synchronized void save(String runId, String version, int printed) {
+            mVersions.put(runId, version);
+            mValues.put(runId, printed);
+            mSaves.add(printed);
+        }
+
+        @Override
+        public synchronized void clear(String runId) {
+            mVersions.remove(runId);
+            mValues.remove(runId);
+        }
+    }
+
+    /**
+     * Records how a run ended.
+     */
+    private static class Finish implements BulkPrintRun.OnProgressListener {
+        int mPrinted = -1;
+        boolean mComplete;
+
+        @Override
+        public void onProgress(int printed, float labelsPerSecond) {
+        }
+
+        @Override
+        public synchronized void onFinished(int printed, boolean complete) {
+            mPrinted = printed;
+            mComplete = complete;
+            notifyAll();
+        }
+
+        synchronized void await() throws InterruptedException {
+            long until = System.currentTimeMillis() + 5000;
+            while (mPrinted < 0 && System.currentTimeMillis() < until) wait(50);
+            assertTrue("run did not finish", mPrinted >= 0);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mPrinted = new ByteArrayOutputStream();
+        mScheduler = new PrintJobScheduler(new LoopbackTransport(mPrinted));
+        mScheduler.start();
+        mStore = new MemoryStore();
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.stop();
+    }
+
+    @Test
+    public void completeRun_printsEveryRecordAndClearsItsCheckpoint() throws Exception {
+        Finish finish = run("labels.csv", 30);
+
+        assertEquals(30, finish.mPrinted);
+        assertTrue(finish.mComplete);
+        assertEquals(30, count("TEXT"));
+        assertEquals(0, mStore.load("labels.csv", VERSION));
+    }
+
+    @Test
+    public void everyAck_isCheckpointed() throws Exception {
+        run("labels.csv", 30);
+
+        // Labels complete in order, so each one moves the checkpoint by one
+        for (int i = 0; i < 30; i++) assertEquals(Integer.valueOf(i + 1), mStore.mSaves.get(i));
+    }
+
+    @Test
+    public void restartedRun_resumesAfterTheCheckpoint() throws Exception {
+        mStore.save("labels.csv", VERSION, 12);
+        Finish finish = run("labels.csv", 30);
+
+        assertEquals(30, finish.mPrinted);
+        assertEquals(18, count("TEXT"));
+        String printed = new String(mPrinted.toByteArray(), "ISO-8859-1");
+        assertTrue(printed, printed.startsWith("! 0 200 200 50 1\r\nTEXT 4 0 0 0 sku12\r\n"));
+    }
+
+    @Test
+    public void editedDataset_startsFromTheTop() throws Exception {
+        mStore.save("labels.csv", "1200@1000", 12);
+        Finish finish = run("labels.csv", 30);
+
+        assertEquals(30, finish.mPrinted);
+        assertEquals(30, count("TEXT"));
+        assertEquals(Integer.valueOf(1), mStore.mSaves.get(1));
+    }
+
+    private Finish run(String runId, int records) throws Exception {
+        StringBuilder csv = new StringBuilder("sku\n");
+        for (int i = 0; i < records; i++) csv.append("sku").append(i).append('\n');
+        BulkPrintRun run = new BulkPrintRun(mStore, mScheduler, TEMPLATE, runId, VERSION);
+        Finish finish = new Finish();
+        run.setOnProgressListener(finish);
+        run.start(DatasetReader.fromCsv(new StringReader(csv.toString())));
+        finish.await();
+        return finish;
+    }
+
+    private int count(String text) throws Exception {
+        String printed = new String(mPrinted.toByteArray(), "ISO-8859-1");
+        int count = 0;
+        for (int i = printed.indexOf(text); i >= 0; i = printed.indexOf(text, i + 1)) count++;
+        return count;
+    }
+}
@@ -0,0 +1,112 @@
+package ae.sdg.printerdemo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Answers the profiler's getvar batches by hand, with profiles kept in
+ * fake preferences.
+ */
+public class CapabilityProfilerTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private ByteArrayOutputStream mSent;
+    private SgdClient mSgd;
+    private FakePreferences mPrefs;
+    private long mStart;
+
+    @Before
+    public void setUp() {
+        mSent = new ByteArrayOutputStream();
+        mSgd = new SgdClient(new LoopbackTransport(mSent));
+        mPrefs = new FakePreferences();
+        mStart = PrintJobScheduler.now();
+    }
+
+    @Test
+    public void probe_derivesTheArabicFontAndCodepage() {
+        CapabilityProfiler profiler = newProfiler();
+        profiler.onConnected(ADDRESS);
+        assertFalse(profiler.isReady());
+
+        profiler.onDispatchGap(mStart, 1);
+        answer("PR3", "V2.1", "576", "E:ARABT.FNT 40960", "line_print", "CP437 CP850 CP864");
+        assertTrue(profiler.isReady());
+
+        PrinterProfile profile = profiler.getProfile();
+        assertEquals("864", profile.codepage);
+        assertEquals(PrinterProfile.DEFAULT_ARABIC_FONT_ID, profile.arabicFontId);
+        assertEquals("V2.1", PrinterProfile.load(mPrefs, ADDRESS).firmware);
+    }
+
+    @Test
+    public void printerWithoutTheFont_keepsItsResidentFont() {
+        CapabilityProfiler profiler = newProfiler();
+        profiler.onConnected(ADDRESS);
+        profiler.onDispatchGap(mStart, 1);
+        answer("PR3", "V2.1", "576", "E:LOGO.PCX 1200", "line_print", "1252");
+
+        PrinterProfile profile = profiler.getProfile();
+        assertEquals("1252", profile.codepage);
+        assertEquals(0, profile.selectArabicFont().length);
+    }
+
+    @Test
+    public void storedProfile_isProbedAgainAfterAFirmwareChange() {
+        PrinterProfile stored = new PrinterProfile(ADDRESS);
+        stored.firmware = "V2.1";
+        stored.save(mPrefs);
+
+        CapabilityProfiler profiler = newProfiler();
+        profiler.onConnected(ADDRESS);
+        assertTrue(profiler.isReady());
+        profiler.onDispatchGap(mStart, 0);
+        assertTrue(sent().contains("appl.name"));
+        assertFalse(sent().contains("file.dir"));
+
+        answer("V2.2");
+        assertFalse(profiler.isReady());
+        profiler.onDispatchGap(mStart + 100, 1);
+        assertTrue(sent().contains("file.dir"));
+    }
+
+    @Test
+    public void storedProfile_ofTheSameFirmware_isKept() {
+        PrinterProfile stored = new PrinterProfile(ADDRESS);
+        stored.firmware = "V2.1";
+        stored.save(mPrefs);
+
+        CapabilityProfiler profiler = newProfiler();
+        profiler.onConnected(ADDRESS);
+        profiler.onDispatchGap(mStart, 0);
+        answer("V2.1");
+        assertTrue(profiler.isReady());
+        assertEquals(Long.MAX_VALUE, profiler.onDispatchGap(mStart + 100, 0));
+    }
+
+    @Test
+    public void codepage_prefers864() {
+        assertEquals("864", CapabilityProfiler.pickCodepage("437, 1256, 864"));
+        assertEquals("1256", CapabilityProfiler.pickCodepage("windows-1256 437"));
+        assertEquals(PrinterProfile.DEFAULT_CODEPAGE, CapabilityProfiler.pickCodepage("utf8"));
+    }
+
+    private CapabilityProfiler newProfiler() {
+        return new CapabilityProfiler(mPrefs, new DeviceRegistry(new FakePreferences()), mSgd);
+    }
+
+    private void answer(String... values) {
+        StringBuilder reply = new StringBuilder();
+        for (String value : values) reply.append('"').append(value).append('"');
+        byte[] bytes = reply.toString().getBytes();
+        mSgd.onRead(bytes, bytes.length);
+    }
+
+    private String sent() {
+        return new String(mSent.toByteArray());
+    }
+}
@@ -0,0 +1,219 @@
+package ae.sdg.printerdemo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the lifecycle's dispatch gaps with a clock that starts at the
+ * scheduler's, against a fake link that records connects and stops.
+ */
+public class ConnectionLifecycleTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final long CONNECT_LATENCY_MS = 1200;
+
+    private ByteArrayOutputStream mSent;
+    private FakePreferences mPrefs;
+    private FakeLink mLink;
+    private ConnectionLifecycle mLifecycle;
+    private long mStart;
+
+    @Before
+    public void setUp() {
+        mSent = new ByteArrayOutputStream();
+        mPrefs = new FakePreferences();
+        mLink = new FakeLink();
+        mLifecycle = new ConnectionLifecycle(mLink, new SgdClient(new LoopbackTransport(mSent)), mPrefs);
+        mLifecycle.setPolicy(1000, 300);
+        mLink.connect(ADDRESS);
+        mStart = PrintJobScheduler.now();
+    }
+
+    @Test
+    public void idleLink_isClosedAndReopenedByTheNextJob() {
+        assertEquals(Long.MAX_VALUE, mLifecycle.onDispatchGap(mStart + 1500, 0));
+        assertEquals(1, mLink.mStops);
+        assertEquals(1, mLifecycle.getStats().idleCloses);
+
+        mLifecycle.onSubmit(job());
+        assertEquals(2, mLink.mConnects);
+        ConnectionLifecycle.Stats stats = mLifecycle.getStats();
+        assertEquals(1, stats.jobReopens);
+        assertEquals(0, stats.hotSubmits);
+    }
+
+    @Test
+    public void idleClosedLink_isReopenedByTheNextJobOfARestartedService() {
+        mLifecycle.onDispatchGap(mStart + 1500, 0);
+        assertEquals(1, mLink.mStops);
+
+        // The service stops and a new one comes up with a new lifecycle
+        mLifecycle = new ConnectionLifecycle(mLink, new SgdClient(new LoopbackTransport(mSent)), mPrefs);
+        assertTrue(mLifecycle.willReopen());
+        mLifecycle.onSubmit(job());
+
+        assertEquals(2, mLink.mConnects);
+        assertEquals(ADDRESS, mLink.mAddress);
+        assertEquals(1, mLifecycle.getStats().jobReopens);
+        assertFalse(mLifecycle.willReopen());
+    }
+
+    @Test
+    public void userClosedLink_isNotReopenedByARestartedService() {
+        mLifecycle.onDispatchGap(mStart + 1500, 0);
+        mLifecycle.onUserClose();
+
+        mLifecycle = new ConnectionLifecycle(mLink, new SgdClient(new LoopbackTransport(mSent)), mPrefs);
+        assertFalse(mLifecycle.willReopen());
+        mLifecycle.onSubmit(job());
+        assertEquals(1, mLink.mConnects);
+    }
+
+    @Test
+    public void jobQueuedWhileClosing_reopensAfterTheClose() {
+        mLink.mOnStop = new Runnable() {
+            @Override
+            public void run() {
+                // The link still reports connected until stop() returns
+                mLifecycle.onSubmit(job());
+            }
+        };
+        mLifecycle.onDispatchGap(mStart + 1500, 0);
+
+        assertEquals(0, mLifecycle.getStats().hotSubmits);
+        assertEquals(2, mLink.mConnects);
+        assertEquals(1, mLifecycle.getStats().jobReopens);
+    }
+
+    @Test
+    public void droppedLink_isReopenedByTheNextJob() {
+        mLink.drop();
+        assertTrue(mLifecycle.willReopen());
+        assertEquals(Long.MAX_VALUE, mLifecycle.onDispatchGap(mStart + 1500, 0));
+        assertEquals(0, mLink.mStops);
+
+        mLifecycle.onSubmit(job());
+        assertEquals(2, mLink.mConnects);
+        assertFalse(mLifecycle.willReopen());
+    }
+
+    @Test
+    public void userClosedLink_staysClosed() {
+        mLifecycle.onUserClose();
+        mLink.stop();
+        assertFalse(mLifecycle.willReopen());
+
+        mLifecycle.prewarm();
+        mLifecycle.onSubmit(job());
+        assertEquals(1, mLink.mConnects);
+    }
+
+    @Test
+    public void keepalive_goesOutInTheGaps() {
+        assertTrue(mLifecycle.onDispatchGap(mStart, 0) <= 300);
+        assertEquals(0, mSent.size());
+
+        assertEquals(300, mLifecycle.onDispatchGap(mStart + 300, 0));
+        assertTrue(new String(mSent.toByteArray()).contains("device.uptime"));
+        assertEquals(1, mLifecycle.getStats().keepalives);
+
+        // Jobs waiting fill the gap themselves
+        mLifecycle.onDispatchGap(mStart + 600, 1);
+        assertEquals(1, mLifecycle.getStats().keepalives);
+    }
+
+    @Test
+    public void silentPrinter_getsNoKeepalives() {
+        PrinterHealthMonitor monitor = new PrinterHealthMonitor(new SgdClient(new LoopbackTransport(null)));
+        for (int i = 0; i < 3; i++) monitor.onTimeout(new String[0]);
+        assertTrue(monitor.isSilent());
+        mLifecycle.setHealthMonitor(monitor);
+
+        mLifecycle.onDispatchGap(mStart + 300, 0);
+        mLifecycle.onDispatchGap(mStart + 600, 0);
+        assertEquals(0, mSent.size());
+        assertEquals(0, mLifecycle.getStats().keepalives);
+    }
+
+    @Test
+    public void savedConnectTime_countsOnlyJobsAfterAPrewarm() {
+        // The user opened this link, so the job saved nothing
+        mLifecycle.onSubmit(job());
+        assertEquals(1, mLifecycle.getStats().hotSubmits);
+        assertEquals(0, mLifecycle.getStats().savedConnectMillis);
+
+        mLifecycle.onDispatchGap(PrintJobScheduler.now() + 1500, 0);
+        mLifecycle.prewarm();
+        assertEquals(2, mLink.mConnects);
+        assertEquals(1, mLifecycle.getStats().prewarms);
+
+        mLifecycle.onSubmit(job());
+        mLifecycle.onSubmit(job());
+        ConnectionLifecycle.Stats stats = mLifecycle.getStats();
+        assertEquals(3, stats.hotSubmits);
+        assertEquals(CONNECT_LATENCY_MS, stats.savedConnectMillis);
+    }
+
+    @Test
+    public void prewarm_ofAnOpenLink_isNotCounted() {
+        mLifecycle.prewarm();
+        assertEquals(1, mLink.mConnects);
+        assertEquals(0, mLifecycle.getStats().prewarms);
+    }
+
+    private static PrintJob job() {
+        return new PrintJob(new byte[]{'x'}, PrintJob.PRIORITY_NORMAL, "test");
+    }
+
+    /**
+     * Connects at once and reports the state changes straight back.
+     */
+    private class FakeLink implements ConnectionLifecycle.Link {
+        int mState = BluetoothSerialService.STATE_NONE;
+        String mAddress;
+        int mConnects;
+        int mStops;
+        Runnable mOnStop;
+
+        @Override
+        public int getState() {
+            return mState;
+        }
+
+        @Override
+        public String getConnectedAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public void connect(String address) {
+            mConnects++;
+            mAddress = address;
+            mState = BluetoothSerialService.STATE_CONNECTED;
+            mLifecycle.onStateChanged(mState);
+        }
+
+        @Override
+        public void stop() {
+            mStops++;
+            if (mOnStop != null) mOnStop.run();
+            mState = BluetoothSerialService.STATE_NONE;
+            mAddress = null;
+            mLifecycle.onStateChanged(mState);
+        }
+
+        void drop() {
+            mState = BluetoothSerialService.STATE_NONE;
+            mAddress = null;
+            mLifecycle.onStateChanged(mState);
+        }
+
+        @Override
+        public long getConnectLatencyMillis(String address) {
+            return CONNECT_LATENCY_MS;
+        }
+    }
+}
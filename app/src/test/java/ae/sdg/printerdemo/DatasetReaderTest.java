@@ -0,0 +1,51 @@
+package ae.sdg.printerdemo;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads small CSV and JSON datasets record by record.
+ */
+public class DatasetReaderTest {
+
+    @Test
+    public void csv_quotedFieldsAndBlankLines() throws Exception {
+        DatasetReader reader = DatasetReader.fromCsv(new StringReader(
+                "sku,name,price\r\n1,\"Tea, green\",5\r\n\r\n2,\"say \"\"hi\"\"\nthere\"\n3\n"));
+
+        assertEquals("{sku=1, name=Tea, green, price=5}", reader.next().toString());
+        assertEquals("{sku=2, name=say \"hi\"\nthere, price=}", reader.next().toString());
+        assertEquals("{sku=3, name=, price=}", reader.next().toString());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void json_flatValuesAsText() throws Exception {
+        DatasetReader reader = DatasetReader.fromJson(new StringReader(
+                "[ {\"sku\": 1.50, \"name\": \"Tea\\u0020\\\"green\\\"\", \"sale\": true, \"note\": null},\n"
+                        + "  {\"sku\": -2, \"tags\": [\"a\", {\"b\": \"]\"}], \"name\": \"شاي\"},"
+                        + " {} ]"));
+
+        assertEquals("{sku=1.50, name=Tea \"green\", sale=true, note=}", reader.next().toString());
+        assertEquals("{sku=-2, name=شاي}", reader.next().toString());
+        assertEquals("{}", reader.next().toString());
+        assertNull(reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void json_emptyArray() throws Exception {
+        assertNull(DatasetReader.fromJson(new StringReader(" [ ] ")).next());
+    }
+
+    @Test(expected = IOException.class)
+    public void json_truncated_isAnError() throws Exception {
+        DatasetReader reader = DatasetReader.fromJson(new StringReader("[{\"sku\": \"1\"}, {\"sku\": \"2"));
+        reader.next();
+        reader.next();
+    }
+}
@@ -0,0 +1,107 @@
+package ae.sdg.printerdemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks what the registry remembers about printers, how it orders them and
+ * the labels the device picker shows for them.
+ */
+public class DeviceRegistryTest {
+    private static final String KITCHEN = "00:11:22:33:44:55";
+    private static final String COUNTER = "66:77:88:99:AA:BB";
+
+    @Test
+    public void recordConnect_remembersTheDevice() {
+        DeviceRegistry registry = new DeviceRegistry(new FakePreferences());
+        assertFalse(registry.contains(KITCHEN));
+
+        registry.recordConnect(KITCHEN, "Kitchen", 900, DeviceRegistry.STRATEGY_SECURE);
+        DeviceRegistry.KnownDevice device = registry.get(KITCHEN);
+        assertEquals("Kitchen", device.name);
+        assertEquals(900, device.connectLatencyMillis);
+        assertEquals(DeviceRegistry.STRATEGY_SECURE, device.strategy);
+        assertTrue(device.lastConnectTime > 0);
+
+        // A reconnect without a name keeps the one known
+        registry.recordConnect(KITCHEN, null, 900, DeviceRegistry.STRATEGY_SECURE);
+        assertEquals("Kitchen", registry.get(KITCHEN).name);
+    }
+
+    @Test
+    public void latency_isSmoothed() {
+        DeviceRegistry registry = new DeviceRegistry(new FakePreferences());
+        registry.recordConnect(KITCHEN, "Kitchen", 900, DeviceRegistry.STRATEGY_SECURE);
+        registry.recordConnect(KITCHEN, "Kitchen", 3000, DeviceRegistry.STRATEGY_SECURE);
+
+        // One slow connect moves the estimate by a third
+        assertEquals(1600, registry.get(KITCHEN).connectLatencyMillis);
+    }
+
+    @Test
+    public void recent_isSortedByLastConnect() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(new FakePreferences());
+        registry.recordConnect(KITCHEN, "Kitchen", 900, DeviceRegistry.STRATEGY_SECURE);
+        Thread.sleep(5);
+        registry.recordConnect(COUNTER, "Counter", 900, DeviceRegistry.STRATEGY_SECURE);
+        assertEquals(COUNTER, registry.getRecent().get(0).address);
+        assertEquals(COUNTER, registry.getMostRecent().address);
+
+        Thread.sleep(5);
+        registry.recordConnect(KITCHEN, "Kitchen", 900, DeviceRegistry.STRATEGY_SECURE);
+        assertEquals(KITCHEN, registry.getRecent().get(0).address);
+        assertEquals(COUNTER, registry.getRecent().get(1).address);
+        assertEquals(KITCHEN, registry.getMostRecent().address);
+    }
+
+    @Test
+    public void strategies_startWithTheOneThatWorked() {
+        DeviceRegistry registry = new DeviceRegistry(new FakePreferences());
+        assertArrayEquals(new String[]{DeviceRegistry.STRATEGY_SECURE, DeviceRegistry.STRATEGY_INSECURE},
+                registry.getStrategies(KITCHEN));
+
+        registry.recordConnect(KITCHEN, "Kitchen", 900, DeviceRegistry.STRATEGY_INSECURE);
+        assertArrayEquals(new String[]{DeviceRegistry.STRATEGY_INSECURE, DeviceRegistry.STRATEGY_SECURE},
+                registry.getStrategies(KITCHEN));
+    }
+
+    @Test
+    public void records_surviveARestart() {
+        FakePreferences prefs = new FakePreferences();
+        DeviceRegistry registry = new DeviceRegistry(prefs);
+        registry.recordConnect(KITCHEN, "Kitchen", 900, DeviceRegistry.STRATEGY_INSECURE);
+        registry.setModel(KITCHEN, "ZQ520");
+        registry.recordConnect(COUNTER, "Counter", 900, DeviceRegistry.STRATEGY_SECURE);
+        registry.forget(COUNTER);
+        prefs.mValues.put("garbage", "{not json");
+
+        DeviceRegistry restarted = new DeviceRegistry(prefs);
+        DeviceRegistry.KnownDevice device = restarted.get(KITCHEN);
+        assertEquals("Kitchen", device.name);
+        assertEquals("ZQ520", device.model);
+        assertEquals(900, device.connectLatencyMillis);
+        assertEquals(DeviceRegistry.STRATEGY_INSECURE, device.strategy);
+        assertEquals(registry.get(KITCHEN).lastConnectTime, device.lastConnectTime);
+        assertFalse(restarted.contains(COUNTER));
+        assertEquals(1, restarted.getRecent().size());
+    }
+
+    @Test
+    public void namedDevice_showsNameModelAndAddress() {
+        DeviceRegistry.KnownDevice device = new DeviceRegistry.KnownDevice("00:11:22:33:44:55");
+        device.name = "Kitchen";
+        device.model = "ZQ520";
+
+        assertEquals("Kitchen (ZQ520)\n00:11:22:33:44:55", device.toString());
+    }
+
+    @Test
+    public void unnamedDevice_fallsBackToItsAddress() {
+        DeviceRegistry.KnownDevice device = new DeviceRegistry.KnownDevice("00:11:22:33:44:55");
+
+        assertEquals("00:11:22:33:44:55\n00:11:22:33:44:55", device.toString());
+        device.model = "ZQ520";
+        assertEquals("00:11:22:33:44:55 (ZQ520)\n00:11:22:33:44:55", device.toString());
+    }
+}
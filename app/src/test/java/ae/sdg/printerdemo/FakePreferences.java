@@ -0,0 +1,128 @@
+package ae.sdg.printerdemo;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SharedPreferences kept in a map, for the classes that store their state there.
+ * Edits are applied at once, whether by apply() or commit().
+ */
+class FakePreferences implements SharedPreferences {
+    final HashMap<String, Object> mValues = new HashMap<String, Object>();
+
+    @Override
+    public Map<String, ?> getAll() {
+        return new HashMap<String, Object>(mValues);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new FakeEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    private class FakeEditor implements Editor {
+
+        private Editor put(String key, Object value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mValues.remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mValues.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+
+        @Override
+        public void apply() {
+        }
+    }
+}
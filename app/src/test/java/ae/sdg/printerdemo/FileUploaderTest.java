@@ -0,0 +1,161 @@
+package ae.sdg.printerdemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Steps the upload state machine by hand: every call of gap() is one
+ * dispatch gap, and the test plays the printer by answering the file.dir
+ * getvars.
+ */
+public class FileUploaderTest {
+    // Two full chunks and a short one
+    private static final int SIZE = 5000;
+
+    private ByteArrayOutputStream mSent;
+    private SgdClient mSgd;
+    private FileUploader mUploader;
+    private File mFile;
+    private long mNow;
+    private String mFinished;
+
+    @Before
+    public void setUp() throws Exception {
+        mSent = new ByteArrayOutputStream();
+        LoopbackTransport link = new LoopbackTransport(mSent);
+        mSgd = new SgdClient(link);
+        mUploader = new FileUploader(new PrintJobScheduler(link), link, mSgd, new FileUploader.Protocol());
+        mFile = File.createTempFile("font", ".bin");
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[SIZE]);
+        out.close();
+        mNow = PrintJobScheduler.now();
+
+        mUploader.upload(mFile, "ARABT.FNT", new FileUploader.OnUploadListener() {
+            @Override
+            public void onUploadProgress(String name, long sent, long size) {
+            }
+
+            @Override
+            public void onUploadFinished(String name, boolean success, boolean skipped) {
+                mFinished = success ? (skipped ? "skipped" : "uploaded") : "failed";
+            }
+        });
+        assertFalse(mUploader.isReady());
+        // Open the file, then ask for the directory
+        gap();
+        gap();
+        assertEquals(1, count("getvar \"file.dir\""));
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void missingFile_isDownloadedAndConfirmed() throws Exception {
+        answer("E:LOGO.PCX 1024\r\n");
+        gap();
+        assertTrue(sent().contains("! CISDFCRC16\r\n0000\r\nARABT.FNT\r\n00001388\r\n0000\r\n"));
+        assertEquals(1, count("CISDF"));
+
+        gap();
+        assertEquals(2, count("getvar \"file.dir\""));
+        answer("E:LOGO.PCX 1024\r\nE:ARABT.FNT 5000\r\n");
+
+        assertEquals("uploaded", mFinished);
+        assertTrue(mUploader.isReady());
+    }
+
+    @Test
+    public void listedFileOfTheSameSize_isSkipped() throws Exception {
+        answer("E:ARABT.FNT 5000\r\n");
+
+        assertEquals("skipped", mFinished);
+        assertFalse(sent().contains("CISDF"));
+    }
+
+    @Test
+    public void listedFileOfAnotherSize_isReplaced() throws Exception {
+        answer("E:ARABT.FNT 4000\r\n");
+        gap();
+
+        assertTrue(sent().contains("CISDF"));
+        assertNull(mFinished);
+    }
+
+    @Test
+    public void printerWithoutADirectory_failsBeforeSendingData() throws Exception {
+        answer("?");
+
+        assertEquals("failed", mFinished);
+        assertTrue(mUploader.isReady());
+        gap();
+        assertFalse(sent().contains("CISDF"));
+    }
+
+    @Test
+    public void fileMissingAfterTheDownload_failsTheUpload() throws Exception {
+        answer("");
+        gap();
+        gap();
+        answer("E:LOGO.PCX 1024\r\n");
+
+        assertEquals("failed", mFinished);
+    }
+
+    @Test
+    public void unansweredQuery_isAskedAgainThenGivenUp() throws Exception {
+        for (int i = 0; i < 10 && mFinished == null; i++) {
+            mNow += 11000;
+            gap();
+        }
+
+        assertEquals("failed", mFinished);
+        assertEquals(4, count("getvar \"file.dir\""));
+        assertFalse(mSgd.hasPending());
+    }
+
+    @Test
+    public void newLink_startsTheDownloadOver() throws Exception {
+        answer("");
+        gap();
+        mUploader.onConnected();
+        gap();
+        answer("");
+        gap();
+
+        assertEquals(2, count("CISDF"));
+        assertNull(mFinished);
+    }
+
+    private void gap() {
+        mUploader.onDispatchGap(mNow, 0);
+    }
+
+    private void answer(String... values) {
+        StringBuilder reply = new StringBuilder();
+        for (String value : values) reply.append('"').append(value).append('"');
+        byte[] bytes = reply.toString().getBytes();
+        mSgd.onRead(bytes, bytes.length);
+    }
+
+    private String sent() throws Exception {
+        return new String(mSent.toByteArray(), "ISO-8859-1");
+    }
+
+    private int count(String text) throws Exception {
+        String sent = sent();
+        int count = 0;
+        for (int i = sent.indexOf(text); i >= 0; i = sent.indexOf(text, i + 1)) count++;
+        return count;
+    }
+}
@@ -0,0 +1,192 @@
+package ae.sdg.printerdemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the ingest gateway on the host against a loopback transport.
+ */
+public class IngestGatewayTest {
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes();
+
+    private ByteArrayOutputStream mPrinted;
+    private PrintJobScheduler mScheduler;
+    private IngestGateway mGateway;
+    private volatile boolean mOpen;
+
+    @Before
+    public void setUp() throws Exception {
+        mPrinted = new ByteArrayOutputStream();
+        mScheduler = new PrintJobScheduler(new LoopbackTransport(mPrinted));
+        mScheduler.start();
+        mGateway = new IngestGateway(mScheduler, 0, SECRET);
+        mGateway.start();
+    }
+
+    @After
+    public void tearDown() {
+        mGateway.stop();
+        mScheduler.stop();
+    }
+
+    @Test
+    public void pipelinedJobs_areAllAcknowledged() throws Exception {
+        IngestClient client = new IngestClient(mGateway.getPort(), SECRET);
+        for (int tag = 0; tag < 100; tag++) {
+            byte[] form = form("job " + tag);
+            client.submit(tag, PrintJob.PRIORITY_NORMAL, form, 0, form.length);
+        }
+        client.finish();
+
+        final boolean[] printed = new boolean[100];
+        int total = 0;
+        int batches = 0;
+        int count;
+        while ((count = client.readResults(new IngestClient.OnResultListener() {
+            @Override
+            public void onResult(int tag, int status) {
+                assertEquals(IngestGateway.STATUS_PRINTED, status);
+                printed[tag] = true;
+            }
+        })) >= 0) {
+            total += count;
+            batches++;
+        }
+        client.close();
+
+        assertEquals(100, total);
+        assertTrue(batches <= 100);
+        for (boolean p : printed) assertTrue(p);
+        assertTrue(new String(mPrinted.toByteArray(), "ISO-8859-1").contains("job 99"));
+    }
+
+    @Test
+    public void unknownPriority_isRejected() throws Exception {
+        IngestClient client = new IngestClient(mGateway.getPort(), SECRET);
+        byte[] form = form("bad");
+        client.submit(7, PrintJob.PRIORITY_COUNT, form, 0, form.length);
+        client.finish();
+
+        final int[] result = new int[2];
+        assertEquals(1, client.readResults(new IngestClient.OnResultListener() {
+            @Override
+            public void onResult(int tag, int status) {
+                result[0] = tag;
+                result[1] = status;
+            }
+        }));
+        client.close();
+
+        assertEquals(7, result[0]);
+        assertEquals(IngestGateway.STATUS_REJECTED, result[1]);
+        assertEquals(0, mPrinted.size());
+    }
+
+    @Test
+    public void twoClients_areInterleaved() throws Exception {
+        // Hold the queue until both clients have submitted everything
+        mScheduler.addGate(new PrintJobScheduler.Gate() {
+            @Override
+            public long onDispatchGap(long now, int queued) {
+                return 10;
+            }
+
+            @Override
+            public boolean isReady() {
+                return mOpen;
+            }
+        });
+
+        IngestClient a = new IngestClient(mGateway.getPort(), SECRET);
+        IngestClient b = new IngestClient(mGateway.getPort(), SECRET);
+        for (int i = 0; i < IngestGateway.MAX_IN_FLIGHT; i++) {
+            byte[] formA = form("A" + i);
+            byte[] formB = form("B" + i);
+            a.submit(i, PrintJob.PRIORITY_NORMAL, formA, 0, formA.length);
+            b.submit(i, PrintJob.PRIORITY_NORMAL, formB, 0, formB.length);
+        }
+        a.finish();
+        b.finish();
+        while (mScheduler.getQueuedCount() < 2 * IngestGateway.MAX_IN_FLIGHT) Thread.sleep(5);
+        mOpen = true;
+
+        IngestClient.OnResultListener ignore = new IngestClient.OnResultListener() {
+            @Override
+            public void onResult(int tag, int status) {
+            }
+        };
+        while (a.readResults(ignore) >= 0) ;
+        while (b.readResults(ignore) >= 0) ;
+        a.close();
+        b.close();
+
+        // Neither client got more than one form ahead of the other
+        ArrayList<Character> order = new ArrayList<Character>();
+        String printed = new String(mPrinted.toByteArray(), "ISO-8859-1");
+        for (int i = printed.indexOf("TEXT"); i >= 0; i = printed.indexOf("TEXT", i + 1)) {
+            order.add(printed.charAt(i + 13));
+        }
+        assertEquals(2 * IngestGateway.MAX_IN_FLIGHT, order.size());
+        for (int i = 1; i < order.size(); i++) {
+            assertNotEquals(order.get(i - 1), order.get(i));
+        }
+    }
+
+    @Test
+    public void wrongSecret_isRefused() throws Exception {
+        try {
+            new IngestClient(mGateway.getPort(), "fedcba9876543210fedcba9876543210".getBytes());
+            fail("a client without the secret was let in");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, mScheduler.getQueuedCount());
+    }
+
+    @Test
+    public void jobWithoutHandshake_isNeverQueued() throws Exception {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), mGateway.getPort());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        assertEquals(IngestGateway.FRAME_HELLO, in.readUnsignedByte());
+        in.readFully(new byte[IngestGateway.NONCE_SIZE]);
+
+        // Skip the answer and send a job straight away
+        byte[] form = form("sneaky");
+        out.writeByte(IngestGateway.FRAME_SUBMIT);
+        out.writeByte(PrintJob.PRIORITY_NORMAL);
+        out.writeInt(1);
+        out.writeInt(form.length);
+        out.write(form);
+        out.flush();
+
+        assertEquals(IngestGateway.FRAME_AUTH, in.readUnsignedByte());
+        assertEquals(0, in.readUnsignedByte());
+        try {
+            assertEquals(-1, in.read());
+        } catch (IOException reset) {
+            // Hung up with the job still unread
+        }
+        socket.close();
+        assertEquals(0, mPrinted.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortSecret_isRejected() {
+        new IngestGateway(mScheduler, 0, new byte[8]);
+    }
+
+    private static byte[] form(String text) throws Exception {
+        return ("! 0 200 200 50 1\r\nTEXT 4 0 0 0 " + text + "\r\nPRINT\r\n").getBytes("ISO-8859-1");
+    }
+}
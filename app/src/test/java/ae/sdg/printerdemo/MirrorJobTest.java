@@ -0,0 +1,91 @@
+package ae.sdg.printerdemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mirrors a ticket to two loopback printers, one of which may have lost its
+ * link.
+ */
+public class MirrorJobTest {
+    private static final byte[] TICKET = {'!', ' ', '0', '\r', '\n', 'P', 'R', 'I', 'N', 'T', '\r', '\n'};
+
+    private LoopbackTransport mDropped;
+    private ByteArrayOutputStream mPrinted;
+    private PrintJobScheduler[] mTargets;
+    private volatile int mAllCompleted = -1;
+
+    @Before
+    public void setUp() {
+        mPrinted = new ByteArrayOutputStream();
+        mDropped = new LoopbackTransport(null);
+        mTargets = new PrintJobScheduler[]{
+                new PrintJobScheduler(new LoopbackTransport(mPrinted)),
+                new PrintJobScheduler(mDropped)};
+        for (PrintJobScheduler target : mTargets) target.start();
+    }
+
+    @After
+    public void tearDown() {
+        for (PrintJobScheduler target : mTargets) target.stop();
+    }
+
+    @Test
+    public void droppedLink_timesOutWithAPartialResult() throws Exception {
+        mDropped.setConnected(false);
+        SharedPrintBuffer buffer = new SharedPrintBuffer(TICKET);
+        MirrorJob job = mirror(buffer, 200);
+
+        awaitFinished(job);
+        assertEquals(1, mAllCompleted);
+        assertEquals(1, job.getCompletedCount());
+        assertFalse(job.isTimedOut(0));
+        assertTrue(job.isTimedOut(1));
+        assertEquals(PrintJob.STATE_DONE, job.getState(0));
+        assertEquals(PrintJob.STATE_CANCELLED, job.getState(1));
+        assertArrayEquals(TICKET, mPrinted.toByteArray());
+        assertTrue(buffer.isReleased());
+    }
+
+    @Test
+    public void healthyLinks_finishBeforeTheTimeout() throws Exception {
+        SharedPrintBuffer buffer = new SharedPrintBuffer(TICKET);
+        MirrorJob job = mirror(buffer, 5000);
+
+        awaitFinished(job);
+        assertEquals(2, mAllCompleted);
+        assertFalse(job.isTimedOut(1));
+        assertTrue(buffer.isReleased());
+    }
+
+    private MirrorJob mirror(SharedPrintBuffer buffer, long timeout) {
+        MirrorJob job = new MirrorJob(buffer, mTargets, PrintJob.PRIORITY_NORMAL, "test")
+                .setOnMirrorListener(new MirrorJob.OnMirrorListener() {
+                    @Override
+                    public void onTargetFinished(MirrorJob job, int target, boolean completed) {
+                    }
+
+                    @Override
+                    public void onAllFinished(MirrorJob job, int completed) {
+                        mAllCompleted = completed;
+                    }
+                })
+                .setTimeout(timeout)
+                .submit();
+        buffer.release();
+        return job;
+    }
+
+    private void awaitFinished(MirrorJob job) throws Exception {
+        long until = System.currentTimeMillis() + 3000;
+        while (!job.isFinished() || mAllCompleted < 0) {
+            assertTrue("mirror did not finish", System.currentTimeMillis() < until);
+            Thread.sleep(5);
+        }
+    }
+}
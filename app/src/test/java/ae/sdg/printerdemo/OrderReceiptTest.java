@@ -0,0 +1,59 @@
+package ae.sdg.printerdemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an order receipt is laid out for the printer it goes to.
+ */
+public class OrderReceiptTest {
+    private static final byte[] ORDER = {'1', '2', '\r', '\n'};
+
+    @Test
+    public void heading_isRightAlignedToThePaperWidth() {
+        PrinterProfile wide = new PrinterProfile("wide");
+        PrinterProfile narrow = new PrinterProfile("narrow");
+        narrow.paperWidth = 384;
+
+        // 192 dots less paper is 16 fewer cells of the 12 dot font in front
+        assertEquals(16, leadingSpaces(OrderReceipt.encode(wide, ORDER))
+                - leadingSpaces(OrderReceipt.encode(narrow, ORDER)));
+    }
+
+    @Test
+    public void heading_endsInABareLf() {
+        byte[] receipt = OrderReceipt.encode(new PrinterProfile("pr3"), ORDER);
+        int font = indexOf(receipt, new byte[]{0x1B, 0x77});
+
+        assertEquals('\n', receipt[font - 1]);
+        assertTrue(receipt[font - 2] != '\r');
+    }
+
+    @Test
+    public void arabicFont_isSelectedByTheProfileId() {
+        PrinterProfile profile = new PrinterProfile("pr3");
+        profile.arabicFontId = 0x51;
+        byte[] receipt = OrderReceipt.encode(profile, ORDER);
+
+        assertTrue(indexOf(receipt, new byte[]{0x1B, 0x77, 0x51, 0x0D}) > 0);
+        assertTrue(indexOf(receipt, ORDER) > 0);
+    }
+
+    private static int leadingSpaces(byte[] bytes) {
+        int count = 0;
+        while (bytes[count] == ' ') count++;
+        return count;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (bytes[i + j] != part[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,185 @@
+package ae.sdg.printerdemo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the order in which the scheduler hands out forms. Jobs are queued
+ * behind a closed gate, then the gate opens and the printed order is read
+ * back from a loopback transport.
+ */
+public class PrintJobSchedulerTest {
+    private ByteArrayOutputStream mPrinted;
+    private PrintJobScheduler mScheduler;
+    private volatile boolean mOpen;
+
+    @Before
+    public void setUp() {
+        mPrinted = new ByteArrayOutputStream();
+        mScheduler = new PrintJobScheduler(new LoopbackTransport(mPrinted));
+        mScheduler.addGate(new PrintJobScheduler.Gate() {
+            @Override
+            public long onDispatchGap(long now, int queued) {
+                return 10;
+            }
+
+            @Override
+            public boolean isReady() {
+                return mOpen;
+            }
+        });
+        mScheduler.start();
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.stop();
+    }
+
+    @Test
+    public void moreUrgentClass_goesFirst() throws Exception {
+        submit("B1", PrintJob.PRIORITY_BULK, "bulk", 0);
+        submit("N1", PrintJob.PRIORITY_NORMAL, "docs", 0);
+        submit("I1", PrintJob.PRIORITY_INTERACTIVE, "pos", 0);
+
+        assertEquals("[I1, N1, B1]", printAll());
+    }
+
+    @Test
+    public void sourcesOfOneClass_takeTurns() throws Exception {
+        for (int i = 1; i <= 3; i++) submit("A" + i, PrintJob.PRIORITY_NORMAL, "a", 0);
+        for (int i = 1; i <= 3; i++) submit("B" + i, PrintJob.PRIORITY_NORMAL, "b", 0);
+
+        assertEquals("[A1, B1, A2, B2, A3, B3]", printAll());
+    }
+
+    @Test
+    public void multiFormJob_yieldsAtFormBoundaries() throws Exception {
+        mScheduler.submit(new PrintJob(concat(form("A1"), form("A2"), form("A3")),
+                PrintJob.PRIORITY_NORMAL, "batch"));
+        submit("B1", PrintJob.PRIORITY_NORMAL, "single", 0);
+
+        assertEquals("[A1, B1, A2, A3]", printAll());
+    }
+
+    @Test
+    public void jobNearItsDeadline_jumpsTheClasses() throws Exception {
+        submit("I1", PrintJob.PRIORITY_INTERACTIVE, "pos", 0);
+        submit("B1", PrintJob.PRIORITY_BULK, "late", PrintJobScheduler.now() + 100);
+        submit("B2", PrintJob.PRIORITY_BULK, "early", PrintJobScheduler.now() + 50);
+        // Far from its deadline, so it waits its turn
+        submit("B3", PrintJob.PRIORITY_BULK, "relaxed", PrintJobScheduler.now() + 60000);
+
+        assertEquals("[B2, B1, I1, B3]", printAll());
+    }
+
+    @Test
+    public void busySource_doesNotStarveOthers() throws Exception {
+        for (int i = 0; i < 50; i++) submit("A" + i, PrintJob.PRIORITY_BULK, "flood", 0);
+        submit("B0", PrintJob.PRIORITY_BULK, "trickle", 0);
+
+        String order = printAll();
+        assertTrue(order, order.startsWith("[A0, B0, A1"));
+    }
+
+    @Test
+    public void emptyNonBlockingStream_doesNotSpinOrBlockOthers() throws Exception {
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        mOpen = true;
+        mScheduler.submit(new PrintJob(JobSource.fromChannel(pipe.source()),
+                PrintJob.PRIORITY_NORMAL, "stream", 0));
+        pipe.sink().write(ByteBuffer.wrap(form("S1")));
+        waitFor("S1");
+
+        // The stream has nothing for a while
+        long cpu = dispatchCpuNanos();
+        Thread.sleep(300);
+        assertTrue("dispatch thread spun", dispatchCpuNanos() - cpu < 100000000L);
+
+        submit("X1", PrintJob.PRIORITY_NORMAL, "other", 0);
+        waitFor("X1");
+
+        pipe.sink().write(ByteBuffer.wrap(form("S2")));
+        pipe.sink().close();
+        assertEquals("[S1, X1, S2]", printAll());
+    }
+
+    @Test
+    public void cancelInsideAForm_endsTheForm() throws Exception {
+        Pipe pipe = Pipe.open();
+        mOpen = true;
+        PrintJob stream = new PrintJob(JobSource.fromChannel(pipe.source()),
+                PrintJob.PRIORITY_NORMAL, "stream", 0);
+        mScheduler.submit(stream);
+        pipe.sink().write(ByteBuffer.wrap("! 0 200 200 50 1\r\nTEXT 4 0 0 0 S1\r\n".getBytes("ISO-8859-1")));
+        waitFor("S1");
+
+        assertTrue(mScheduler.cancel(stream));
+        submit("X1", PrintJob.PRIORITY_NORMAL, "other", 0);
+        printAll();
+        pipe.sink().close();
+
+        String printed = new String(mPrinted.toByteArray(), "ISO-8859-1");
+        assertTrue(printed, printed.contains("S1\r\n\r\nPRINT\r\n! 0 200 200 50 1\r\nTEXT 4 0 0 0 X1"));
+    }
+
+    private void waitFor(String text) throws Exception {
+        long until = System.currentTimeMillis() + 5000;
+        while (!new String(mPrinted.toByteArray(), "ISO-8859-1").contains(text)) {
+            assertTrue("waiting for " + text, System.currentTimeMillis() < until);
+            Thread.sleep(5);
+        }
+    }
+
+    private static long dispatchCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("DispatchThread".equals(thread.getName())) total += threads.getThreadCpuTime(thread.getId());
+        }
+        return total;
+    }
+
+    private void submit(String mark, int priority, String source, long deadline) throws Exception {
+        mScheduler.submit(new PrintJob(form(mark), priority, source, deadline));
+    }
+
+    /**
+     * Open the gate, wait for the queue to drain and return the marks in printed order.
+     */
+    private String printAll() throws Exception {
+        mOpen = true;
+        mScheduler.wake();
+        long until = System.currentTimeMillis() + 5000;
+        while (mScheduler.getQueuedCount() > 0 && System.currentTimeMillis() < until) Thread.sleep(5);
+        assertEquals(0, mScheduler.getQueuedCount());
+
+        ArrayList<String> order = new ArrayList<String>();
+        String printed = new String(mPrinted.toByteArray(), "ISO-8859-1");
+        for (int i = printed.indexOf("TEXT"); i >= 0; i = printed.indexOf("TEXT", i + 1)) {
+            order.add(printed.substring(i + 13, printed.indexOf('\r', i)));
+        }
+        return order.toString();
+    }
+
+    private static byte[] form(String text) throws Exception {
+        return ("! 0 200 200 50 1\r\nTEXT 4 0 0 0 " + text + "\r\nPRINT\r\n").getBytes("ISO-8859-1");
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+}
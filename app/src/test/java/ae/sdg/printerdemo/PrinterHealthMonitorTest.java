@@ -0,0 +1,70 @@
+package ae.sdg.printerdemo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the monitor's dispatch gaps with a clock that starts at the
+ * scheduler's, against a printer that answers or stays silent.
+ */
+public class PrinterHealthMonitorTest {
+    private SgdClient mSgd;
+    private PrinterHealthMonitor mMonitor;
+    private long mStart;
+
+    @Before
+    public void setUp() {
+        mSgd = new SgdClient(new LoopbackTransport(null));
+        mMonitor = new PrinterHealthMonitor(mSgd);
+        mStart = PrintJobScheduler.now();
+    }
+
+    @Test
+    public void silentPrinter_isNotPolledAgainUntilTheNextConnect() {
+        // Three polls time out while idle
+        long t = mStart;
+        for (; t < mStart + 7000; t += 1000) mMonitor.onDispatchGap(t, 0);
+        assertEquals(3, mMonitor.getPollCount());
+        assertEquals(PrinterHealthMonitor.STATUS_UNKNOWN, mMonitor.getStatus());
+        assertTrue(mMonitor.isSilent());
+
+        // Neither jobs flowing nor time passing bring the polls back
+        for (; t < mStart + 50000; t += 1000) mMonitor.onDispatchGap(t, 1);
+        assertEquals(Long.MAX_VALUE, mMonitor.onDispatchGap(mStart + 600000, 0));
+        assertEquals(3, mMonitor.getPollCount());
+        assertTrue(mMonitor.isReady());
+
+        mMonitor.reset();
+        mMonitor.onDispatchGap(mStart + 600000, 0);
+        assertEquals(4, mMonitor.getPollCount());
+    }
+
+    @Test
+    public void healthyPrinter_isPolledOftenWhileBusy() {
+        // Every poll is answered, so the interval doubles up to the maximum
+        for (int i = 0; i < 5; i++) {
+            mMonitor.onDispatchGap(mStart + i * 70000L, 0);
+            answer("ok", "closed", "80");
+        }
+        assertEquals(5, mMonitor.getReplyCount());
+        assertTrue(mMonitor.onDispatchGap(mStart, 0) > 5000);
+
+        assertTrue(mMonitor.onDispatchGap(mStart, 1) <= 5000);
+    }
+
+    @Test
+    public void paperOut_holdsTheQueue() {
+        mMonitor.onDispatchGap(mStart, 0);
+        answer("out", "closed", "80");
+
+        assertFalse(mMonitor.isReady());
+        assertEquals(PrinterHealthMonitor.STATUS_PAPER_OUT, mMonitor.getStatus());
+    }
+
+    private void answer(String media, String latch, String battery) {
+        byte[] reply = ("\"" + media + "\"\"" + latch + "\"\"" + battery + "\"").getBytes();
+        mSgd.onRead(reply, reply.length);
+    }
+}
@@ -0,0 +1,123 @@
+package ae.sdg.printerdemo;
+
+import com.ganesh.iarabic.arabic864;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks wrapping, column placement and the visual order of mixed runs with
+ * a fixed 12 dot font, so every character is one cell.
+ */
+public class ReceiptLayoutTest {
+    private static final FontMetrics FONT = FontMetrics.fixed("7", 0, 12, 24);
+
+    @Test
+    public void longText_wrapsAtSpaces() throws Exception {
+        ReceiptLayout layout = new ReceiptLayout(FONT, 120, ReceiptLayout.MODE_LINE);
+        layout.text("hello world again", ReceiptLayout.ALIGN_LEFT);
+
+        assertEquals("hello\r\nworld\r\nagain\r\n", latin1(layout.toByteArray()));
+        assertEquals(3 * 24, layout.getHeight());
+    }
+
+    @Test
+    public void wordLongerThanTheLine_isCut() throws Exception {
+        ReceiptLayout layout = new ReceiptLayout(FONT, 120, ReceiptLayout.MODE_LINE);
+        layout.text("abcdefghijkl", ReceiptLayout.ALIGN_LEFT);
+
+        assertEquals("abcdefghij\r\nkl\r\n", latin1(layout.toByteArray()));
+    }
+
+    @Test
+    public void columns_arePaddedToTheirAlignment() throws Exception {
+        ReceiptLayout layout = new ReceiptLayout(FONT, 240, ReceiptLayout.MODE_LINE);
+        ReceiptLayout.Column[] columns = layout.columns(
+                new int[]{ReceiptLayout.ALIGN_LEFT, ReceiptLayout.ALIGN_RIGHT}, 1, 1);
+        layout.row(columns, "Tea", "5.00");
+
+        assertEquals("Tea             5.00\r\n", latin1(layout.toByteArray()));
+    }
+
+    @Test
+    public void tallCell_makesTheRowTaller() throws Exception {
+        ReceiptLayout layout = new ReceiptLayout(FONT, 240, ReceiptLayout.MODE_LINE);
+        ReceiptLayout.Column[] columns = layout.columns(
+                new int[]{ReceiptLayout.ALIGN_LEFT, ReceiptLayout.ALIGN_LEFT}, 1, 1);
+        layout.row(columns, "one two three", "x");
+
+        assertEquals("one two   x\r\nthree\r\n", latin1(layout.toByteArray()));
+    }
+
+    @Test
+    public void latinInsideArabic_keepsItsOrder() throws Exception {
+        ReceiptLayout layout = new ReceiptLayout(FONT, 576, ReceiptLayout.MODE_LINE);
+        layout.text("مرحبا ABC 123", ReceiptLayout.ALIGN_LEFT);
+
+        // The Arabic paragraph reads right to left, so the Latin run comes first
+        assertArrayEquals(concat(latin1("ABC 123 "), arabic("مرحبا"), latin1("\r\n")),
+                layout.toByteArray());
+    }
+
+    @Test
+    public void arabicInsideLatin_takesTheNumberAlong() throws Exception {
+        ReceiptLayout layout = new ReceiptLayout(FONT, 576, ReceiptLayout.MODE_LINE);
+        layout.text("Total مرحبا 5", ReceiptLayout.ALIGN_LEFT);
+
+        assertArrayEquals(concat(latin1("Total 5 "), arabic("مرحبا"), latin1("\r\n")),
+                layout.toByteArray());
+    }
+
+    @Test
+    public void latin1_goesThroughThePrinterCodepage() throws Exception {
+        ReceiptLayout layout = new ReceiptLayout(FONT, 576, ReceiptLayout.MODE_LINE);
+        layout.text("2\u00d7 \u00a35 caf\u00e9 \u0661", ReceiptLayout.ALIGN_LEFT);
+
+        // Codepage 864 has the times and pound signs and Arabic digits, but no e acute
+        assertArrayEquals(concat(latin1("2"), new byte[]{(byte) 0xde}, latin1(" "), new byte[]{(byte) 0xa3},
+                latin1("5 caf? "), new byte[]{(byte) 0xb1}, latin1("\r\n")), layout.toByteArray());
+
+        ReceiptLayout western = new ReceiptLayout(FONT, 576, ReceiptLayout.MODE_LINE, "1252");
+        western.text("caf\u00e9", ReceiptLayout.ALIGN_LEFT);
+        assertEquals("caf\u00e9\r\n", latin1(western.toByteArray()));
+    }
+
+    @Test
+    public void bareLf_endsLineModeLines() throws Exception {
+        ReceiptLayout layout = new ReceiptLayout(FONT, 120, ReceiptLayout.MODE_LINE).setBareLf(true);
+        layout.text("hello world", ReceiptLayout.ALIGN_LEFT).feed(1);
+
+        assertEquals("hello\nworld\n\n", latin1(layout.toByteArray()));
+    }
+
+    @Test
+    public void cpclMode_placesEveryLine() throws Exception {
+        ReceiptLayout layout = new ReceiptLayout(FONT, 576, ReceiptLayout.MODE_CPCL);
+        layout.text("Hi", ReceiptLayout.ALIGN_LEFT);
+        layout.text("Hi", ReceiptLayout.ALIGN_RIGHT);
+
+        assertEquals("TEXT 7 0 0 0 Hi\r\nTEXT 7 0 552 24 Hi\r\n", latin1(layout.toByteArray()));
+        assertTrue(latin1(layout.toCpclForm(200)).startsWith("! 0 200 200 48 1\r\n"));
+    }
+
+    private static String latin1(byte[] bytes) throws Exception {
+        return new String(bytes, "ISO-8859-1");
+    }
+
+    private static byte[] latin1(String text) throws Exception {
+        return text.getBytes("ISO-8859-1");
+    }
+
+    private static byte[] arabic(String text) {
+        return new arabic864().Convert(text, true);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+}
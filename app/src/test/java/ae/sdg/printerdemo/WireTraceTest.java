@@ -0,0 +1,99 @@
+package ae.sdg.printerdemo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records a short session, dumps it and replays the dump into a loopback
+ * transport, the way a benchmark run does.
+ */
+public class WireTraceTest {
+    private static final byte[] FORM = bytes("! 0 200 200 50 1\r\nTEXT 4 0 0 0 Hi\r\nPRINT\r\n");
+    private static final byte[] QUERY = bytes("! U1 getvar \"media.status\"\r\n");
+    private static final byte[] REPLY = bytes("\"ok\"");
+
+    @Test
+    public void replay_writesTheOutgoingBytesAndHandsBackTheReplies() throws Exception {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        final ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        WireTraceReplayer replayer = new WireTraceReplayer(new LoopbackTransport(printed))
+                .setSpeed(0)
+                .setReadListener(new BluetoothSerialService.OnReadListener() {
+                    @Override
+                    public void onRead(byte[] buffer, int length) {
+                        replies.write(buffer, 0, length);
+                    }
+                });
+
+        WireTraceReplayer.Result result = replayer.replay(session(4096));
+
+        assertEquals(3, result.records);
+        assertEquals(QUERY.length + FORM.length, result.bytesOut);
+        assertEquals(REPLY.length, result.bytesIn);
+        assertEquals(0, result.failedWrites);
+        assertEquals(new String(QUERY, "ISO-8859-1") + new String(FORM, "ISO-8859-1"),
+                new String(printed.toByteArray(), "ISO-8859-1"));
+        assertArrayEquals(REPLY, replies.toByteArray());
+    }
+
+    @Test
+    public void replay_takesAsLongAsTheLinkRate() throws Exception {
+        // About 100ms for the query and the form at 800 bytes a second
+        LoopbackTransport link = new LoopbackTransport(null).setBytesPerSecond(800);
+        WireTraceReplayer.Result result = new WireTraceReplayer(link).setSpeed(0).replay(session(4096));
+
+        assertTrue(result.toString(), result.elapsedMillis >= 80);
+        assertEquals(2, link.getWriteCount());
+    }
+
+    @Test
+    public void fullRing_dropsTheOldestRecords() throws Exception {
+        WireTrace trace = new WireTrace(256);
+        for (int i = 0; i < 10; i++) trace.record(WireTrace.DIRECTION_OUT, FORM, 0, FORM.length);
+        WireTrace.Reader reader = reader(trace);
+
+        assertEquals(10, reader.getRecordCount() + reader.getDroppedCount());
+        assertTrue(reader.getDroppedCount() > 0);
+        for (int i = 0; i < reader.getRecordCount(); i++) assertArrayEquals(FORM, reader.next().data);
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void interruptedWrite_fails() {
+        LoopbackTransport link = new LoopbackTransport(null).setBytesPerSecond(10);
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(link.send(FORM, 0, FORM.length));
+            assertTrue(Thread.interrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(0, link.getBytesSent());
+    }
+
+    private static WireTrace.Reader session(int capacity) throws Exception {
+        WireTrace trace = new WireTrace(capacity);
+        trace.record(WireTrace.DIRECTION_OUT, QUERY, 0, QUERY.length);
+        trace.record(WireTrace.DIRECTION_IN, REPLY, 0, REPLY.length);
+        trace.record(WireTrace.DIRECTION_OUT, FORM, 0, FORM.length);
+        return reader(trace);
+    }
+
+    private static WireTrace.Reader reader(WireTrace trace) throws Exception {
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        trace.dump(dump);
+        return new WireTrace.Reader(new ByteArrayInputStream(dump.toByteArray()));
+    }
+
+    private static byte[] bytes(String text) {
+        try {
+            return text.getBytes("ISO-8859-1");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}